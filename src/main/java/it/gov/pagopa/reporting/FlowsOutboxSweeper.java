@@ -0,0 +1,83 @@
+package it.gov.pagopa.reporting;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.TimerTrigger;
+import it.gov.pagopa.reporting.service.FlowsOutbox;
+import it.gov.pagopa.reporting.service.FlowsService;
+import it.gov.pagopa.reporting.service.OrganizationsService;
+import it.gov.pagopa.reporting.utils.Metrics;
+
+import java.time.LocalDate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Azure Functions with Timer trigger.
+ */
+public class FlowsOutboxSweeper {
+
+    private final String storageConnectionString = System.getenv("FLOW_SA_CONNECTION_STRING");
+    private final String flowsTable = System.getenv("FLOWS_TABLE");
+    private final String flowsQueue = System.getenv("FLOWS_QUEUE");
+    private final String organizationsTable = System.getenv("ORGANIZATIONS_TABLE");
+    private final String organizationsQueue = System.getenv("ORGANIZATIONS_QUEUE");
+    private final String timeToLiveInSeconds = System.getenv("QUEUE_RETENTION_SEC");
+    private final String initialVisibilityDelayInSeconds = System.getenv("QUEUE_DELAY_SEC");
+    private final boolean outboxEnabled = Boolean.parseBoolean(System.getenv("FLOWS_OUTBOX_ENABLED"));
+    // max notifications sent by a sweep, the next ones are left to the next sweep
+    private final int maxEntries = System.getenv("FLOWS_OUTBOX_MAX_ENTRIES") != null
+            ? Integer.parseInt(System.getenv("FLOWS_OUTBOX_MAX_ENTRIES")) : 5000;
+    // age of the notifications left pending, longer than the delay of the publisher of the worker storing their flows
+    private final long graceInSeconds = System.getenv("FLOWS_OUTBOX_GRACE_SEC") != null
+            ? Long.parseLong(System.getenv("FLOWS_OUTBOX_GRACE_SEC")) : 600;
+
+    /**
+     * This function will be invoked periodically according to the specified
+     * schedule, it sends the notifications of the flows outbox not sent by the worker storing their flows, reading the
+     * outbox of each partition of the organizations.
+     */
+    @FunctionName("FlowsOutboxSweeper")
+    public void run(
+            @TimerTrigger(name = "FlowsOutboxSweeperTrigger", schedule = "%NCRON_SCHEDULE_OUTBOX%") String timerInfo,
+            final ExecutionContext context
+    ) {
+        Logger logger = context.getLogger();
+        if (!this.outboxEnabled) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long createdBefore = start - this.graceInSeconds * 1000;
+        FlowsService flowsService = this.getFlowsServiceInstance(logger);
+        FlowsOutbox outbox = this.getFlowsOutboxInstance(logger);
+        int sent = 0;
+        for (String idPA : this.getOrganizationsServiceInstance(logger).getOrganizations()) {
+            if (sent >= this.maxEntries) {
+                break;
+            }
+            try {
+                sent += outbox.sweep(flowsService.getPartitionLayouts(idPA).partitionKeys(idPA, LocalDate.now()),
+                        this.maxEntries - sent, createdBefore);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, () -> "[FlowsOutboxSweeper] Error sweeping " + idPA + " " + e.getLocalizedMessage());
+            }
+        }
+        int swept = sent;
+        logger.log(Level.INFO, () -> "[FlowsOutboxSweeper] " + swept + " notifications sent in " + (System.currentTimeMillis() - start) + " ms");
+        Metrics.record("outbox.sweep.ms", System.currentTimeMillis() - start);
+        Metrics.log(logger);
+    }
+
+    public OrganizationsService getOrganizationsServiceInstance(Logger logger) {
+        return new OrganizationsService(this.storageConnectionString, this.organizationsTable, this.organizationsQueue, Integer.parseInt(timeToLiveInSeconds), Integer.parseInt(initialVisibilityDelayInSeconds), logger);
+    }
+
+    public FlowsService getFlowsServiceInstance(Logger logger) {
+        return new FlowsService(this.storageConnectionString, this.flowsTable, this.flowsQueue, logger);
+    }
+
+    public FlowsOutbox getFlowsOutboxInstance(Logger logger) {
+        return new FlowsOutbox(this.storageConnectionString, this.flowsTable, this.flowsQueue, logger);
+    }
+}
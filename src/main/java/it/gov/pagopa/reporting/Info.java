@@ -7,8 +7,10 @@ import com.microsoft.azure.functions.annotation.HttpTrigger;
 import it.gov.pagopa.reporting.models.AppInfo;
 
 import java.io.InputStream;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,6 +20,9 @@ import java.util.logging.Logger;
  */
 public class Info {
 
+	// the info of each pom.properties, read once for the lifetime of the worker
+	private static final Map<String, AppInfo> INFOS = new ConcurrentHashMap<>();
+
 	/**
 	 * This function will be invoked when a Http Trigger occurs
 	 * @return
@@ -37,7 +42,11 @@ public class Info {
 				.build();
 	}
 
-	public synchronized AppInfo getInfo(Logger logger, String path) {
+	public AppInfo getInfo(Logger logger, String path) {
+		return INFOS.computeIfAbsent(path, p -> this.readInfo(logger, p));
+	}
+
+	private AppInfo readInfo(Logger logger, String path) {
 		String version = null;
 		String name = null;
 		try {
@@ -0,0 +1,49 @@
+package it.gov.pagopa.reporting;
+
+import com.microsoft.azure.functions.*;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+import it.gov.pagopa.reporting.models.ReadinessInfo;
+import it.gov.pagopa.reporting.service.ReadinessProbe;
+
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Azure Functions with Azure Http trigger.
+ */
+public class Readiness {
+
+	private final String storageConnectionString = System.getenv("FLOW_SA_CONNECTION_STRING");
+	private final String flowsTable = System.getenv("FLOWS_TABLE");
+	private final String flowsQueue = System.getenv("FLOWS_QUEUE");
+	private final long probeIntervalInSeconds = System.getenv("READINESS_PROBE_INTERVAL_SEC") != null
+			? Long.parseLong(System.getenv("READINESS_PROBE_INTERVAL_SEC")) : 30;
+
+	/**
+	 * This function will be invoked when a Http Trigger occurs
+	 * @return 200 when the worker can store flows, 503 otherwise; the body tells a warm worker from a cold one
+	 */
+	@FunctionName("Readiness")
+	public HttpResponseMessage run (
+			@HttpTrigger(name = "ReadinessTrigger",
+			methods = {HttpMethod.GET},
+			route = "ready",
+			authLevel = AuthorizationLevel.ANONYMOUS) HttpRequestMessage<Optional<String>> request,
+			final ExecutionContext context) {
+
+		context.getLogger().log(Level.FINE, "Invoked readiness HTTP trigger for pagopa-gpd-reporting-batch.");
+		ReadinessInfo readiness = this.getReadinessProbeInstance(context.getLogger()).probe(System.currentTimeMillis());
+		return request.createResponseBuilder(readiness.isReady() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+				.header("Content-Type", "application/json")
+				.body(readiness)
+				.build();
+	}
+
+	public ReadinessProbe getReadinessProbeInstance(Logger logger) {
+		return new ReadinessProbe(this.storageConnectionString, this.flowsTable, this.flowsQueue, this.probeIntervalInSeconds * 1000, logger);
+	}
+}
@@ -3,30 +3,70 @@ package it.gov.pagopa.reporting;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.annotation.BindingName;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.QueueTrigger;
+import com.microsoft.azure.storage.StorageException;
 import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.resources.ClientMessages;
 import it.gov.pagopa.reporting.client.ApiConfigClient;
 import it.gov.pagopa.reporting.exception.AppException;
 import it.gov.pagopa.reporting.exception.Cache4XXException;
 import it.gov.pagopa.reporting.exception.Cache5XXException;
+import it.gov.pagopa.reporting.models.FlowsProcessingResult;
 import it.gov.pagopa.reporting.models.OrganizationsMessage;
+import it.gov.pagopa.reporting.models.RunSummary;
 import it.gov.pagopa.reporting.models.cache.CacheResponse;
-import it.gov.pagopa.reporting.models.cache.CreditorInstitutionStation;
 import it.gov.pagopa.reporting.models.cache.Station;
+import it.gov.pagopa.reporting.models.cache.StationCache;
+import it.gov.pagopa.reporting.service.ActivityService;
+import it.gov.pagopa.reporting.service.BackpressureController;
+import it.gov.pagopa.reporting.service.CacheSnapshotService;
+import it.gov.pagopa.reporting.service.CheckpointService;
+import it.gov.pagopa.reporting.service.ElencoFingerprintService;
+import it.gov.pagopa.reporting.service.FlowsPrefetcher;
 import it.gov.pagopa.reporting.service.FlowsService;
+import it.gov.pagopa.reporting.service.HedgedNodoChiediElencoFlussi;
 import it.gov.pagopa.reporting.service.NodoChiediElencoFlussi;
+import it.gov.pagopa.reporting.service.NodoChiediFlusso;
 import it.gov.pagopa.reporting.service.OrganizationsService;
+import it.gov.pagopa.reporting.service.RunSummaryService;
+import it.gov.pagopa.reporting.service.StaxNodoChiediElencoFlussi;
+import it.gov.pagopa.reporting.service.StationSelector;
 import it.gov.pagopa.reporting.servicewsdl.FaultBean;
 import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
+import it.gov.pagopa.reporting.utils.AdaptiveConcurrencyLimiter;
+import it.gov.pagopa.reporting.utils.BoundedPipeline;
+import it.gov.pagopa.reporting.utils.ElencoDemultiplexer;
+import it.gov.pagopa.reporting.utils.Metrics;
+import it.gov.pagopa.reporting.utils.RetryPolicy;
+import it.gov.pagopa.reporting.utils.SingleFlight;
+import it.gov.pagopa.reporting.utils.TimeBudget;
 
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -42,8 +82,66 @@ public class RetrieveFlows {
     private final String timeToLiveInSeconds = System.getenv("QUEUE_RETENTION_SEC");
     private final String initialVisibilityDelayInSeconds = System.getenv("QUEUE_DELAY_SEC");
     private final String maxRetryQueuing = System.getenv("MAX_RETRY_QUEUING");
+    private final String retryableFaultCodes = System.getenv("RETRYABLE_FAULT_CODES") != null
+            ? System.getenv("RETRYABLE_FAULT_CODES") : RetryPolicy.DEFAULT_RETRYABLE_FAULT_CODES;
+    private final boolean elencoFingerprintEnabled = Boolean.parseBoolean(System.getenv("ELENCO_FINGERPRINT_ENABLED"));
+    private final String checkpointsTable = System.getenv("CHECKPOINTS_TABLE");
+    // run summaries are only logged when not set
+    private final String runsTable = System.getenv("RUNS_TABLE");
+    // claim window of the messages with no schedule epoch, the others claim their organizations for their tick
+    private final long checkpointWindowInSeconds = System.getenv("CHECKPOINT_WINDOW_SEC") != null
+            ? Long.parseLong(System.getenv("CHECKPOINT_WINDOW_SEC")) : 60;
+    private final long checkpointRetentionInSeconds = System.getenv("CHECKPOINT_RETENTION_SEC") != null
+            ? Long.parseLong(System.getenv("CHECKPOINT_RETENTION_SEC")) : 3600;
 
-    private static CacheResponse cacheContent;
+    // blob container of the station cache snapshot, shared by the workers; the snapshot is disabled when not set
+    private final String cacheSnapshotContainer = System.getenv("CACHE_SNAPSHOT_CONTAINER");
+    // the snapshot holds the station passwords: it is encrypted with this base64 AES key, required by the snapshot
+    private final String cacheSnapshotKey = System.getenv("CACHE_SNAPSHOT_KEY");
+    private final long cacheSnapshotMaxAgeInSeconds = System.getenv("CACHE_SNAPSHOT_MAX_AGE_SEC") != null
+            ? Long.parseLong(System.getenv("CACHE_SNAPSHOT_MAX_AGE_SEC")) : 86400;
+    private final boolean adaptivePollingEnabled = System.getenv("POLLING_MAX_STALENESS_SEC") != null;
+    private final boolean coalescingEnabled = Boolean.parseBoolean(System.getenv("ORGANIZATIONS_COALESCING_ENABLED"));
+    // the invocation time budget is unlimited when not set
+    private final long timeBudgetInSeconds = System.getenv("FUNCTION_TIME_BUDGET_SEC") != null
+            ? Long.parseLong(System.getenv("FUNCTION_TIME_BUDGET_SEC")) : 0;
+    private final long timeBudgetMarginInSeconds = System.getenv("FUNCTION_TIME_BUDGET_MARGIN_SEC") != null
+            ? Long.parseLong(System.getenv("FUNCTION_TIME_BUDGET_MARGIN_SEC")) : 30;
+    // station polling mode: a Nodo call for each station instead of each organization, it needs the flow id pattern
+    private final boolean stationPollingEnabled = "STATION".equalsIgnoreCase(System.getenv("NODO_POLLING_MODE"));
+    private final Pattern flowIdDomainPattern = System.getenv("FLOW_ID_DOMAIN_PATTERN") != null
+            ? Pattern.compile(System.getenv("FLOW_ID_DOMAIN_PATTERN")) : null;
+    // FIRST, ROUND_ROBIN, LEAST_RECENT_FAILURE or LATENCY_WEIGHTED
+    private final String stationSelectionStrategy = System.getenv("STATION_SELECTION_STRATEGY");
+    // JAXWS or STAX
+    private final String nodoClient = System.getenv("NODO_CLIENT");
+    // endpoint of the StAX client, the address of the WSDL when not set
+    private final String nodoUrl = System.getenv("NODO_URL");
+    private final long nodoTimeoutInSeconds = System.getenv("NODO_TIMEOUT_SEC") != null
+            ? Long.parseLong(System.getenv("NODO_TIMEOUT_SEC")) : 60;
+    private final int pipelineQueueCapacity = System.getenv("PIPELINE_QUEUE_CAPACITY") != null
+            ? Integer.parseInt(System.getenv("PIPELINE_QUEUE_CAPACITY")) : 4;
+    // percentile of the recent Nodo latencies after which a Nodo request is hedged; not hedged when not set
+    private final int nodoHedgePercentile = System.getenv("NODO_HEDGE_PERCENTILE") != null
+            ? Integer.parseInt(System.getenv("NODO_HEDGE_PERCENTILE")) : 0;
+    // max hedged Nodo requests per Nodo call
+    private final double nodoHedgeMaxRate = System.getenv("NODO_HEDGE_MAX_RATE") != null
+            ? Double.parseDouble(System.getenv("NODO_HEDGE_MAX_RATE")) : 0.05;
+    // container the new flows are prefetched to; the flows are not prefetched when not set or without the outbox
+    private final String prefetchContainer = System.getenv("FLOWS_PREFETCH_CONTAINER");
+    private final boolean outboxEnabled = Boolean.parseBoolean(System.getenv("FLOWS_OUTBOX_ENABLED"));
+    private final int prefetchParallelism = System.getenv("FLOWS_PREFETCH_PARALLELISM") != null
+            ? Integer.parseInt(System.getenv("FLOWS_PREFETCH_PARALLELISM")) : 4;
+    // max Nodo calls in flight in the worker, adapted to the Nodo latency and failures; not limited when not set.
+    // It caps the calls of the concurrent invocations, the hedges and the prefetch lanes: an invocation still polls
+    // its organizations one at a time, the limit never raises that parallelism
+    private final int nodoMaxConcurrency = System.getenv("NODO_MAX_CONCURRENCY") != null
+            ? Integer.parseInt(System.getenv("NODO_MAX_CONCURRENCY")) : 0;
+
+    private static volatile StationCache cacheContent;
+    // organizations polled or stored by the invocations of the worker
+    private static final SingleFlight<OrganizationsMessage> POLLS = new SingleFlight<>((System.getenv("SINGLE_FLIGHT_MAX_AGE_SEC") != null
+            ? Long.parseLong(System.getenv("SINGLE_FLIGHT_MAX_AGE_SEC")) : 300) * 1000);
 
     /**
      * This function will be invoked when a new message is detected in the queue
@@ -51,13 +149,19 @@ public class RetrieveFlows {
     @FunctionName("RetrieveFlows")
     public void run(
             @QueueTrigger(name = "RetrieveOrganizationsTrigger", queueName = "%ORGANIZATIONS_QUEUE%", connection = "FLOW_SA_CONNECTION_STRING") String message,
+            @BindingName("Id") String messageId,
             final ExecutionContext context) {
 
         Logger logger = context.getLogger();
         logger.log(Level.INFO, () -> String.format("[RetrieveOrganizationsTrigger START] processed the message: %s at %s", message, LocalDate.now()));
+        long start = System.currentTimeMillis();
+        TimeBudget timeBudget = new TimeBudget(start, this.timeBudgetInSeconds * 1000, this.timeBudgetMarginInSeconds * 1000);
+        RunSummary summary = null;
 
         NodoChiediElencoFlussi nodeClient = this.getNodeClientInstance(logger);
-        FlowsService flowsService = this.getFlowsServiceInstance(logger);
+        // null when the Nodo calls are not limited
+        AdaptiveConcurrencyLimiter nodoLimiter = this.getNodoLimiterInstance();
+        FlowsService flowsService = this.getFlowsServiceInstance(timeBudget, nodoLimiter, logger);
         ApiConfigClient cacheClient = this.getCacheClientInstance();
         if(cacheContent == null || (cacheContent.getRetrieveDate() != null && cacheContent.getRetrieveDate().isBefore(LocalDate.now()))) {
             synchronized (RetrieveFlows.class) {
@@ -67,48 +171,459 @@ public class RetrieveFlows {
 
         try {
             OrganizationsMessage organizationsMessage = new ObjectMapper().readValue(message, OrganizationsMessage.class);
+            // the messages enqueued before the schedule epoch was carried are summarized under their start time
+            summary = new RunSummary("RetrieveFlows", context.getInvocationId(),
+                    organizationsMessage.getEpoch() != null ? organizationsMessage.getEpoch() : start, start);
+            summary.add(RunSummary.Counter.ORGANIZATIONS, organizationsMessage.getIdPA().length);
+
+            // the flows queue consumer does not keep up: the whole message is postponed, or the retries are delayed more
+            BackpressureController backpressureController = this.getBackpressureControllerInstance(logger);
+            BackpressureController.Decision decision = backpressureController.evaluate();
+            // null: default retry delay
+            Integer retryDelayInSeconds = null;
+            if (decision != BackpressureController.Decision.PROCEED) {
+                retryDelayInSeconds = backpressureController.stretchDelay(Integer.parseInt(initialVisibilityDelayInSeconds));
+            }
+            if (decision == BackpressureController.Decision.SKIP) {
+                int delay = retryDelayInSeconds;
+                logger.log(Level.WARNING, () -> "[RetrieveFlows] Message postponed by backpressure of " + delay + " seconds");
+                this.getOrganizationsServiceInstance(logger).addToOrganizationsQueue(
+                        Arrays.asList(organizationsMessage.getIdPA()), organizationsMessage.getRetry(), delay, organizationsMessage.getEpoch());
+                summary.add(RunSummary.Counter.SKIPPED, organizationsMessage.getIdPA().length);
+                this.getRunSummaryServiceInstance(logger).publish(summary);
+                Metrics.log(logger);
+                return;
+            }
+
+            // null when checkpointing is disabled
+            CheckpointService checkpointService = this.getCheckpointServiceInstance(logger);
+            Set<String> completedOrganizations = checkpointService != null
+                    ? checkpointService.getCompletedOrganizations(messageId) : Set.of();
+            // null when the fingerprint of the flows lists is disabled
+            ElencoFingerprintService fingerprintService = this.getElencoFingerprintServiceInstance(logger);
+            // null when both the adaptive polling and the messages coalescing are disabled
+            ActivityService activityService = this.getActivityServiceInstance(logger);
 
-            Arrays.stream(organizationsMessage.getIdPA())
-                    .forEach((organization -> {
+            // stage 1 polls Nodo on the function thread, stage 2 stores the flows lists on its own thread
+            RunSummary runSummary = summary;
+            try (BoundedPipeline<PolledOrganization> pipeline = new BoundedPipeline<>("flows", this.pipelineQueueCapacity,
+                    polled -> {
+                        long storingStart = System.currentTimeMillis();
                         try {
-                            logger.log(Level.INFO, () -> "[RetrieveFlows][Config-Cache][Start] idPa: " + organization);
-                            Station stationBroker = getPAStationIntermediario(organization)
-                                    .orElseThrow(() -> new AppException(String.format("No data present in api config database for PA %s", organization)));
-                            String idStation = stationBroker.getStationCode();
-                            String idBroker = stationBroker.getBrokerCode();
-                            String stationPassword = stationBroker.getPassword();
-                            logger.log(Level.INFO, () -> "[RetrieveFlows][NodoChiediElencoFlussiRendicontazione] idPa: " + organization + ", idIntermediario: " + idBroker + ", idStazione: " + idStation );
-                            // call NODO dei pagamenti
-                            nodeClient.nodoChiediElencoFlussiRendicontazione(organization, idBroker, idStation, stationPassword);
-
-                            // retrieve result
-                            FaultBean faultBean = nodeClient.getNodoChiediElencoFlussiRendicontazioneFault();
-
-                            TipoElencoFlussiRendicontazione elencoFlussi = nodeClient.getNodoChiediElencoFlussiRendicontazione();
-
-                            if (faultBean != null) {
-                                logger.log(Level.WARNING, () -> "[RetrieveFlows] faultBean DESC " + faultBean.getDescription());
-                            } else if (elencoFlussi != null) {
-                                logger.log(Level.INFO, () -> "[RetrieveFlows] elencoFlussi PA " + organization + ", idIntermediario: " + idBroker + ", idStazione: " + idStation + " TotRestituiti " + elencoFlussi.getTotRestituiti());
-                                flowsService.flowsProcessing(elencoFlussi.getIdRendicontazione(), organization);
+                            int newFlows = this.storeFlows(polled.elencoFlussi, polled.organization, flowsService, fingerprintService, runSummary, logger);
+                            if (activityService != null) {
+                                activityService.record(polled.organization, newFlows > 0, polled.polledTime);
                             }
-                        } catch (ClientTransportException e) {
-                            logger.log(Level.SEVERE, () -> "[NODO Connection down] Organization: [" + organization +"] Caused by: " + e.getCause() + " Message: " + e.getMessage() + " Stack trace: " + Arrays.toString(e.getStackTrace()));
-                            int retry = organizationsMessage.getRetry();
-                            if (retry < Integer.parseInt(maxRetryQueuing)) {
-                                OrganizationsService organizationsService = getOrganizationsServiceInstance(logger);
-                                organizationsService.retryToOrganizationsQueue(organization, retry + 1);
-                            } else {
-                                logger.log(Level.SEVERE, () -> "[NODO Connection down]  Max retry exceeded.");
+                            if (checkpointService != null) {
+                                checkpointService.complete(polled.organization, messageId);
                             }
-                        } catch (AppException e) {
-                            logger.log(Level.SEVERE, () -> "[RetrieveFlows] [AppException] Organization: [" + organization + "] Message: " + e.getMessage());
+                        } catch (RuntimeException e) {
+                            polled.flight.fail();
+                            throw e;
+                        } finally {
+                            this.landFlight(polled.organization, polled.flight, organizationsMessage, checkpointService, logger);
+                            timeBudget.recordStoring(System.currentTimeMillis() - storingStart);
                         }
-
-                    }));
+                    }, logger)) {
+                String[] organizations = organizationsMessage.getIdPA();
+                Map<String, PolledOrganization> stationPolls = this.stationPollingEnabled && this.flowIdDomainPattern != null
+                        ? this.pollStations(organizations, completedOrganizations, nodeClient, nodoLimiter, timeBudget, runSummary, logger)
+                        : Map.of();
+                for (int i = 0; i < organizations.length; i++) {
+                    if (!timeBudget.canStart(System.currentTimeMillis(), pipeline.getBacklog())) {
+                        this.handOff(Arrays.asList(organizations).subList(i, organizations.length), organizationsMessage, timeBudget, runSummary, logger);
+                        break;
+                    }
+                    long organizationStart = System.currentTimeMillis();
+                    this.pollOrganization(organizations[i], organizationsMessage, retryDelayInSeconds, messageId, completedOrganizations,
+                            checkpointService, activityService, nodeClient, nodoLimiter, timeBudget, stationPolls.get(organizations[i]), pipeline, runSummary, logger);
+                    timeBudget.recordUnit(System.currentTimeMillis() - organizationStart);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.log(Level.SEVERE, () -> "[RetrieveOrganizationsTrigger] Interrupted " + e.getLocalizedMessage());
+            }
+            if (checkpointService != null) {
+                // the message is deleted once the invocation returns
+                checkpointService.clear(messageId);
+                checkpointService.purgeIfDue(System.currentTimeMillis(), this.checkpointRetentionInSeconds * 1000);
+            }
         } catch (JsonProcessingException e) {
             logger.log(Level.SEVERE, () -> "[RetrieveOrganizationsTrigger]  Error " + e.getLocalizedMessage());
         }
+
+        if (summary != null) {
+            this.getRunSummaryServiceInstance(logger).publish(summary);
+        }
+        Metrics.log(logger);
+    }
+
+    /**
+     * Re-enqueues the organizations not started within the time budget, so that the invocation returns before the
+     * host timeout and the work already done is kept.
+     */
+    private void handOff(List<String> organizations, OrganizationsMessage organizationsMessage, TimeBudget timeBudget,
+                         RunSummary summary, Logger logger) {
+        logger.log(Level.WARNING, () -> "[RetrieveFlows] Time budget running out, remaining " + timeBudget.getRemainingMillis(System.currentTimeMillis())
+                + " ms: " + organizations.size() + " organizations handed back to the queue");
+        Metrics.add("budget.handoff.organizations", organizations.size());
+        summary.add(RunSummary.Counter.HANDED_OFF, organizations.size());
+        this.getOrganizationsServiceInstance(logger).addToOrganizationsQueue(organizations, organizationsMessage.getRetry(), 0,
+                organizationsMessage.getEpoch());
+    }
+
+    private void pollOrganization(String organization, OrganizationsMessage organizationsMessage, Integer retryDelayInSeconds,
+                                  String messageId, Set<String> completedOrganizations, CheckpointService checkpointService,
+                                  ActivityService activityService, NodoChiediElencoFlussi nodeClient,
+                                  AdaptiveConcurrencyLimiter nodoLimiter, TimeBudget timeBudget, PolledOrganization stationPoll,
+                                  BoundedPipeline<PolledOrganization> pipeline, RunSummary summary, Logger logger) throws InterruptedException {
+        if (completedOrganizations.contains(organization)) {
+            logger.log(Level.INFO, () -> "[RetrieveFlows][Checkpoint] idPa: " + organization + " already completed by message " + messageId);
+            Metrics.increment("checkpoint.skipped.completed");
+            return;
+        }
+        // a message of a past schedule, the organization has already been polled after its enqueue
+        if (this.coalescingEnabled && activityService != null && organizationsMessage.getEpoch() != null
+                && activityService.isPolledSince(organization, organizationsMessage.getEpoch())) {
+            logger.log(Level.INFO, () -> "[RetrieveFlows] idPa: " + organization + " already polled after " + organizationsMessage.getEpoch());
+            Metrics.increment("organizations.coalesced");
+            summary.increment(RunSummary.Counter.COALESCED);
+            return;
+        }
+        // the organization is being polled by another invocation of the worker, or earlier in this one: that poll,
+        // stored or retried by its own message, stands for this one, which is not waited for; its checkpoint is left
+        // open, and the organization is enqueued again if that poll fails
+        SingleFlight.Flight<OrganizationsMessage> flight = POLLS.tryLead(organization, System.currentTimeMillis(), organizationsMessage);
+        if (flight == null) {
+            logger.log(Level.INFO, () -> "[RetrieveFlows] idPa: " + organization + " already in flight, joined");
+            Metrics.increment("organizations.joined");
+            summary.increment(RunSummary.Counter.COALESCED);
+            return;
+        }
+        boolean handedOver = false;
+        try {
+            handedOver = this.claimAndPoll(organization, organizationsMessage, retryDelayInSeconds, messageId, checkpointService,
+                    nodeClient, nodoLimiter, timeBudget, stationPoll, flight, pipeline, summary, logger);
+        } catch (RuntimeException | InterruptedException e) {
+            flight.fail();
+            throw e;
+        } finally {
+            // else landed by the storing stage
+            if (!handedOver) {
+                this.landFlight(organization, flight, organizationsMessage, checkpointService, logger);
+            }
+        }
+    }
+
+    /**
+     * @return true if the flows list has been handed over to the storing stage
+     */
+    private boolean claimAndPoll(String organization, OrganizationsMessage organizationsMessage, Integer retryDelayInSeconds,
+                                 String messageId, CheckpointService checkpointService, NodoChiediElencoFlussi nodeClient,
+                                 AdaptiveConcurrencyLimiter nodoLimiter, TimeBudget timeBudget, PolledOrganization stationPoll, SingleFlight.Flight<OrganizationsMessage> flight,
+                                 BoundedPipeline<PolledOrganization> pipeline, RunSummary summary, Logger logger) throws InterruptedException {
+        if (checkpointService != null && !checkpointService.claim(organization, messageId, organizationsMessage.getEpoch())) {
+            logger.log(Level.INFO, () -> "[RetrieveFlows][Checkpoint] idPa: " + organization + " already processed in the current tick");
+            Metrics.increment("checkpoint.skipped.duplicate");
+            return false;
+        }
+        if (stationPoll != null) {
+            // flows list already returned by the call of its station
+            pipeline.submit(new PolledOrganization(organization, stationPoll.elencoFlussi, stationPoll.polledTime, flight));
+            return true;
+        }
+        try {
+            logger.log(Level.INFO, () -> "[RetrieveFlows][Config-Cache][Start] idPa: " + organization);
+            List<Station> stations = this.getPAStations(organization);
+            if (stations.isEmpty()) {
+                throw new AppException(String.format("No data present in api config database for PA %s", organization));
+            }
+            // the next stations of the PA are tried on a fault or a transport error
+            StationSelector stationSelector = this.getStationSelectorInstance();
+            List<Station> candidates = stationSelector.order(organization, stations);
+            for (int attempt = 0; attempt < candidates.size(); attempt++) {
+                Station stationBroker = candidates.get(attempt);
+                boolean lastCandidate = attempt == candidates.size() - 1;
+                String idStation = stationBroker.getStationCode();
+                String idBroker = stationBroker.getBrokerCode();
+                String stationPassword = stationBroker.getPassword();
+                logger.log(Level.INFO, () -> "[RetrieveFlows][NodoChiediElencoFlussiRendicontazione] idPa: " + organization + ", idIntermediario: " + idBroker + ", idStazione: " + idStation );
+                // call NODO dei pagamenti
+                long polledTime = System.currentTimeMillis();
+                long latency;
+                try {
+                    if (!this.callNodo(nodeClient, nodoLimiter, timeBudget, organization, idBroker, idStation, stationPassword)) {
+                        logger.log(Level.WARNING, () -> "[RetrieveFlows] idPa: " + organization + " not polled, Nodo limiter saturated");
+                        if (!this.scheduleRetry(organization, organizationsMessage, RetryPolicy.FailureClass.SATURATED,
+                                retryDelayInSeconds, checkpointService, summary, logger)) {
+                            flight.fail();
+                        }
+                        break;
+                    }
+                } catch (ClientTransportException e) {
+                    stationSelector.recordFailure(idStation, System.currentTimeMillis());
+                    if (lastCandidate) {
+                        throw e;
+                    }
+                    logger.log(Level.WARNING, () -> "[RetrieveFlows] idPa: " + organization + ", idStazione: " + idStation + " connection failed, trying the next station");
+                    Metrics.increment("station.failover.transport");
+                    continue;
+                } finally {
+                    latency = System.currentTimeMillis() - polledTime;
+                    summary.recordNodoCall(latency);
+                }
+
+                // retrieve result
+                FaultBean faultBean = nodeClient.getNodoChiediElencoFlussiRendicontazioneFault();
+
+                TipoElencoFlussiRendicontazione elencoFlussi = nodeClient.getNodoChiediElencoFlussiRendicontazione();
+
+                if (faultBean != null) {
+                    logger.log(Level.WARNING, () -> "[RetrieveFlows] faultBean CODE " + faultBean.getFaultCode() + " DESC " + faultBean.getDescription());
+                    summary.increment(RunSummary.Counter.NODO_FAULTS);
+                    stationSelector.recordFailure(idStation, System.currentTimeMillis());
+                    if (!lastCandidate) {
+                        Metrics.increment("station.failover.fault");
+                        continue;
+                    }
+                    if (!this.scheduleRetry(organization, organizationsMessage, RetryPolicy.classify(faultBean, this.retryableFaultCodes),
+                            retryDelayInSeconds, checkpointService, summary, logger)) {
+                        flight.fail();
+                    }
+                    break;
+                }
+                stationSelector.recordSuccess(idStation, latency);
+                if (elencoFlussi != null) {
+                    logger.log(Level.INFO, () -> "[RetrieveFlows] elencoFlussi PA " + organization + ", idIntermediario: " + idBroker + ", idStazione: " + idStation + " TotRestituiti " + elencoFlussi.getTotRestituiti());
+                    // the checkpoint is completed by the storing stage
+                    pipeline.submit(new PolledOrganization(organization, elencoFlussi, polledTime, flight));
+                    return true;
+                }
+                break;
+            }
+        } catch (ClientTransportException e) {
+            logger.log(Level.SEVERE, () -> "[NODO Connection down] Organization: [" + organization +"] Caused by: " + e.getCause() + " Message: " + e.getMessage() + " Stack trace: " + Arrays.toString(e.getStackTrace()));
+            if (!this.scheduleRetry(organization, organizationsMessage, RetryPolicy.classify(e), retryDelayInSeconds, checkpointService, summary, logger)) {
+                flight.fail();
+            }
+        } catch (AppException e) {
+            logger.log(Level.SEVERE, () -> "[RetrieveFlows] [AppException] Organization: [" + organization + "] Message: " + e.getMessage());
+        }
+
+        if (checkpointService != null) {
+            checkpointService.complete(organization, messageId);
+        }
+        return false;
+    }
+
+    /**
+     * Calls Nodo once for each station shared by more organizations of the message, without the domain filter, and
+     * splits the returned flows list to the organizations. The organizations of a station are polled one by one
+     * if the station call fails or any of the returned flows cannot be attributed.
+     *
+     * @return the flows list of the organizations polled through their station
+     */
+    private Map<String, PolledOrganization> pollStations(String[] organizations, Set<String> completedOrganizations,
+                                                         NodoChiediElencoFlussi nodeClient, AdaptiveConcurrencyLimiter nodoLimiter,
+                                                         TimeBudget timeBudget, RunSummary summary, Logger logger) {
+        Map<String, List<String>> organizationsByStation = new LinkedHashMap<>();
+        for (String organization : organizations) {
+            if (!completedOrganizations.contains(organization)) {
+                this.getPAStationIntermediario(organization).ifPresent(station ->
+                        organizationsByStation.computeIfAbsent(station.getStationCode(), code -> new ArrayList<>()).add(organization));
+            }
+        }
+
+        Map<String, PolledOrganization> stationPolls = new HashMap<>();
+        organizationsByStation.forEach((idStation, stationOrganizations) -> {
+            if (stationOrganizations.size() < 2) {
+                return;
+            }
+            // the organizations of the stations not called are polled, or handed off, one by one
+            if (!timeBudget.canStart(System.currentTimeMillis())) {
+                Metrics.increment("station.polling.skipped");
+                return;
+            }
+            Station station = this.getPAStationIntermediario(stationOrganizations.get(0)).orElseThrow();
+            long polledTime = System.currentTimeMillis();
+            try {
+                logger.log(Level.INFO, () -> "[RetrieveFlows][NodoChiediElencoFlussiRendicontazione] idIntermediario: " + station.getBrokerCode()
+                        + ", idStazione: " + idStation + " for " + stationOrganizations.size() + " organizations");
+                boolean called;
+                try {
+                    called = this.callNodo(nodeClient, nodoLimiter, timeBudget, null, station.getBrokerCode(), idStation, station.getPassword());
+                } finally {
+                    summary.recordNodoCall(System.currentTimeMillis() - polledTime);
+                    timeBudget.recordUnit(System.currentTimeMillis() - polledTime);
+                }
+                if (!called) {
+                    logger.log(Level.WARNING, () -> "[RetrieveFlows] idStazione: " + idStation + " not called, Nodo limiter saturated, organizations polled one by one");
+                    Metrics.increment("station.polling.fallback");
+                    return;
+                }
+                FaultBean faultBean = nodeClient.getNodoChiediElencoFlussiRendicontazioneFault();
+                TipoElencoFlussiRendicontazione elencoFlussi = nodeClient.getNodoChiediElencoFlussiRendicontazione();
+                Map<String, TipoElencoFlussiRendicontazione> elencoByOrganization = faultBean == null && elencoFlussi != null
+                        ? ElencoDemultiplexer.demultiplex(elencoFlussi, new HashSet<>(stationOrganizations), this.flowIdDomainPattern)
+                        : null;
+                if (elencoByOrganization == null) {
+                    logger.log(Level.WARNING, () -> "[RetrieveFlows] idStazione: " + idStation + (faultBean != null
+                            ? " faultBean CODE " + faultBean.getFaultCode() : " flows not attributable") + ", organizations polled one by one");
+                    Metrics.increment("station.polling.fallback");
+                    return;
+                }
+                elencoByOrganization.forEach((organization, organizationElenco) ->
+                        stationPolls.put(organization, new PolledOrganization(organization, organizationElenco, polledTime, null)));
+                Metrics.increment("station.polling.calls");
+                Metrics.add("station.polling.saved.calls", stationOrganizations.size() - 1L);
+            } catch (ClientTransportException e) {
+                logger.log(Level.WARNING, () -> "[RetrieveFlows] idStazione: " + idStation + " call failed: " + e.getMessage() + ", organizations polled one by one");
+                Metrics.increment("station.polling.fallback");
+            }
+        });
+        return stationPolls;
+    }
+
+    /**
+     * Calls Nodo within the limit of the calls in flight of the worker, if any. The limit is cut by the timeouts, the
+     * transport errors and the retryable faults, which Nodo returns when overloaded; the other faults leave it unchanged.
+     * The calls of an invocation are sequential, the limit only bounds them together with the other invocations.
+     * A call waits for the limiter at most the time left by the time budget.
+     *
+     * @return false if the call could not be started within the time budget
+     */
+    private boolean callNodo(NodoChiediElencoFlussi nodeClient, AdaptiveConcurrencyLimiter nodoLimiter, TimeBudget timeBudget,
+                             String idPa, String idBroker, String idStation, String stationPassword) throws ClientTransportException {
+        if (nodoLimiter == null) {
+            long start = System.currentTimeMillis();
+            nodeClient.nodoChiediElencoFlussiRendicontazione(idPa, idBroker, idStation, stationPassword);
+            recordNodoResponse(start);
+            return true;
+        }
+        try {
+            if (!nodoLimiter.tryAcquire(timeBudget.getDeadline() - System.currentTimeMillis())) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(e), e);
+        }
+        long start = System.currentTimeMillis();
+        AdaptiveConcurrencyLimiter.Outcome outcome = AdaptiveConcurrencyLimiter.Outcome.IGNORED;
+        try {
+            nodeClient.nodoChiediElencoFlussiRendicontazione(idPa, idBroker, idStation, stationPassword);
+            recordNodoResponse(start);
+            FaultBean faultBean = nodeClient.getNodoChiediElencoFlussiRendicontazioneFault();
+            if (faultBean == null) {
+                outcome = AdaptiveConcurrencyLimiter.Outcome.SUCCESS;
+            } else if (RetryPolicy.classify(faultBean, this.retryableFaultCodes).isRetryable()) {
+                outcome = AdaptiveConcurrencyLimiter.Outcome.DROPPED;
+            }
+            return true;
+        } catch (ClientTransportException e) {
+            if (RetryPolicy.classify(e) != RetryPolicy.FailureClass.UNKNOWN_HOST) {
+                outcome = AdaptiveConcurrencyLimiter.Outcome.DROPPED;
+            }
+            throw e;
+        } finally {
+            nodoLimiter.release(outcome, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Publishes the last Nodo response, a fault included, read by the readiness probe as the warm state of the client.
+     */
+    private static void recordNodoResponse(long start) {
+        long now = System.currentTimeMillis();
+        Metrics.gauge("nodo.last.response.epoch.ms", now);
+        Metrics.gauge("nodo.last.latency.ms", now - start);
+    }
+
+    /**
+     * Re-enqueues the organization with an exponential, jittered delay if the failure is transient.
+     *
+     * @param retryDelayInSeconds min delay required by the backpressure, null if none
+     * @return false if the failure is transient but the organization has not been enqueued again
+     */
+    private boolean scheduleRetry(String organization, OrganizationsMessage organizationsMessage, RetryPolicy.FailureClass failureClass,
+                               Integer retryDelayInSeconds, CheckpointService checkpointService, RunSummary summary, Logger logger) {
+        String failure = failureClass.name().toLowerCase(Locale.ROOT);
+        if (!failureClass.isRetryable()) {
+            Metrics.increment("retry.dropped." + failure);
+            return true;
+        }
+        int retries = organizationsMessage.getRetry() != null ? organizationsMessage.getRetry() : 0;
+        RetryPolicy retryPolicy = this.getRetryPolicyInstance();
+        if (!retryPolicy.shouldRetry(failureClass, retries)) {
+            logger.log(Level.SEVERE, () -> "[RetrieveFlows] Max retry exceeded for organization " + organization + " failed by " + failureClass);
+            Metrics.increment("retry.exhausted." + failure);
+            return false;
+        }
+        if (checkpointService != null) {
+            // the retry message must be able to claim the organization again
+            checkpointService.release(organization, organizationsMessage.getEpoch());
+        }
+        int delay = retryPolicy.backoff(retries);
+        if (retryDelayInSeconds != null) {
+            delay = Math.max(delay, retryDelayInSeconds);
+        }
+        // the backoff fits the queue, only a longer delay required by the backpressure is dropped
+        if (!this.getOrganizationsServiceInstance(logger).retryToOrganizationsQueue(organization, retries + 1, delay, organizationsMessage.getEpoch())) {
+            return false;
+        }
+        Metrics.increment("retry.scheduled." + failure);
+        summary.increment(RunSummary.Counter.RETRIES);
+        Metrics.record("retry.delay.sec", delay);
+        int retryDelay = delay;
+        logger.log(Level.WARNING, () -> "[RetrieveFlows] Retry " + (retries + 1) + " of organization " + organization + " failed by " + failureClass + " in " + retryDelay + " seconds");
+        return true;
+    }
+
+    /**
+     * Lands the poll of the organization; if it failed without being retried, the organization is enqueued again for
+     * each message that joined it, with the retry and the epoch of that message.
+     */
+    private void landFlight(String organization, SingleFlight.Flight<OrganizationsMessage> flight, OrganizationsMessage organizationsMessage,
+                            CheckpointService checkpointService, Logger logger) {
+        List<OrganizationsMessage> joiners = POLLS.land(flight);
+        if (!flight.isFailed() || joiners.isEmpty()) {
+            return;
+        }
+        if (checkpointService != null) {
+            // the joiners of the same tick must be able to claim the organization
+            checkpointService.release(organization, organizationsMessage.getEpoch());
+        }
+        logger.log(Level.WARNING, () -> "[RetrieveFlows] idPa: " + organization + " poll failed, enqueued again for " + joiners.size() + " joined messages");
+        Metrics.add("organizations.joined.rescheduled", joiners.size());
+        for (OrganizationsMessage joiner : joiners) {
+            this.getOrganizationsServiceInstance(logger).addToOrganizationsQueue(List.of(organization), joiner.getRetry(), 0, joiner.getEpoch());
+        }
+    }
+
+    /**
+     * @return the number of flows not stored by a previous poll
+     */
+    private int storeFlows(TipoElencoFlussiRendicontazione elencoFlussi, String organization, FlowsService flowsService,
+                            ElencoFingerprintService fingerprintService, RunSummary summary, Logger logger) {
+        Metrics.increment("elenco.polls");
+        String fingerprint = null;
+        if (fingerprintService != null) {
+            fingerprint = ElencoFingerprintService.fingerprint(elencoFlussi.getIdRendicontazione());
+            if (fingerprintService.isUnchanged(organization, fingerprint)) {
+                logger.log(Level.INFO, () -> "[RetrieveFlows] elencoFlussi PA " + organization + " unchanged since the last poll");
+                Metrics.increment("elenco.unchanged");
+                return 0;
+            }
+        }
+
+        FlowsProcessingResult result = flowsService.flowsProcessing(elencoFlussi.getIdRendicontazione(), organization);
+        summary.addFlowsProcessingResult(result);
+
+        // a list not completely stored must be processed again at the next poll
+        if (fingerprintService != null && result.isComplete()) {
+            fingerprintService.store(organization, fingerprint);
+        }
+        return result.getNewFlows();
     }
 
     public ApiConfigClient getCacheClientInstance() {
@@ -116,36 +631,145 @@ public class RetrieveFlows {
     }
 
     public NodoChiediElencoFlussi getNodeClientInstance(Logger logger) {
+        if (this.nodoHedgePercentile > 0) {
+            return new HedgedNodoChiediElencoFlussi(() -> this.newNodeClient(logger), this.nodoHedgePercentile, this.nodoHedgeMaxRate,
+                    this.getNodoLimiterInstance(), logger);
+        }
+        return this.newNodeClient(logger);
+    }
+
+    private NodoChiediElencoFlussi newNodeClient(Logger logger) {
+        if ("STAX".equalsIgnoreCase(this.nodoClient)) {
+            try {
+                URI endpoint = this.nodoUrl != null ? URI.create(this.nodoUrl) : StaxNodoChiediElencoFlussi.getWsdlEndpoint();
+                return new StaxNodoChiediElencoFlussi(endpoint, Duration.ofSeconds(this.nodoTimeoutInSeconds), logger);
+            } catch (IOException | XMLStreamException e) {
+                logger.log(Level.WARNING, () -> "[RetrieveFlows] StAX Nodo client not available, JAX-WS client used: " + e.getMessage());
+            }
+        }
         return new NodoChiediElencoFlussi(logger);
     }
 
-    public FlowsService getFlowsServiceInstance(Logger logger) {
-        return new FlowsService(this.storageConnectionString, this.flowsTable, this.flowsQueue, logger);
+    public FlowsService getFlowsServiceInstance(TimeBudget timeBudget, AdaptiveConcurrencyLimiter nodoLimiter, Logger logger) {
+        return new FlowsService(this.storageConnectionString, this.flowsTable, this.flowsQueue,
+                this.getFlowsPrefetcherInstance(timeBudget, nodoLimiter, logger), logger);
+    }
+
+    /**
+     * @return the prefetcher of the new flows, null if not configured or if the outbox is disabled: a flow is
+     * prefetched after its batch is stored, and only the outbox keeps its notification if the invocation dies meanwhile
+     */
+    public FlowsPrefetcher getFlowsPrefetcherInstance(TimeBudget timeBudget, AdaptiveConcurrencyLimiter nodoLimiter, Logger logger) {
+        if (this.prefetchContainer == null) {
+            return null;
+        }
+        if (!this.outboxEnabled) {
+            logger.log(Level.WARNING, "[RetrieveFlows] Flows not prefetched: FLOWS_PREFETCH_CONTAINER requires FLOWS_OUTBOX_ENABLED");
+            return null;
+        }
+        return new FlowsPrefetcher(this.storageConnectionString, this.prefetchContainer, this.prefetchParallelism,
+                this::getPAStationIntermediario, NodoChiediFlusso::new, timeBudget.getDeadline(), nodoLimiter, logger);
     }
 
     public OrganizationsService getOrganizationsServiceInstance(Logger logger) {
         return new OrganizationsService(this.storageConnectionString, this.organizationsTable, this.organizationsQueue, Integer.parseInt(timeToLiveInSeconds), Integer.parseInt(initialVisibilityDelayInSeconds), logger);
     }
 
+    public RunSummaryService getRunSummaryServiceInstance(Logger logger) {
+        return new RunSummaryService(this.storageConnectionString, this.runsTable, logger);
+    }
+
+    public AdaptiveConcurrencyLimiter getNodoLimiterInstance() {
+        return this.nodoMaxConcurrency > 0
+                ? AdaptiveConcurrencyLimiter.of("nodo", Math.max(1, this.nodoMaxConcurrency / 4), this.nodoMaxConcurrency)
+                : null;
+    }
+
+    public StationSelector getStationSelectorInstance() {
+        return StationSelector.of(this.stationSelectionStrategy);
+    }
+
+    public RetryPolicy getRetryPolicyInstance() {
+        return new RetryPolicy(Integer.parseInt(maxRetryQueuing), Integer.parseInt(initialVisibilityDelayInSeconds), Integer.parseInt(timeToLiveInSeconds),
+                OrganizationsService.getProcessingMarginInSeconds());
+    }
+
+    public BackpressureController getBackpressureControllerInstance(Logger logger) {
+        return new BackpressureController(this.storageConnectionString, this.flowsQueue, this.organizationsQueue, logger);
+    }
+
+    public ElencoFingerprintService getElencoFingerprintServiceInstance(Logger logger) {
+        return this.elencoFingerprintEnabled
+                ? new ElencoFingerprintService(this.storageConnectionString, this.organizationsTable, logger)
+                : null;
+    }
+
+    public ActivityService getActivityServiceInstance(Logger logger) {
+        return this.adaptivePollingEnabled || this.coalescingEnabled
+                ? new ActivityService(this.storageConnectionString, this.organizationsTable, logger)
+                : null;
+    }
+
+    public CacheSnapshotService getCacheSnapshotServiceInstance(Logger logger) {
+        if (this.cacheSnapshotContainer == null) {
+            return null;
+        }
+        if (this.cacheSnapshotKey == null) {
+            logger.log(Level.WARNING, "[RetrieveFlows][Config-Cache] cache snapshot disabled: CACHE_SNAPSHOT_CONTAINER requires CACHE_SNAPSHOT_KEY");
+            return null;
+        }
+        try {
+            SecretKey key = new SecretKeySpec(Base64.getDecoder().decode(this.cacheSnapshotKey), "AES");
+            return new CacheSnapshotService(this.storageConnectionString, this.cacheSnapshotContainer, key);
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.WARNING, () -> "[RetrieveFlows][Config-Cache] cache snapshot disabled, invalid CACHE_SNAPSHOT_KEY: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public CheckpointService getCheckpointServiceInstance(Logger logger) {
+        return this.checkpointsTable != null
+                ? new CheckpointService(this.storageConnectionString, this.checkpointsTable, this.checkpointWindowInSeconds, logger)
+                : null;
+    }
+
+    public List<Station> getPAStations(String idPa) {
+        return cacheContent.getStations(idPa);
+    }
+
     public Optional<Station> getPAStationIntermediario(String idPa) {
-        List<String> stationPa = getStations(idPa);
-        return cacheContent.getStations().stream()
-                .filter(station -> stationPa.contains(station.getStationCode()))
-                .filter(Station::getEnabled)
-                .findFirst();
+        return cacheContent.getStations(idPa).stream().findFirst();
     }
 
     public List<String> getStations(String idPa) {
-        return cacheContent.getCreditorInstitutionStations().stream()
-                .filter(creditorInstitutionStation -> creditorInstitutionStation.getCreditorInstitutionCode().equals(idPa))
-                .map(CreditorInstitutionStation::getStationCode).collect(Collectors.toList());
+        return cacheContent.getStations(idPa).stream()
+                .map(Station::getStationCode).collect(Collectors.toList());
     }
 
     public synchronized void setCache(ApiConfigClient cacheClient, Logger logger) {
         try {
             if(cacheContent == null) {
-                cacheContent = cacheClient.getCache();
-                cacheContent.setRetrieveDate(LocalDate.now());
+                long start = System.currentTimeMillis();
+                StationCache snapshot = this.readCacheSnapshot(logger);
+                if (snapshot != null) {
+                    cacheContent = snapshot;
+                    // replaced by the refresh, running right after
+                    publishCacheGauges(snapshot, start);
+                    // the snapshot is served while the up-to-date cache is downloaded
+                    CompletableFuture.runAsync(() -> this.refreshCache(cacheClient, logger));
+                } else {
+                    StationCache cache = this.buildStationCache(cacheClient.getCache(), logger);
+                    cacheContent = cache;
+                    this.writeCacheSnapshot(cache, logger);
+                }
+                long coldStart = System.currentTimeMillis() - start;
+                Metrics.gauge("cache.coldstart.ms", coldStart);
+                // the cold start served by the snapshot, or by the api-config download on a snapshot miss
+                Metrics.gauge(snapshot != null ? "cache.coldstart.snapshot.hit.ms" : "cache.coldstart.snapshot.miss.ms", coldStart);
+                Metrics.increment(snapshot != null ? "cache.snapshot.hits" : "cache.snapshot.misses");
+                logger.log(Level.INFO, () -> "[RetrieveFlows][Config-Cache] cache loaded " + (snapshot != null ? "from snapshot " : "") + "in " + coldStart + " ms");
+            } else if (cacheContent.getRetrieveDate() != null && cacheContent.getRetrieveDate().isBefore(LocalDate.now())) {
+                this.refreshCache(cacheClient, logger);
             }
         } catch (Cache4XXException | Cache5XXException e) {
             cacheContent = null;
@@ -159,4 +783,86 @@ public class RetrieveFlows {
             logger.log(Level.SEVERE, e.getMessage());
         }
     }
+
+    private void refreshCache(ApiConfigClient cacheClient, Logger logger) {
+        try {
+            CacheResponse cacheResponse = cacheClient.getCacheIfModified();
+            if (cacheResponse == null) {
+                cacheContent.setRetrieveDate(LocalDate.now());
+                Metrics.gauge("cache.refreshed.epoch.ms", System.currentTimeMillis());
+                Metrics.increment("cache.refresh.not.modified");
+                logger.log(Level.INFO, "[RetrieveFlows][Config-Cache] cache not modified");
+                return;
+            }
+            StationCache cache = this.buildStationCache(cacheResponse, logger);
+            cacheContent = cache;
+            this.writeCacheSnapshot(cache, logger);
+            logger.log(Level.INFO, "[RetrieveFlows][Config-Cache] cache refreshed");
+        } catch (Exception e) {
+            // keep on serving the snapshot
+            logger.log(Level.WARNING, () -> "[RetrieveFlows][Config-Cache] cache refresh failed: " + e.getMessage());
+        }
+    }
+
+    private StationCache buildStationCache(CacheResponse cacheResponse, Logger logger) {
+        StationCache cache = StationCache.from(cacheResponse);
+        cache.setRetrieveDate(LocalDate.now());
+        publishCacheGauges(cache, System.currentTimeMillis());
+        logger.log(Level.INFO, () -> "[RetrieveFlows][Config-Cache] " + cache.getCreditorInstitutionsSize()
+                + " creditor institutions, " + cache.getStationsSize() + " enabled stations");
+        return cache;
+    }
+
+    /**
+     * Publishes the size of the cache and the time it was downloaded, read by the readiness probe.
+     */
+    private static void publishCacheGauges(StationCache cache, long refreshedTime) {
+        Metrics.gauge("cache.refreshed.epoch.ms", refreshedTime);
+        Metrics.gauge("cache.creditor.institutions", cache.getCreditorInstitutionsSize());
+        Metrics.gauge("cache.stations", cache.getStationsSize());
+    }
+
+    private StationCache readCacheSnapshot(Logger logger) {
+        CacheSnapshotService snapshotService = this.getCacheSnapshotServiceInstance(logger);
+        if (snapshotService == null) {
+            return null;
+        }
+        try {
+            return snapshotService.read(this.cacheSnapshotMaxAgeInSeconds * 1000);
+        } catch (URISyntaxException | InvalidKeyException | StorageException | IOException e) {
+            logger.log(Level.WARNING, () -> "[RetrieveFlows][Config-Cache] cache snapshot not loaded: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeCacheSnapshot(StationCache cache, Logger logger) {
+        CacheSnapshotService snapshotService = this.getCacheSnapshotServiceInstance(logger);
+        if (snapshotService == null) {
+            return;
+        }
+        try {
+            snapshotService.write(cache);
+        } catch (URISyntaxException | InvalidKeyException | StorageException | IOException e) {
+            logger.log(Level.WARNING, () -> "[RetrieveFlows][Config-Cache] cache snapshot not written: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Flows list returned by Nodo, handed over from the polling stage to the storing stage.
+     */
+    private static final class PolledOrganization {
+        private final String organization;
+        private final TipoElencoFlussiRendicontazione elencoFlussi;
+        private final long polledTime;
+        // landed when the flows list is stored
+        private final SingleFlight.Flight<OrganizationsMessage> flight;
+
+        private PolledOrganization(String organization, TipoElencoFlussiRendicontazione elencoFlussi, long polledTime,
+                                   SingleFlight.Flight<OrganizationsMessage> flight) {
+            this.organization = organization;
+            this.elencoFlussi = elencoFlussi;
+            this.polledTime = polledTime;
+            this.flight = flight;
+        }
+    }
 }
@@ -3,12 +3,23 @@ package it.gov.pagopa.reporting;
 import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.TimerTrigger;
+import it.gov.pagopa.reporting.entity.OrganizationEntity;
+import it.gov.pagopa.reporting.entity.OrganizationStateEntity;
+import it.gov.pagopa.reporting.models.RunSummary;
+import it.gov.pagopa.reporting.service.ActivityService;
+import it.gov.pagopa.reporting.service.BackpressureController;
+import it.gov.pagopa.reporting.service.OrganizationsRoster;
 import it.gov.pagopa.reporting.service.OrganizationsService;
+import it.gov.pagopa.reporting.service.RunSummaryService;
+import it.gov.pagopa.reporting.utils.Metrics;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * Azure Functions with Timer trigger.
@@ -18,8 +29,23 @@ public class RetrieveOrganizations {
     private final String storageConnectionString = System.getenv("FLOW_SA_CONNECTION_STRING");
     private final String organizationsTable = System.getenv("ORGANIZATIONS_TABLE");
     private final String organizationsQueue = System.getenv("ORGANIZATIONS_QUEUE");
+    private final String flowsQueue = System.getenv("FLOWS_QUEUE");
+    // run summaries are only logged when not set
+    private final String runsTable = System.getenv("RUNS_TABLE");
     private final String timeToLiveInSeconds = System.getenv("QUEUE_RETENTION_SEC");
     private final String initialVisibilityDelayInSeconds = System.getenv("QUEUE_DELAY_SEC");
+    // adaptive polling is disabled when the max staleness is not set
+    private final String pollingMaxStalenessInSeconds = System.getenv("POLLING_MAX_STALENESS_SEC");
+    private final double pollingHotScore = System.getenv("POLLING_HOT_SCORE") != null
+            ? Double.parseDouble(System.getenv("POLLING_HOT_SCORE")) : 0.5;
+    private final long pollingTickInSeconds = System.getenv("POLLING_TICK_SEC") != null
+            ? Long.parseLong(System.getenv("POLLING_TICK_SEC")) : 0;
+    // the in-memory roster is disabled when the full sync interval is not set
+    private final String organizationsFullSyncInSeconds = System.getenv("ORGANIZATIONS_FULL_SYNC_SEC");
+
+    private static final OrganizationsRoster<OrganizationEntity> ROSTER = new OrganizationsRoster<>("organizations");
+    // polling states, changed at every poll of their organization only
+    private static final OrganizationsRoster<OrganizationStateEntity> STATES = new OrganizationsRoster<>("organizations.states");
 
     /**
      * This function will be invoked periodically according to the specified
@@ -36,18 +62,84 @@ public class RetrieveOrganizations {
         Logger logger = context.getLogger();
 
         logger.log(Level.INFO, () -> "Reporting Batch Trigger function executed at: " + LocalDateTime.now());
+        // schedule epoch of the tick, carried by the organizations messages
+        long epoch = System.currentTimeMillis();
+        RunSummary summary = new RunSummary("ReportingBatchFunction", context.getInvocationId(), epoch, epoch);
+        RunSummaryService runSummaryService = this.getRunSummaryServiceInstance(logger);
+
+        // the flows queue consumer does not keep up
+        BackpressureController backpressureController = this.getBackpressureControllerInstance(logger);
+        BackpressureController.Decision decision = backpressureController.evaluate();
+        if (decision == BackpressureController.Decision.SKIP) {
+            logger.log(Level.WARNING, "[RetrieveOrganizations] Scheduling round skipped by backpressure");
+            summary.increment(RunSummary.Counter.SKIPPED);
+            runSummaryService.publish(summary);
+            Metrics.log(logger);
+            return;
+        }
 
         // update organization list to flows table
         OrganizationsService organizationsService = this.getOrganizationsServiceInstance(logger);
-        List<String> organizationListToProcess = organizationsService.getOrganizations();
+        List<String> organizationListToProcess;
+        if (this.pollingMaxStalenessInSeconds == null && this.organizationsFullSyncInSeconds == null) {
+            organizationListToProcess = organizationsService.getOrganizations();
+            summary.add(RunSummary.Counter.ORGANIZATIONS, organizationListToProcess.size());
+        } else {
+            List<OrganizationEntity> organizations = this.organizationsFullSyncInSeconds != null
+                    ? ROSTER.sync(organizationsService::queryOrganizationEntities, Long.parseLong(this.organizationsFullSyncInSeconds) * 1000, logger)
+                    : organizationsService.getOrganizationEntities();
+            summary.add(RunSummary.Counter.ORGANIZATIONS, organizations.size());
+            organizationListToProcess = this.pollingMaxStalenessInSeconds != null
+                    ? this.getDueOrganizations(organizations, this.getOrganizationStates(organizationsService, logger), logger)
+                    : organizations.stream().map(OrganizationEntity::getRowKey).collect(Collectors.toList());
+        }
 
         // add to organizations queue
-        organizationsService.addToOrganizationsQueue(organizationListToProcess);
+        int delay = 0;
+        if (decision == BackpressureController.Decision.DELAY) {
+            delay = backpressureController.stretchDelay(0);
+            int stretchedDelay = delay;
+            logger.log(Level.WARNING, () -> "[RetrieveOrganizations] Organizations delayed by backpressure of " + stretchedDelay + " seconds");
+        }
+        int messages = organizationsService.addToOrganizationsQueue(organizationListToProcess, 0, delay, epoch);
+        summary.add(RunSummary.Counter.ENQUEUED_ORGANIZATIONS, organizationListToProcess.size());
+        summary.add(RunSummary.Counter.MESSAGES, messages);
+
+        runSummaryService.publish(summary);
+        Metrics.log(logger);
+    }
+
+    private Map<String, OrganizationStateEntity> getOrganizationStates(OrganizationsService organizationsService, Logger logger) {
+        List<OrganizationStateEntity> states = this.organizationsFullSyncInSeconds != null
+                ? STATES.sync(organizationsService::queryOrganizationStates, Long.parseLong(this.organizationsFullSyncInSeconds) * 1000, logger)
+                : organizationsService.getOrganizationStates();
+        return states.stream().collect(Collectors.toMap(OrganizationStateEntity::getRowKey, Function.identity()));
+    }
 
+    private List<String> getDueOrganizations(List<OrganizationEntity> organizations, Map<String, OrganizationStateEntity> states, Logger logger) {
+        long now = System.currentTimeMillis();
+        long maxStalenessMillis = Long.parseLong(this.pollingMaxStalenessInSeconds) * 1000;
+        List<String> due = organizations.stream()
+                .filter(organization -> ActivityService.isDue(states.get(organization.getRowKey()), now, maxStalenessMillis,
+                        this.pollingHotScore, this.pollingTickInSeconds * 1000))
+                .map(OrganizationEntity::getRowKey)
+                .collect(Collectors.toList());
+        Metrics.add("polling.organizations.due", due.size());
+        Metrics.add("polling.organizations.deferred", organizations.size() - (long) due.size());
+        logger.log(Level.INFO, () -> "[RetrieveOrganizations] " + due.size() + " of " + organizations.size() + " organizations due for polling");
+        return due;
     }
 
     public OrganizationsService getOrganizationsServiceInstance(Logger logger) {
         return new OrganizationsService(this.storageConnectionString, this.organizationsTable, this.organizationsQueue, Integer.parseInt(timeToLiveInSeconds), Integer.parseInt(initialVisibilityDelayInSeconds), logger);
     }
 
+    public RunSummaryService getRunSummaryServiceInstance(Logger logger) {
+        return new RunSummaryService(this.storageConnectionString, this.runsTable, logger);
+    }
+
+    public BackpressureController getBackpressureControllerInstance(Logger logger) {
+        return new BackpressureController(this.storageConnectionString, this.flowsQueue, this.organizationsQueue, logger);
+    }
+
 }
@@ -2,7 +2,7 @@ package it.gov.pagopa.reporting.client;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.api.client.http.*;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.gson.GsonFactory;
@@ -13,10 +13,15 @@ import it.gov.pagopa.reporting.exception.Cache5XXException;
 import it.gov.pagopa.reporting.models.cache.CacheResponse;
 import it.gov.pagopa.reporting.models.cache.CreditorInstitutionStation;
 import it.gov.pagopa.reporting.models.cache.Station;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.net.ProxySelector;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -24,14 +29,31 @@ import java.util.Map;
 
 public class ApiConfigClient {
 
-    private static ApiConfigClient instance = null;
-
-    private final HttpTransport httpTransport = new NetHttpTransport();
     private final JsonFactory jsonFactory = new GsonFactory();
     private final String apiConfigCacheHost = System.getenv("CACHE_CLIENT_HOST"); // es: https://api.xxx.platform.pagopa.it
     private final String getCacheDetails =
             System.getenv("CACHE_PATH") != null ? System.getenv("CACHE_PATH") : "/cache?keys=creditorInstitutionStations,stations";
     private final String apiKey = System.getenv("CACHE_API_KEY");
+    private final int connectTimeoutMillis =
+            System.getenv("CACHE_CONNECT_TIMEOUT_MILLIS") != null ? Integer.parseInt(System.getenv("CACHE_CONNECT_TIMEOUT_MILLIS")) : 5000;
+    private final int readTimeoutMillis =
+            System.getenv("CACHE_READ_TIMEOUT_MILLIS") != null ? Integer.parseInt(System.getenv("CACHE_READ_TIMEOUT_MILLIS")) : 60000;
+    private final int maxConnections =
+            System.getenv("CACHE_MAX_CONNECTIONS") != null ? Integer.parseInt(System.getenv("CACHE_MAX_CONNECTIONS")) : 4;
+
+    // pooled keep-alive connections, shared by the requests of the worker
+    private final HttpTransport httpTransport = this.buildHttpTransport();
+    private final HttpRequestFactory requestFactory = httpTransport.createRequestFactory(
+            (HttpRequest request) -> {
+                request.setParser(new JsonObjectParser(jsonFactory));
+                request.setConnectTimeout(connectTimeoutMillis);
+                request.setReadTimeout(readTimeoutMillis);
+            }
+    );
+
+    // validators of the last cache downloaded, for the conditional requests
+    private volatile String eTag;
+    private volatile String lastModified;
 
 
     // Retry ExponentialBackOff config
@@ -48,11 +70,12 @@ public class ApiConfigClient {
     private final double randomizationFactor  =
             System.getenv("RANDOMIZATION_FACTOR") != null ? Double.parseDouble(System.getenv("RANDOMIZATION_FACTOR")) : 0.5;
 
+    private static final class InstanceHolder {
+        private static final ApiConfigClient INSTANCE = new ApiConfigClient();
+    }
+
     public static ApiConfigClient getInstance() {
-        if (instance == null) {
-            instance = new ApiConfigClient();
-        }
-        return instance;
+        return InstanceHolder.INSTANCE;
     }
 
     public CacheResponse getCache() throws IOException, IllegalArgumentException, Cache5XXException, Cache4XXException {
@@ -66,16 +89,32 @@ public class ApiConfigClient {
         return this.executeCallToApiConfigCache(request);
     }
 
-    public HttpRequest buildGetRequestToApiConfigCache(GenericUrl url) throws IOException {
+    /**
+     * @return the cache, or null if not modified since the last one downloaded
+     */
+    public CacheResponse getCacheIfModified() throws IOException, IllegalArgumentException, Cache5XXException, Cache4XXException {
+        GenericUrl url = new GenericUrl(apiConfigCacheHost + getCacheDetails);
+        HttpRequest request = this.buildGetRequestToApiConfigCache(url);
+        if (eTag != null) {
+            request.getHeaders().setIfNoneMatch(eTag);
+        }
+        if (lastModified != null) {
+            request.getHeaders().setIfModifiedSince(lastModified);
+        }
 
-        HttpRequestFactory requestFactory = httpTransport.createRequestFactory(
-                (HttpRequest request) ->
-                        request.setParser(new JsonObjectParser(jsonFactory))
-        );
+        if (enableRetry) {
+            this.setRequestRetry(request);
+        }
+
+        return this.executeCallToApiConfigCache(request);
+    }
+
+    public HttpRequest buildGetRequestToApiConfigCache(GenericUrl url) throws IOException {
 
         HttpRequest request = requestFactory.buildGetRequest(url);
         HttpHeaders headers = request.getHeaders();
         headers.set("Ocp-Apim-Subscription-Key", apiKey);
+        headers.setAcceptEncoding("gzip");
         return request;
     }
 
@@ -106,7 +145,8 @@ public class ApiConfigClient {
         List<CreditorInstitutionStation> creditorInstitutionStationList = new ArrayList<>();
         List<Station> stationList = new ArrayList<>();
         try {
-            InputStream resIs = request.execute().getContent();
+            HttpResponse response = request.execute();
+            InputStream resIs = response.getContent();
             Map<String,Object> responseMap = mapper.readValue(resIs, HashMap.class);
             Map<String,Object> creditorInstitutionStations = (HashMap) responseMap.get("creditorInstitutionStations");
             for (Map.Entry<String, Object> creditorInstitutionStation : creditorInstitutionStations.entrySet()) {
@@ -118,8 +158,12 @@ public class ApiConfigClient {
             }
             cacheResponse.setStations(stationList);
             cacheResponse.setCreditorInstitutionStations(creditorInstitutionStationList);
+            eTag = response.getHeaders().getETag();
+            lastModified = response.getHeaders().getLastModified();
         } catch (HttpResponseException e) {
-            if (e.getStatusCode() / 100 == 4) {
+            if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                return null;
+            } else if (e.getStatusCode() / 100 == 4) {
                 String message = String.format("Error %s calling the service URL %s", e.getStatusCode(), request.getUrl());
                 throw new Cache4XXException(message);
 
@@ -131,4 +175,21 @@ public class ApiConfigClient {
         }
         return cacheResponse;
     }
+
+    private HttpTransport buildHttpTransport() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        // the cache is downloaded seldom, the idle connections are checked before reuse
+        connectionManager.setValidateAfterInactivity(10000);
+        return new ApacheHttpTransport(HttpClientBuilder.create()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                // the redirects and the retries on error responses are handled by the request
+                .disableRedirectHandling()
+                // a GET on a pooled connection closed by the server is sent again once
+                .setRetryHandler(new DefaultHttpRequestRetryHandler(1, false))
+                .build());
+    }
 }
@@ -0,0 +1,27 @@
+package it.gov.pagopa.reporting.entity;
+
+import com.microsoft.azure.storage.table.TableServiceEntity;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class CheckpointEntity extends TableServiceEntity {
+
+    public static final String WINDOW_KEY_PREFIX = "window_";
+
+    private String messageId;
+
+    /**
+     * @param partitionKey the queue message id for progress checkpoints, the schedule window for claims
+     * @param organizationId the PA fiscal code
+     * @param messageId the queue message that processed the PA
+     */
+    public CheckpointEntity(String partitionKey, String organizationId, String messageId) {
+        this.partitionKey = partitionKey;
+        this.rowKey = organizationId;
+        this.messageId = messageId;
+    }
+}
@@ -2,10 +2,12 @@ package it.gov.pagopa.reporting.entity;
 
 import com.microsoft.azure.storage.table.TableServiceEntity;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.Setter;
 
 @Getter
 @Setter
+@NoArgsConstructor
 public class FlowEntity extends TableServiceEntity {
 
     private String flowDate;
@@ -17,4 +19,13 @@ public class FlowEntity extends TableServiceEntity {
         this.flowDate = flowDate;
     }
 
-}
\ No newline at end of file
+    /**
+     * @param partitionKey partition of the flow given by the FlowPartitionScheme, the idPA or one of its buckets
+     */
+    public FlowEntity(String flowId, String flowDate, String idPA, String partitionKey) {
+
+        this(flowId, flowDate, idPA);
+        this.partitionKey = partitionKey;
+    }
+
+}
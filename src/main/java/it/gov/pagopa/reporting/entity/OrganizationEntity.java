@@ -25,4 +25,4 @@ public class OrganizationEntity extends TableServiceEntity {
         // https://docs.microsoft.com/en-us/dotnet/api/microsoft.azure.cosmos.table.tableentity.etag?view=azure-dotnet#microsoft-azure-cosmos-table-tableentity-etag
         this.etag = "*";
     }
-}
\ No newline at end of file
+}
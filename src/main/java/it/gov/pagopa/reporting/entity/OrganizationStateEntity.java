@@ -0,0 +1,30 @@
+package it.gov.pagopa.reporting.entity;
+
+import com.microsoft.azure.storage.table.TableServiceEntity;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Polling state of an organization, updated by every poll: kept apart from the organization entity, so that the
+ * Timestamp of the organization changes only when the organization itself does.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class OrganizationStateEntity extends TableServiceEntity {
+
+    public static final String STATE_KEY = "organizationState";
+
+    // count and hash of the last flows list returned by Nodo
+    private String elencoFingerprint;
+    // moving average of the polls that returned new flows, between 0 and 1
+    private Double activityScore;
+    // epoch millis of the last poll that returned a flows list
+    private Long lastPolledTime;
+
+    public OrganizationStateEntity(String organizationId) {
+        this.partitionKey = STATE_KEY;
+        this.rowKey = organizationId;
+    }
+}
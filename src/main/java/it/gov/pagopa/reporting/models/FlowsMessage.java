@@ -1,9 +1,12 @@
 package it.gov.pagopa.reporting.models;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.Map;
+
 @Getter
 @Setter
 public class FlowsMessage {
@@ -11,4 +14,7 @@ public class FlowsMessage {
     private String idPA;
     private TipoIdRendicontazione[] flows;
     private Integer retry;
+    // blob of the flows prefetched, by flow id, relative to the flows container
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private Map<String, String> blobs;
 }
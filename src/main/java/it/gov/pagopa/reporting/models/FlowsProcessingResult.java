@@ -0,0 +1,43 @@
+package it.gov.pagopa.reporting.models;
+
+import lombok.Getter;
+
+/**
+ * Outcome of the storing of the flows of a PA, updated concurrently by the batches of the PA.
+ */
+@Getter
+public class FlowsProcessingResult {
+
+    private int newFlows;
+    private int duplicateFlows;
+    private int failedFlows;
+    private int batches;
+    private int fallbacks;
+
+    public synchronized void addNewFlows(int flows) {
+        this.newFlows += flows;
+    }
+
+    public synchronized void addDuplicateFlow() {
+        this.duplicateFlows++;
+    }
+
+    public synchronized void addFailedFlows(int flows) {
+        this.failedFlows += flows;
+    }
+
+    public synchronized void addBatch() {
+        this.batches++;
+    }
+
+    public synchronized void addFallback() {
+        this.fallbacks++;
+    }
+
+    /**
+     * @return true if every flow has been stored, now or by a previous poll
+     */
+    public synchronized boolean isComplete() {
+        return this.failedFlows == 0;
+    }
+}
@@ -1,7 +1,10 @@
 package it.gov.pagopa.reporting.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.*;
 
+@JsonIgnoreProperties(ignoreUnknown = true)
 @Getter
 @Setter
 @NoArgsConstructor
@@ -11,4 +14,7 @@ public class OrganizationsMessage {
 
     private String[] idPA;
     private Integer retry;
+    // epoch millis of the enqueue of the first message for the organizations, kept by retries and deferrals
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long epoch;
 }
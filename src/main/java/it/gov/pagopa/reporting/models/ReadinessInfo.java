@@ -0,0 +1,29 @@
+package it.gov.pagopa.reporting.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+
+@Getter
+@Builder(toBuilder = true)
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ReadinessInfo {
+
+    // the storage answers, the worker can store flows
+    private boolean ready;
+    // the api-config cache is loaded and Nodo has answered
+    private boolean warm;
+    private Long cacheAgeMs;
+    private Long cacheCreditorInstitutions;
+    private Long cacheStations;
+    private boolean nodoWarm;
+    private Long nodoLastResponseAgeMs;
+    private Long nodoLastLatencyMs;
+    private Long tableLatencyMs;
+    private Long queueLatencyMs;
+    // AVAILABLE or UNAVAILABLE, the failure is only logged
+    private String storageStatus;
+    private Long probeAgeMs;
+}
@@ -0,0 +1,132 @@
+package it.gov.pagopa.reporting.models;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution summary of a function invocation, updated concurrently by the stages of the invocation.
+ */
+public class RunSummary {
+
+    public enum Counter {
+        ORGANIZATIONS,
+        ENQUEUED_ORGANIZATIONS,
+        MESSAGES,
+        NODO_CALLS,
+        NODO_FAULTS,
+        NEW_FLOWS,
+        DUPLICATE_FLOWS,
+        FAILED_FLOWS,
+        BATCHES,
+        FALLBACKS,
+        RETRIES,
+        SKIPPED,
+        COALESCED,
+        HANDED_OFF;
+
+        /**
+         * @return the name in camel case, e.g. newFlows
+         */
+        public String getPropertyName() {
+            StringBuilder name = new StringBuilder();
+            for (String word : this.name().toLowerCase(Locale.ROOT).split("_")) {
+                name.append(name.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+            }
+            return name.toString();
+        }
+    }
+
+    @Getter
+    private final String function;
+    @Getter
+    private final String invocationId;
+    // schedule epoch millis the invocation belongs to
+    @Getter
+    private final long epoch;
+    @Getter
+    private final long startTime;
+    @Getter
+    private long durationMillis;
+
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private final List<Long> nodoLatencies = new ArrayList<>();
+
+    public RunSummary(String function, String invocationId, long epoch, long startTime) {
+        this.function = function;
+        this.invocationId = invocationId;
+        this.epoch = epoch;
+        this.startTime = startTime;
+        for (Counter counter : Counter.values()) {
+            this.counters.put(counter, new LongAdder());
+        }
+    }
+
+    public void add(Counter counter, long value) {
+        this.counters.get(counter).add(value);
+    }
+
+    public void increment(Counter counter) {
+        this.add(counter, 1);
+    }
+
+    public long get(Counter counter) {
+        return this.counters.get(counter).sum();
+    }
+
+    public void addFlowsProcessingResult(FlowsProcessingResult result) {
+        this.add(Counter.NEW_FLOWS, result.getNewFlows());
+        this.add(Counter.DUPLICATE_FLOWS, result.getDuplicateFlows());
+        this.add(Counter.FAILED_FLOWS, result.getFailedFlows());
+        this.add(Counter.BATCHES, result.getBatches());
+        this.add(Counter.FALLBACKS, result.getFallbacks());
+    }
+
+    public void recordNodoCall(long latencyMillis) {
+        this.increment(Counter.NODO_CALLS);
+        synchronized (this.nodoLatencies) {
+            this.nodoLatencies.add(latencyMillis);
+        }
+    }
+
+    /**
+     * @return the nearest-rank percentile of the Nodo calls latency, 0 without calls
+     */
+    public long getNodoLatencyPercentile(double percentile) {
+        List<Long> sorted;
+        synchronized (this.nodoLatencies) {
+            sorted = new ArrayList<>(this.nodoLatencies);
+        }
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        sorted.sort(null);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size(), rank) - 1));
+    }
+
+    public void finish(long now) {
+        this.durationMillis = now - this.startTime;
+    }
+
+    /**
+     * @return the summary values by property name
+     */
+    public Map<String, Long> getValues() {
+        Map<String, Long> values = new TreeMap<>();
+        values.put("startTime", this.startTime);
+        values.put("durationMillis", this.durationMillis);
+        this.counters.forEach((counter, value) -> values.put(counter.getPropertyName(), value.sum()));
+        values.put("nodoLatencyP50", this.getNodoLatencyPercentile(50));
+        values.put("nodoLatencyP95", this.getNodoLatencyPercentile(95));
+        values.put("nodoLatencyP99", this.getNodoLatencyPercentile(99));
+        values.put("nodoLatencyMax", this.getNodoLatencyPercentile(100));
+        return values;
+    }
+}
@@ -0,0 +1,195 @@
+package it.gov.pagopa.reporting.models.cache;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Compact, read-only view of the api-config cache used by RetrieveFlows to resolve the stations of a PA.
+ * Only the enabled stations are kept, with the fields needed to call Nodo; broker codes are dictionary encoded
+ * and the creditor institution to stations mapping is stored as offsets into an array of station indexes.
+ */
+public class StationCache {
+
+    // enabled stations, in api-config order
+    private final String[] stationCodes;
+    private final int[] stationBrokers;
+    private final String[] stationPasswords;
+    private final String[] brokerCodes;
+
+    // sorted creditor institution codes, the stations of the i-th one are stations[offsets[i]..offsets[i+1]-1]
+    private final String[] creditorInstitutionCodes;
+    private final int[] offsets;
+    private final int[] stations;
+
+    @Getter
+    @Setter
+    private LocalDate retrieveDate;
+
+    private StationCache(String[] stationCodes, int[] stationBrokers, String[] stationPasswords, String[] brokerCodes,
+                         String[] creditorInstitutionCodes, int[] offsets, int[] stations) {
+        this.stationCodes = stationCodes;
+        this.stationBrokers = stationBrokers;
+        this.stationPasswords = stationPasswords;
+        this.brokerCodes = brokerCodes;
+        this.creditorInstitutionCodes = creditorInstitutionCodes;
+        this.offsets = offsets;
+        this.stations = stations;
+    }
+
+    public static StationCache from(CacheResponse cache) {
+        Map<String, String> strings = new HashMap<>();
+        Map<String, Integer> brokerIndexes = new LinkedHashMap<>();
+        Map<String, Integer> stationIndexes = new HashMap<>();
+
+        List<Station> enabledStations = new ArrayList<>();
+        for (Station station : cache.getStations()) {
+            if (Boolean.TRUE.equals(station.getEnabled()) && !stationIndexes.containsKey(station.getStationCode())) {
+                stationIndexes.put(station.getStationCode(), enabledStations.size());
+                enabledStations.add(station);
+            }
+        }
+
+        int stationsSize = enabledStations.size();
+        String[] stationCodes = new String[stationsSize];
+        int[] stationBrokers = new int[stationsSize];
+        String[] stationPasswords = new String[stationsSize];
+        for (int i = 0; i < stationsSize; i++) {
+            Station station = enabledStations.get(i);
+            stationCodes[i] = dedup(strings, station.getStationCode());
+            stationBrokers[i] = brokerIndexes.computeIfAbsent(dedup(strings, station.getBrokerCode()), k -> brokerIndexes.size());
+            stationPasswords[i] = station.getPassword();
+        }
+
+        // creditor institutions without enabled stations are not kept
+        SortedMap<String, BitSet> creditorInstitutionStations = new TreeMap<>();
+        for (CreditorInstitutionStation creditorInstitutionStation : cache.getCreditorInstitutionStations()) {
+            Integer stationIndex = stationIndexes.get(creditorInstitutionStation.getStationCode());
+            if (stationIndex != null && creditorInstitutionStation.getCreditorInstitutionCode() != null) {
+                creditorInstitutionStations
+                        .computeIfAbsent(creditorInstitutionStation.getCreditorInstitutionCode(), k -> new BitSet())
+                        .set(stationIndex);
+            }
+        }
+
+        String[] creditorInstitutionCodes = new String[creditorInstitutionStations.size()];
+        int[] offsets = new int[creditorInstitutionStations.size() + 1];
+        int[] stations = new int[creditorInstitutionStations.values().stream().mapToInt(BitSet::cardinality).sum()];
+        int i = 0;
+        int next = 0;
+        for (Map.Entry<String, BitSet> entry : creditorInstitutionStations.entrySet()) {
+            creditorInstitutionCodes[i] = dedup(strings, entry.getKey());
+            offsets[i] = next;
+            for (int s = entry.getValue().nextSetBit(0); s >= 0; s = entry.getValue().nextSetBit(s + 1)) {
+                stations[next++] = s;
+            }
+            i++;
+        }
+        offsets[i] = next;
+
+        return new StationCache(stationCodes, stationBrokers, stationPasswords, brokerIndexes.keySet().toArray(String[]::new),
+                creditorInstitutionCodes, offsets, stations);
+    }
+
+    /**
+     * @return the enabled stations of the creditor institution, in api-config order
+     */
+    public List<Station> getStations(String creditorInstitutionCode) {
+        int index = Arrays.binarySearch(creditorInstitutionCodes, creditorInstitutionCode);
+        if (index < 0) {
+            return List.of();
+        }
+        List<Station> result = new ArrayList<>(offsets[index + 1] - offsets[index]);
+        for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+            int station = stations[i];
+            result.add(Station.builder()
+                    .stationCode(stationCodes[station])
+                    .brokerCode(brokerCodes[stationBrokers[station]])
+                    .password(stationPasswords[station])
+                    .enabled(true)
+                    .build());
+        }
+        return result;
+    }
+
+    public int getStationsSize() {
+        return stationCodes.length;
+    }
+
+    public int getCreditorInstitutionsSize() {
+        return creditorInstitutionCodes.length;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        writeStrings(out, stationCodes);
+        writeInts(out, stationBrokers);
+        writeStrings(out, stationPasswords);
+        writeStrings(out, brokerCodes);
+        writeStrings(out, creditorInstitutionCodes);
+        writeInts(out, offsets);
+        writeInts(out, stations);
+    }
+
+    public static StationCache readFrom(ByteBuffer buffer) {
+        Map<String, String> strings = new HashMap<>();
+        String[] stationCodes = readStrings(buffer, strings);
+        int[] stationBrokers = readInts(buffer);
+        String[] stationPasswords = readStrings(buffer, strings);
+        String[] brokerCodes = readStrings(buffer, strings);
+        String[] creditorInstitutionCodes = readStrings(buffer, strings);
+        int[] offsets = readInts(buffer);
+        int[] stations = readInts(buffer);
+        return new StationCache(stationCodes, stationBrokers, stationPasswords, brokerCodes,
+                creditorInstitutionCodes, offsets, stations);
+    }
+
+    private static String dedup(Map<String, String> strings, String value) {
+        return value != null ? strings.computeIfAbsent(value, k -> k) : null;
+    }
+
+    private static void writeStrings(DataOutput out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer buffer, Map<String, String> strings) {
+        String[] values = new String[buffer.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            int length = buffer.getInt();
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                values[i] = dedup(strings, new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Integer.BYTES);
+        return values;
+    }
+}
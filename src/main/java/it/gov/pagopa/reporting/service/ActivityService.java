@@ -0,0 +1,128 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableOperation;
+import it.gov.pagopa.reporting.entity.OrganizationStateEntity;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Activity of each PA, stored in its state in the organizations table: a moving average of the polls that returned new flows
+ * and the time of the last poll. The timer polls hot PAs every tick and cold PAs less often, within a max staleness;
+ * the time of the last poll is also the marker used to drop the organizations messages enqueued before it.
+ */
+public class ActivityService {
+
+    public static final String ACTIVITY_SCORE_PROPERTY = "activityScore";
+    public static final String LAST_POLLED_TIME_PROPERTY = "lastPolledTime";
+
+    private static final Map<String, Double> SCORES = new ConcurrentHashMap<>();
+    private static final Map<String, Long> LAST_POLLED_TIMES = new ConcurrentHashMap<>();
+
+    private final String storageConnectionString;
+    private final String organizationsTable;
+    private final Logger logger;
+
+    // weight of the last poll in the activity score
+    private final double alpha = System.getenv("POLLING_ACTIVITY_ALPHA") != null
+            ? Double.parseDouble(System.getenv("POLLING_ACTIVITY_ALPHA")) : 0.3;
+
+    public ActivityService(String storageConnectionString, String organizationsTable, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.organizationsTable = organizationsTable;
+        this.logger = logger;
+    }
+
+    public static double updateScore(Double score, boolean newFlows, double alpha) {
+        double previous = score != null ? score : 0;
+        return alpha * (newFlows ? 1 : 0) + (1 - alpha) * previous;
+    }
+
+    /**
+     * The poll interval of a PA is (1 - score) * max staleness, so hot PAs are polled every tick.
+     * The tick length is subtracted from the interval, so that a PA is never polled later than the max staleness.
+     *
+     * @param state the state of the PA, null if never polled
+     * @return true if the PA must be polled at the current tick
+     */
+    public static boolean isDue(OrganizationStateEntity state, long now, long maxStalenessMillis, double hotScore, long tickMillis) {
+        if (state == null || state.getLastPolledTime() == null || state.getActivityScore() == null
+                || state.getActivityScore() >= hotScore) {
+            return true;
+        }
+        long interval = (long) ((1 - state.getActivityScore()) * maxStalenessMillis) - tickMillis;
+        return now - state.getLastPolledTime() >= interval;
+    }
+
+    /**
+     * Records a poll of the PA that returned a flows list.
+     *
+     * @param polledTime epoch millis of the call to Nodo
+     */
+    public void record(String organization, boolean newFlows, long polledTime) {
+        Double previous = SCORES.get(organization);
+        if (previous == null) {
+            OrganizationStateEntity entity = this.retrieve(organization);
+            previous = entity != null ? entity.getActivityScore() : null;
+        }
+        double score = updateScore(previous, newFlows, this.alpha);
+        try {
+            HashMap<String, EntityProperty> properties = new HashMap<>();
+            properties.put(ACTIVITY_SCORE_PROPERTY, new EntityProperty(score));
+            properties.put(LAST_POLLED_TIME_PROPERTY, new EntityProperty(polledTime));
+            DynamicTableEntity entity = new DynamicTableEntity(OrganizationStateEntity.STATE_KEY, organization, "*", properties);
+            this.getTable().execute(TableOperation.insertOrMerge(entity));
+            SCORES.put(organization, score);
+            LAST_POLLED_TIMES.merge(organization, polledTime, Math::max);
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[ActivityService] Error storing activity of organization " + organization + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return true if the PA has been polled at or after the time, by this or another worker
+     */
+    public boolean isPolledSince(String organization, long time) {
+        Long lastPolledTime = LAST_POLLED_TIMES.get(organization);
+        if (lastPolledTime != null && lastPolledTime >= time) {
+            return true;
+        }
+        // another worker may have polled it in the meantime
+        OrganizationStateEntity entity = this.retrieve(organization);
+        if (entity == null || entity.getLastPolledTime() == null) {
+            return false;
+        }
+        LAST_POLLED_TIMES.merge(organization, entity.getLastPolledTime(), Math::max);
+        return entity.getLastPolledTime() >= time;
+    }
+
+    private OrganizationStateEntity retrieve(String organization) {
+        try {
+            OrganizationStateEntity entity = this.getTable()
+                    .execute(TableOperation.retrieve(OrganizationStateEntity.STATE_KEY, organization, OrganizationStateEntity.class))
+                    .getResultAsType();
+            if (entity != null && entity.getActivityScore() != null) {
+                SCORES.put(organization, entity.getActivityScore());
+            }
+            return entity;
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[ActivityService] Error retrieving activity of organization " + organization + ": " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private CloudTable getTable() throws URISyntaxException, InvalidKeyException, StorageException {
+        return CloudStorageAccount.parse(storageConnectionString).createCloudTableClient()
+                .getTableReference(this.organizationsTable);
+    }
+}
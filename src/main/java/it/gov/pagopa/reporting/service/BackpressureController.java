@@ -0,0 +1,151 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import it.gov.pagopa.reporting.utils.Metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Slows down the producers of the organizations and flows queues when the flows queue consumer does not keep up.
+ * The approximate message count of the queues is sampled at most once per sample interval and shared by the
+ * invocations of the worker; sampling errors never block the processing.
+ * Backpressure is disabled when no threshold is configured.
+ */
+public class BackpressureController {
+
+    public enum Decision {
+        // enqueue as usual
+        PROCEED,
+        // enqueue with a stretched visibility delay
+        DELAY,
+        // skip the scheduling round
+        SKIP
+    }
+
+    private static final Map<String, Sample> SAMPLES = new ConcurrentHashMap<>();
+
+    private final String storageConnectionString;
+    private final String flowsQueue;
+    private final String organizationsQueue;
+    private final Logger logger;
+
+    // flows queue backlog over which the producers delay the organizations messages
+    private final long flowsDelayThreshold;
+    // flows queue backlog over which the scheduling round is skipped
+    private final long flowsSkipThreshold;
+    // organizations queue backlog over which the scheduling round is skipped, the previous rounds are not drained yet
+    private final long organizationsSkipThreshold;
+    private final long sampleIntervalMillis = getLongEnv("BACKPRESSURE_SAMPLE_INTERVAL_SEC") > 0
+            ? getLongEnv("BACKPRESSURE_SAMPLE_INTERVAL_SEC") * 1000 : 60_000;
+    // delay added for each multiple of the delay threshold
+    private final int delayStepInSeconds = getLongEnv("BACKPRESSURE_DELAY_STEP_SEC") > 0
+            ? (int) getLongEnv("BACKPRESSURE_DELAY_STEP_SEC") : 300;
+    private final int maxDelayInSeconds = getLongEnv("BACKPRESSURE_MAX_DELAY_SEC") > 0
+            ? (int) getLongEnv("BACKPRESSURE_MAX_DELAY_SEC") : 3600;
+
+    public BackpressureController(String storageConnectionString, String flowsQueue, String organizationsQueue, Logger logger) {
+        this(storageConnectionString, flowsQueue, organizationsQueue, getLongEnv("BACKPRESSURE_FLOWS_DELAY_THRESHOLD"),
+                getLongEnv("BACKPRESSURE_FLOWS_SKIP_THRESHOLD"), getLongEnv("BACKPRESSURE_ORGANIZATIONS_SKIP_THRESHOLD"), logger);
+    }
+
+    public BackpressureController(String storageConnectionString, String flowsQueue, String organizationsQueue,
+                                  long flowsDelayThreshold, long flowsSkipThreshold, long organizationsSkipThreshold, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.flowsQueue = flowsQueue;
+        this.organizationsQueue = organizationsQueue;
+        this.flowsDelayThreshold = flowsDelayThreshold;
+        this.flowsSkipThreshold = flowsSkipThreshold;
+        this.organizationsSkipThreshold = organizationsSkipThreshold;
+        this.logger = logger;
+    }
+
+    public boolean isEnabled() {
+        return this.flowsDelayThreshold > 0 || this.flowsSkipThreshold > 0 || this.organizationsSkipThreshold > 0;
+    }
+
+    public Decision evaluate() {
+        Decision decision = Decision.PROCEED;
+        if (this.isEnabled()) {
+            long flowsBacklog = this.getBacklog(this.flowsQueue);
+            long organizationsBacklog = this.organizationsSkipThreshold > 0 ? this.getBacklog(this.organizationsQueue) : -1;
+
+            if (isOver(flowsBacklog, this.flowsSkipThreshold) || isOver(organizationsBacklog, this.organizationsSkipThreshold)) {
+                decision = Decision.SKIP;
+            } else if (isOver(flowsBacklog, this.flowsDelayThreshold)) {
+                decision = Decision.DELAY;
+            }
+
+            Decision result = decision;
+            this.logger.log(decision == Decision.PROCEED ? Level.FINE : Level.WARNING,
+                    () -> "[BackpressureController] " + result + " flows backlog: " + flowsBacklog
+                            + ", organizations backlog: " + organizationsBacklog);
+        }
+        Metrics.increment("backpressure.decision." + decision.name().toLowerCase(Locale.ROOT));
+        return decision;
+    }
+
+    /**
+     * @return the visibility delay stretched by the flows queue backlog, capped by the max delay
+     */
+    public int stretchDelay(int initialVisibilityDelayInSeconds) {
+        if (this.flowsDelayThreshold <= 0) {
+            return initialVisibilityDelayInSeconds;
+        }
+        long flowsBacklog = this.getBacklog(this.flowsQueue);
+        long steps = flowsBacklog > 0 ? flowsBacklog / this.flowsDelayThreshold : 0;
+        int delay = (int) Math.min(this.maxDelayInSeconds, initialVisibilityDelayInSeconds + steps * this.delayStepInSeconds);
+        delay = Math.max(delay, initialVisibilityDelayInSeconds);
+        Metrics.gauge("backpressure.delay.sec", delay);
+        return delay;
+    }
+
+    /**
+     * @return the approximate message count of the queue, sampled at most once per interval, or -1 if unknown
+     */
+    public long getBacklog(String queueName) {
+        Sample sample = SAMPLES.get(queueName);
+        if (sample == null || System.currentTimeMillis() - sample.sampledAt > this.sampleIntervalMillis) {
+            sample = new Sample(this.downloadBacklog(queueName), System.currentTimeMillis());
+            SAMPLES.put(queueName, sample);
+            Metrics.gauge("backpressure.backlog." + queueName, sample.backlog);
+        }
+        return sample.backlog;
+    }
+
+    private long downloadBacklog(String queueName) {
+        try {
+            CloudQueue queue = CloudStorageAccount.parse(this.storageConnectionString).createCloudQueueClient()
+                    .getQueueReference(queueName);
+            queue.downloadAttributes();
+            return queue.getApproximateMessageCount();
+        } catch (Exception e) {
+            Metrics.increment("backpressure.sample.errors");
+            this.logger.log(Level.WARNING, () -> "[BackpressureController] Error sampling queue " + queueName + ": " + e.getLocalizedMessage());
+            return -1;
+        }
+    }
+
+    private static boolean isOver(long backlog, long threshold) {
+        return threshold > 0 && backlog >= threshold;
+    }
+
+    private static long getLongEnv(String name) {
+        String value = System.getenv(name);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    private static final class Sample {
+        private final long backlog;
+        private final long sampledAt;
+
+        private Sample(long backlog, long sampledAt) {
+            this.backlog = backlog;
+            this.sampledAt = sampledAt;
+        }
+    }
+}
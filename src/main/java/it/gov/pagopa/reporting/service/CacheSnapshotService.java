@@ -0,0 +1,63 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobInputStream;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import it.gov.pagopa.reporting.models.cache.StationCache;
+import it.gov.pagopa.reporting.utils.CacheSnapshotUtil;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+
+/**
+ * Encrypted snapshot of the station cache in a blob of the flows storage account, written by the worker that
+ * downloaded the cache and read by every worker starting cold, e.g. on scale out.
+ */
+public class CacheSnapshotService {
+
+    public static final String BLOB_NAME = "station-cache.snapshot";
+
+    private final String storageConnectionString;
+    private final String container;
+    private final SecretKey key;
+
+    public CacheSnapshotService(String storageConnectionString, String container, SecretKey key) {
+        this.storageConnectionString = storageConnectionString;
+        this.container = container;
+        this.key = key;
+    }
+
+    /**
+     * Replaces the snapshot, the last writer wins.
+     */
+    public void write(StationCache cache) throws URISyntaxException, InvalidKeyException, StorageException, IOException {
+        byte[] snapshot = CacheSnapshotUtil.encode(cache, this.key, System.currentTimeMillis());
+        CloudBlobContainer blobContainer = this.getContainer();
+        blobContainer.createIfNotExists();
+        blobContainer.getBlockBlobReference(BLOB_NAME).uploadFromByteArray(snapshot, 0, snapshot.length);
+    }
+
+    /**
+     * @return the cache stored in the snapshot, or null if the snapshot does not exist or is older than the max age
+     */
+    public StationCache read(long maxAgeMillis) throws URISyntaxException, InvalidKeyException, StorageException, IOException {
+        CloudBlockBlob blob = this.getContainer().getBlockBlobReference(BLOB_NAME);
+        if (!blob.exists()) {
+            return null;
+        }
+        byte[] snapshot;
+        try (BlobInputStream in = blob.openInputStream()) {
+            snapshot = in.readAllBytes();
+        }
+        return CacheSnapshotUtil.decode(snapshot, this.key, maxAgeMillis, System.currentTimeMillis());
+    }
+
+    private CloudBlobContainer getContainer() throws URISyntaxException, InvalidKeyException, StorageException {
+        return CloudStorageAccount.parse(this.storageConnectionString).createCloudBlobClient()
+                .getContainerReference(this.container);
+    }
+}
@@ -0,0 +1,226 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import it.gov.pagopa.reporting.entity.CheckpointEntity;
+import it.gov.pagopa.reporting.utils.AzuriteStorageUtil;
+import it.gov.pagopa.reporting.utils.Metrics;
+
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the organizations processed by RetrieveFlows, so that a redelivered organizations message
+ * skips the organizations already completed and the same organization is processed once per schedule tick.
+ * The checkpoints of a message are cleared once it is processed, the claims of the ticks older than the retention
+ * are purged at most once per purge interval by each worker.
+ * Storage errors never block the processing: in that case the organization is processed as before.
+ */
+public class CheckpointService {
+
+    private static final long PURGE_INTERVAL_MILLIS = 60_000;
+    // max number of entities of an Azure Table Storage batch
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private static final AtomicLong LAST_PURGE = new AtomicLong();
+
+    private final String storageConnectionString;
+    private final String checkpointsTable;
+    private final long windowInSeconds;
+    private final Logger logger;
+
+    public CheckpointService(String storageConnectionString, String checkpointsTable, long windowInSeconds, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.checkpointsTable = checkpointsTable;
+        this.windowInSeconds = windowInSeconds;
+        this.logger = logger;
+        this.createEnv();
+    }
+
+    /**
+     * @return the organizations already completed by a previous delivery of the message
+     */
+    public Set<String> getCompletedOrganizations(String messageId) {
+        Set<String> completed = new HashSet<>();
+        try {
+            this.getTable().execute(TableQuery.from(CheckpointEntity.class)
+                            .where(TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.EQUAL, messageId)))
+                    .forEach(checkpoint -> completed.add(checkpoint.getRowKey()));
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[CheckpointService] Error retrieving checkpoints of message " + messageId + ": " + e.getLocalizedMessage());
+        }
+        return completed;
+    }
+
+    /**
+     * Claims the organization for the schedule tick of the message.
+     *
+     * @param epoch schedule epoch of the message, the claim is for the current window if null
+     * @return false if the organization was already claimed in the tick by another message
+     */
+    public boolean claim(String organization, String messageId, Long epoch) {
+        String window = this.getWindowKey(epoch);
+        try {
+            this.getTable().execute(TableOperation.insert(new CheckpointEntity(window, organization, messageId)));
+            return true;
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT) {
+                return this.isClaimedBy(window, organization, messageId);
+            }
+            this.logger.log(Level.WARNING, () -> "[CheckpointService] Error claiming organization " + organization + ": " + e.getLocalizedMessage());
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[CheckpointService] Error claiming organization " + organization + ": " + e.getLocalizedMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Releases the claim of the organization, so that a retry message of the same tick can process it.
+     */
+    public void release(String organization, Long epoch) {
+        try {
+            CheckpointEntity claim = new CheckpointEntity(this.getWindowKey(epoch), organization, null);
+            claim.setEtag("*");
+            this.getTable().execute(TableOperation.delete(claim));
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[CheckpointService] Error releasing organization " + organization + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Records the organization as completed by the message.
+     */
+    public void complete(String organization, String messageId) {
+        try {
+            this.getTable().execute(TableOperation.insertOrReplace(new CheckpointEntity(messageId, organization, messageId)));
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[CheckpointService] Error completing organization " + organization + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Deletes the checkpoints of a message processed, that will not be delivered again.
+     */
+    public void clear(String messageId) {
+        try {
+            List<CheckpointEntity> checkpoints = new ArrayList<>();
+            this.getTable().execute(TableQuery.from(CheckpointEntity.class)
+                            .where(TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.EQUAL, messageId)))
+                    .forEach(checkpoints::add);
+            this.delete(Map.of(messageId, checkpoints));
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[CheckpointService] Error clearing checkpoints of message " + messageId + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Deletes the claims of the ticks before the retention, and the checkpoints left by the messages never processed,
+     * if not done by the worker within the purge interval.
+     */
+    public void purgeIfDue(long now, long retentionMillis) {
+        long last = LAST_PURGE.get();
+        if (now - last < PURGE_INTERVAL_MILLIS || !LAST_PURGE.compareAndSet(last, now)) {
+            return;
+        }
+        try {
+            String windows = TableQuery.combineFilters(
+                    TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, CheckpointEntity.WINDOW_KEY_PREFIX),
+                    TableQuery.Operators.AND,
+                    TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.LESS_THAN, windowKey(now - retentionMillis)));
+            // the message ids sort before the claims, they are few since cleared by the processed messages
+            String abandoned = TableQuery.combineFilters(
+                    TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.LESS_THAN, CheckpointEntity.WINDOW_KEY_PREFIX),
+                    TableQuery.Operators.AND,
+                    TableQuery.generateFilterCondition("Timestamp", TableQuery.QueryComparisons.LESS_THAN, new Date(now - retentionMillis)));
+            Map<String, List<CheckpointEntity>> expired = new LinkedHashMap<>();
+            for (String filter : List.of(windows, abandoned)) {
+                this.getTable().execute(TableQuery.from(CheckpointEntity.class).where(filter))
+                        .forEach(checkpoint -> expired.computeIfAbsent(checkpoint.getPartitionKey(), k -> new ArrayList<>()).add(checkpoint));
+            }
+            int purged = this.delete(expired);
+            Metrics.add("checkpoint.purged", purged);
+            this.logger.log(Level.INFO, () -> "[CheckpointService] " + purged + " expired checkpoints purged");
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[CheckpointService] Error purging checkpoints: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return the number of checkpoints deleted
+     */
+    private int delete(Map<String, List<CheckpointEntity>> checkpointsByPartition)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        CloudTable table = this.getTable();
+        int deleted = 0;
+        for (List<CheckpointEntity> checkpoints : checkpointsByPartition.values()) {
+            for (int from = 0; from < checkpoints.size(); from += MAX_BATCH_SIZE) {
+                TableBatchOperation batchOperation = new TableBatchOperation();
+                checkpoints.subList(from, Math.min(checkpoints.size(), from + MAX_BATCH_SIZE)).forEach(batchOperation::delete);
+                table.execute(batchOperation);
+                deleted += batchOperation.size();
+            }
+        }
+        return deleted;
+    }
+
+    private boolean isClaimedBy(String window, String organization, String messageId) {
+        try {
+            CheckpointEntity claim = this.getTable()
+                    .execute(TableOperation.retrieve(window, organization, CheckpointEntity.class))
+                    .getResultAsType();
+            // the claim of a previous delivery of the same message, interrupted before completing the organization
+            return claim == null || messageId.equals(claim.getMessageId());
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[CheckpointService] Error retrieving claim of organization " + organization + ": " + e.getLocalizedMessage());
+            return true;
+        }
+    }
+
+    /**
+     * @return the key of the tick of the message, or of the current window for the messages with no schedule epoch
+     */
+    private String getWindowKey(Long epoch) {
+        if (epoch != null) {
+            return windowKey(epoch);
+        }
+        long now = System.currentTimeMillis();
+        long windowMillis = this.windowInSeconds * 1000;
+        return windowKey(now - now % windowMillis);
+    }
+
+    public static String windowKey(long epochMillis) {
+        // sorted by time
+        return CheckpointEntity.WINDOW_KEY_PREFIX + String.format("%019d", epochMillis);
+    }
+
+    private CloudTable getTable() throws URISyntaxException, InvalidKeyException, StorageException {
+        return CloudStorageAccount.parse(storageConnectionString).createCloudTableClient()
+                .getTableReference(this.checkpointsTable);
+    }
+
+    private void createEnv() {
+        AzuriteStorageUtil azuriteStorageUtil = new AzuriteStorageUtil(storageConnectionString, checkpointsTable, null);
+        try {
+            azuriteStorageUtil.createTable();
+        } catch (StorageException e) {
+            this.logger.info(String.format("[AzureStorage] Table created: %s", e.getMessage()));
+        } catch (Exception e) {
+            this.logger.severe(String.format("[AzureStorage] Problem to create table: %s", e.getMessage()));
+        }
+    }
+}
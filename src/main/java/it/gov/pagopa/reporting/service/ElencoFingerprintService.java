@@ -0,0 +1,108 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableOperation;
+import it.gov.pagopa.reporting.entity.OrganizationStateEntity;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Fingerprints of the last flows list returned by Nodo for each PA, stored in its state in the organizations table
+ * and cached in memory, used to skip the storing of flows lists that did not change since the last poll.
+ */
+public class ElencoFingerprintService {
+
+    public static final String FINGERPRINT_PROPERTY = "elencoFingerprint";
+
+    private static final Map<String, String> FINGERPRINTS = new ConcurrentHashMap<>();
+
+    private final String storageConnectionString;
+    private final String organizationsTable;
+    private final Logger logger;
+
+    public ElencoFingerprintService(String storageConnectionString, String organizationsTable, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.organizationsTable = organizationsTable;
+        this.logger = logger;
+    }
+
+    /**
+     * @return the count of the flows followed by the hash of their ids and dates, regardless of their order
+     */
+    public static String fingerprint(List<TipoIdRendicontazione> flows) {
+        String content = flows.stream()
+                .map(flow -> flow.getIdentificativoFlusso() + "|" + flow.getDataOraFlusso())
+                .sorted()
+                .collect(Collectors.joining("\n"));
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            // 128 bits are enough to tell two lists apart
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return flows.size() + ":" + hex;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isUnchanged(String organization, String fingerprint) {
+        String last = FINGERPRINTS.get(organization);
+        if (last == null) {
+            last = this.retrieve(organization);
+            if (last != null) {
+                FINGERPRINTS.put(organization, last);
+            }
+        }
+        return fingerprint.equals(last);
+    }
+
+    public void store(String organization, String fingerprint) {
+        if (fingerprint.equals(FINGERPRINTS.get(organization))) {
+            return;
+        }
+        try {
+            HashMap<String, EntityProperty> properties = new HashMap<>();
+            properties.put(FINGERPRINT_PROPERTY, new EntityProperty(fingerprint));
+            DynamicTableEntity entity = new DynamicTableEntity(OrganizationStateEntity.STATE_KEY, organization, "*", properties);
+            this.getTable().execute(TableOperation.insertOrMerge(entity));
+            FINGERPRINTS.put(organization, fingerprint);
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[ElencoFingerprintService] Error storing fingerprint of organization " + organization + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private String retrieve(String organization) {
+        try {
+            OrganizationStateEntity entity = this.getTable()
+                    .execute(TableOperation.retrieve(OrganizationStateEntity.STATE_KEY, organization, OrganizationStateEntity.class))
+                    .getResultAsType();
+            return entity != null ? entity.getElencoFingerprint() : null;
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[ElencoFingerprintService] Error retrieving fingerprint of organization " + organization + ": " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private CloudTable getTable() throws URISyntaxException, InvalidKeyException, StorageException {
+        return CloudStorageAccount.parse(storageConnectionString).createCloudTableClient()
+                .getTableReference(this.organizationsTable);
+    }
+}
@@ -0,0 +1,112 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableServiceException;
+import it.gov.pagopa.reporting.utils.FlowPartitionScheme;
+import it.gov.pagopa.reporting.utils.Metrics;
+
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Layouts of the flows partitions of the organizations, stored in a partition of the flows table of their own and
+ * cached in memory. A change of the configured layout of an organization is recorded with a cutover two days ahead:
+ * a flow dated before it may already be stored with the previous layout, whatever the time zone of its date.
+ * An organization with no stored layouts has never been bucketed.
+ */
+public class FlowPartitionRegistry {
+
+    public static final String PARTITION_KEY = "~layouts";
+    private static final String LAYOUTS_PROPERTY = "Layouts";
+    // a concurrent change of the layouts of the same organization by another worker
+    private static final int MAX_ATTEMPTS = 3;
+
+    // layouts by organization, up to date while their current layout is the configured one
+    private static final Map<String, FlowPartitionScheme.Layouts> LAYOUTS = new ConcurrentHashMap<>();
+
+    private final String storageConnectionString;
+    private final String flowsTable;
+    private final FlowPartitionScheme partitionScheme;
+    private final Logger logger;
+
+    public FlowPartitionRegistry(String storageConnectionString, String flowsTable, FlowPartitionScheme partitionScheme, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.flowsTable = flowsTable;
+        this.partitionScheme = partitionScheme;
+        this.logger = logger;
+    }
+
+    /**
+     * @return the layouts of the organization, with the configured one recorded as the current one
+     */
+    public FlowPartitionScheme.Layouts getLayouts(String idPA) throws URISyntaxException, InvalidKeyException, StorageException {
+        String configured = this.partitionScheme.layout(idPA);
+        FlowPartitionScheme.Layouts cached = LAYOUTS.get(idPA);
+        if (cached != null && cached.current().equals(configured)) {
+            return cached;
+        }
+
+        CloudTable table = CloudStorageAccount.parse(this.storageConnectionString).createCloudTableClient()
+                .getTableReference(this.flowsTable);
+        for (int attempt = 1; ; attempt++) {
+            DynamicTableEntity entity = table.execute(TableOperation.retrieve(PARTITION_KEY, idPA, DynamicTableEntity.class))
+                    .getResultAsType();
+            FlowPartitionScheme.Layouts stored = entity != null
+                    ? FlowPartitionScheme.Layouts.parse(entity.getProperties().get(LAYOUTS_PROPERTY).getValueAsString())
+                    : FlowPartitionScheme.Layouts.of(FlowPartitionScheme.NOT_BUCKETED);
+            FlowPartitionScheme.Layouts layouts = change(stored, configured, LocalDate.now(ZoneOffset.UTC));
+            if (layouts == stored) {
+                LAYOUTS.put(idPA, stored);
+                return stored;
+            }
+            try {
+                HashMap<String, EntityProperty> properties = new HashMap<>();
+                properties.put(LAYOUTS_PROPERTY, new EntityProperty(layouts.format()));
+                table.execute(entity != null
+                        ? TableOperation.replace(new DynamicTableEntity(PARTITION_KEY, idPA, entity.getEtag(), properties))
+                        : TableOperation.insert(new DynamicTableEntity(PARTITION_KEY, idPA, properties)));
+                Metrics.increment("flows.layout.changes");
+                this.logger.log(Level.INFO, () -> "[FlowPartitionRegistry] Layouts of " + idPA + " changed to " + layouts.format());
+                LAYOUTS.put(idPA, layouts);
+                return layouts;
+            } catch (TableServiceException e) {
+                if ((e.getHttpStatusCode() != HttpURLConnection.HTTP_CONFLICT && e.getHttpStatusCode() != HttpURLConnection.HTTP_PRECON_FAILED)
+                        || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the stored layouts if the configured layout is the current one, else the stored layouts followed by the
+     * configured one from the day after tomorrow
+     */
+    public static FlowPartitionScheme.Layouts change(FlowPartitionScheme.Layouts stored, String configured, LocalDate today) {
+        if (stored.current().equals(configured)) {
+            return stored;
+        }
+        return stored.with(configured, today.plusDays(2).atStartOfDay().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+    }
+
+    /**
+     * Forgets the cached layouts, for tests.
+     */
+    public static void reset() {
+        LAYOUTS.clear();
+    }
+}
@@ -0,0 +1,237 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import it.gov.pagopa.reporting.utils.Metrics;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Outbox of the flows queue notifications. A notification is inserted in the entity-group transaction of the flows
+ * it announces, as an entity of their partition, so that stored flows are always announced.
+ * The notifications are sent and cleared off the invocation by a publisher thread of the worker, across the
+ * organizations; the sweeper sends the ones older than the grace period, i.e. left by a worker that died or could not
+ * send them, reading the outbox entities of each partition of the organizations. A notification is therefore sent at
+ * least once.
+ * The outbox entities sort after the flows of their partition and have no flow date, so that the readers of the flows
+ * never find them.
+ */
+public class FlowsOutbox {
+
+    public static final String ROW_KEY_PREFIX = "~outbox_";
+    // the character following the prefix, upper bound of the outbox entities of a partition
+    private static final String ROW_KEY_UPPER_BOUND = "~outbox`";
+    private static final String MESSAGE_PROPERTY = "Message";
+    // a table string property holds at most 32K characters
+    private static final int MAX_PROPERTY_CHARS = 30_000;
+    // max number of entities of an Azure Table Storage batch
+    private static final int MAX_BATCH_SIZE = 100;
+    // notifications waiting for the publisher, the next ones are left to the sweeper
+    private static final int MAX_PENDING = 10_000;
+
+    // publisher of the notifications by flows table and queue
+    private static final Map<String, Publisher> PUBLISHERS = new ConcurrentHashMap<>();
+
+    private final String storageConnectionString;
+    private final String flowsTable;
+    private final String flowsQueue;
+    private final Logger logger;
+
+    public FlowsOutbox(String storageConnectionString, String flowsTable, String flowsQueue, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.flowsTable = flowsTable;
+        this.flowsQueue = flowsQueue;
+        this.logger = logger;
+    }
+
+    /**
+     * @param flowPartitionKey partition of the flows announced by the message
+     * @return the outbox entity of the message, the message is split on more properties if longer than a property
+     */
+    public static DynamicTableEntity entry(String flowPartitionKey, String message) {
+        DynamicTableEntity entry = new DynamicTableEntity(flowPartitionKey, ROW_KEY_PREFIX + UUID.randomUUID(), new HashMap<>());
+        setMessage(entry, message);
+        return entry;
+    }
+
+    public static String message(DynamicTableEntity entry) {
+        StringBuilder message = new StringBuilder();
+        EntityProperty part;
+        for (int i = 0; (part = entry.getProperties().get(MESSAGE_PROPERTY + i)) != null; i++) {
+            message.append(part.getValueAsString());
+        }
+        return message.toString();
+    }
+
+    /**
+     * Replaces the message of the entry, e.g. with the blobs of the flows prefetched once they are stored.
+     */
+    public static void setMessage(DynamicTableEntity entry, String message) {
+        entry.getProperties().keySet().removeIf(name -> name.startsWith(MESSAGE_PROPERTY));
+        for (int i = 0, part = 0; i < message.length(); i += MAX_PROPERTY_CHARS, part++) {
+            entry.getProperties().put(MESSAGE_PROPERTY + part, new EntityProperty(message.substring(i, Math.min(message.length(), i + MAX_PROPERTY_CHARS))));
+        }
+    }
+
+    /**
+     * @return the filter of the outbox entities of the partition
+     */
+    public static String partitionFilter(String partitionKey) {
+        return TableQuery.combineFilters(
+                TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.EQUAL, partitionKey),
+                TableQuery.Operators.AND,
+                TableQuery.combineFilters(
+                        TableQuery.generateFilterCondition("RowKey", TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, ROW_KEY_PREFIX),
+                        TableQuery.Operators.AND,
+                        TableQuery.generateFilterCondition("RowKey", TableQuery.QueryComparisons.LESS_THAN, ROW_KEY_UPPER_BOUND)));
+    }
+
+    /**
+     * Hands the notification of flows just stored to the publisher of the worker, without waiting for it to be sent.
+     * A notification not accepted by the publisher is left to the sweeper.
+     */
+    public void publish(DynamicTableEntity entry) {
+        Publisher publisher = PUBLISHERS.computeIfAbsent(this.flowsTable + "/" + this.flowsQueue,
+                key -> new Publisher(new FlowsOutbox(this.storageConnectionString, this.flowsTable, this.flowsQueue, this.logger)));
+        if (!publisher.pending.offer(entry)) {
+            Metrics.increment("outbox.publish.deferred");
+        }
+    }
+
+    /**
+     * Sends the pending notifications of the partitions, older than the given time, and deletes them, at most max
+     * entries per sweep. A notification not sent is kept for the next sweep.
+     *
+     * @return the number of notifications sent
+     */
+    public int sweep(List<String> partitionKeys, int maxEntries, long createdBefore)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        CloudTable table = this.getTable();
+        int sent = 0;
+        for (String partitionKey : partitionKeys) {
+            if (sent >= maxEntries) {
+                break;
+            }
+            String filter = TableQuery.combineFilters(partitionFilter(partitionKey), TableQuery.Operators.AND,
+                    TableQuery.generateFilterCondition("Timestamp", TableQuery.QueryComparisons.LESS_THAN, new Date(createdBefore)));
+            List<DynamicTableEntity> entries = new ArrayList<>();
+            for (DynamicTableEntity entry : table.execute(TableQuery.from(DynamicTableEntity.class).where(filter).take(MAX_BATCH_SIZE))) {
+                if (sent + entries.size() >= maxEntries) {
+                    break;
+                }
+                entries.add(entry);
+            }
+            if (!entries.isEmpty()) {
+                Metrics.add("outbox.swept", entries.size());
+                sent += this.send(entries);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the notifications, then deletes the ones sent, in a batch for each partition.
+     *
+     * @return the number of notifications sent
+     */
+    public int send(List<DynamicTableEntity> entries) throws URISyntaxException, InvalidKeyException, StorageException {
+        CloudTable table = this.getTable();
+        CloudQueue queue = CloudStorageAccount.parse(this.storageConnectionString).createCloudQueueClient()
+                .getQueueReference(this.flowsQueue);
+
+        Map<String, List<DynamicTableEntity>> sentByPartition = new LinkedHashMap<>();
+        int sent = 0;
+        for (DynamicTableEntity entry : entries) {
+            try {
+                queue.addMessage(new CloudQueueMessage(message(entry)));
+                sentByPartition.computeIfAbsent(entry.getPartitionKey(), key -> new ArrayList<>()).add(entry);
+                sent++;
+            } catch (StorageException e) {
+                Metrics.increment("outbox.publish.errors");
+                this.logger.log(Level.WARNING, () -> "[FlowsOutbox] Error sending " + entry.getRowKey() + ": " + e.getMessage());
+            }
+        }
+        Metrics.add("outbox.published", sent);
+
+        for (List<DynamicTableEntity> partitionEntries : sentByPartition.values()) {
+            for (int from = 0; from < partitionEntries.size(); from += MAX_BATCH_SIZE) {
+                TableBatchOperation batchOperation = new TableBatchOperation();
+                partitionEntries.subList(from, Math.min(partitionEntries.size(), from + MAX_BATCH_SIZE)).forEach(entry -> {
+                    entry.setEtag("*");
+                    batchOperation.delete(entry);
+                });
+                try {
+                    table.execute(batchOperation);
+                    Metrics.add("outbox.cleared", batchOperation.size());
+                } catch (StorageException e) {
+                    // sent again by the sweeper
+                    Metrics.increment("outbox.clear.errors");
+                    this.logger.log(Level.WARNING, () -> "[FlowsOutbox] Error clearing the outbox: " + e.getMessage());
+                }
+            }
+        }
+        return sent;
+    }
+
+    private CloudTable getTable() throws URISyntaxException, InvalidKeyException, StorageException {
+        return CloudStorageAccount.parse(this.storageConnectionString).createCloudTableClient()
+                .getTableReference(this.flowsTable);
+    }
+
+    /**
+     * Daemon thread sending the notifications handed over by the invocations of the worker, in batches.
+     */
+    private static final class Publisher implements Runnable {
+
+        private final BlockingQueue<DynamicTableEntity> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+        private final FlowsOutbox outbox;
+
+        private Publisher(FlowsOutbox outbox) {
+            this.outbox = outbox;
+            Thread thread = new Thread(this, "flows-outbox");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<DynamicTableEntity> entries = new ArrayList<>();
+                try {
+                    entries.add(this.pending.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                this.pending.drainTo(entries, MAX_BATCH_SIZE - 1);
+                try {
+                    this.outbox.send(entries);
+                } catch (Exception e) {
+                    // left to the sweeper
+                    Metrics.increment("outbox.publish.errors");
+                    this.outbox.logger.log(Level.WARNING, () -> "[FlowsOutbox] Error publishing " + entries.size() + " notifications: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
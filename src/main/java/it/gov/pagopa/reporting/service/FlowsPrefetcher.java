@@ -0,0 +1,208 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.sun.xml.ws.client.ClientTransportException;
+import it.gov.pagopa.reporting.models.cache.Station;
+import it.gov.pagopa.reporting.servicewsdl.FaultBean;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import it.gov.pagopa.reporting.utils.AdaptiveConcurrencyLimiter;
+import it.gov.pagopa.reporting.utils.Metrics;
+import it.gov.pagopa.reporting.utils.RetryPolicy;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the XML of the new flows from Nodo and streams it to the flows container, so that the consumers of the
+ * flows queue read the flows from the blob named in the message instead of calling Nodo again. The flows are fetched
+ * by at most parallelism clients at the same time, within the Nodo limiter of the worker if any, and only until the
+ * deadline of the invocation; a flow not fetched has no blob in the message.
+ */
+public class FlowsPrefetcher {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "flows-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String storageConnectionString;
+    private final String flowsContainer;
+    private final int parallelism;
+    private final Function<String, Optional<Station>> stationResolver;
+    private final Supplier<NodoChiediFlusso> clientFactory;
+    private final Logger logger;
+    // epoch millis after which no flow is fetched
+    private long deadline = Long.MAX_VALUE;
+    // null when the Nodo calls are not limited
+    private AdaptiveConcurrencyLimiter nodoLimiter;
+
+    /**
+     * @param stationResolver the station to call Nodo for an organization
+     * @param clientFactory   creates the client of each parallel lane
+     */
+    public FlowsPrefetcher(String storageConnectionString, String flowsContainer, int parallelism,
+                           Function<String, Optional<Station>> stationResolver, Supplier<NodoChiediFlusso> clientFactory, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.flowsContainer = flowsContainer;
+        this.parallelism = Math.max(1, parallelism);
+        this.stationResolver = stationResolver;
+        this.clientFactory = clientFactory;
+        this.logger = logger;
+    }
+
+    /**
+     * @param deadline    epoch millis after which no flow is fetched
+     * @param nodoLimiter the limiter of the Nodo calls of the worker, null if not limited
+     */
+    public FlowsPrefetcher(String storageConnectionString, String flowsContainer, int parallelism,
+                           Function<String, Optional<Station>> stationResolver, Supplier<NodoChiediFlusso> clientFactory,
+                           long deadline, AdaptiveConcurrencyLimiter nodoLimiter, Logger logger) {
+        this(storageConnectionString, flowsContainer, parallelism, stationResolver, clientFactory, logger);
+        this.deadline = deadline;
+        this.nodoLimiter = nodoLimiter;
+    }
+
+    /**
+     * @return the blob name of each flow, relative to the flows container
+     */
+    public static Map<String, String> blobNames(String idPA, List<TipoIdRendicontazione> flows) {
+        Map<String, String> blobNames = new LinkedHashMap<>();
+        flows.forEach(flow -> blobNames.put(flow.getIdentificativoFlusso(), blobName(idPA, flow.getIdentificativoFlusso())));
+        return blobNames;
+    }
+
+    public static String blobName(String idPA, String flowId) {
+        return idPA + "/" + flowId + ".xml";
+    }
+
+    /**
+     * @return the blob name of the flows fetched and stored, by flow id
+     */
+    public Map<String, String> prefetch(String idPA, List<TipoIdRendicontazione> flows) {
+        Optional<Station> station = this.stationResolver.apply(idPA);
+        if (station.isEmpty() || flows.isEmpty()) {
+            return Map.of();
+        }
+
+        // flows split on the lanes, each one fetching its flows one by one with its own client
+        int lanes = Math.min(this.parallelism, flows.size());
+        List<List<TipoIdRendicontazione>> laneFlows = new ArrayList<>();
+        for (int i = 0; i < lanes; i++) {
+            laneFlows.add(new ArrayList<>());
+        }
+        for (int i = 0; i < flows.size(); i++) {
+            laneFlows.get(i % lanes).add(flows.get(i));
+        }
+
+        long start = System.currentTimeMillis();
+        Map<String, String> blobNames = new ConcurrentHashMap<>();
+        CompletableFuture.allOf(laneFlows.stream()
+                .map(lane -> CompletableFuture.runAsync(() -> {
+                    NodoChiediFlusso client = this.clientFactory.get();
+                    lane.forEach(flow -> this.fetch(client, station.get(), idPA, flow.getIdentificativoFlusso())
+                            .ifPresent(blobName -> blobNames.put(flow.getIdentificativoFlusso(), blobName)));
+                }, EXECUTOR))
+                .toArray(CompletableFuture[]::new)).join();
+
+        Metrics.record("prefetch.ms", System.currentTimeMillis() - start);
+        this.logger.log(Level.INFO, () -> "[FlowsPrefetcher] " + blobNames.size() + " of " + flows.size() + " flows of " + idPA
+                + " prefetched in " + (System.currentTimeMillis() - start) + " ms");
+        return blobNames;
+    }
+
+    /**
+     * Streams the XML of the flow to its blob.
+     */
+    public void upload(String blobName, InputStream xml) throws URISyntaxException, InvalidKeyException, StorageException, IOException {
+        CloudBlobContainer container = CloudStorageAccount.parse(this.storageConnectionString).createCloudBlobClient()
+                .getContainerReference(this.flowsContainer);
+        container.getBlockBlobReference(blobName).upload(xml, -1);
+    }
+
+    private Optional<String> fetch(NodoChiediFlusso client, Station station, String idPA, String flowId) {
+        if (System.currentTimeMillis() >= this.deadline) {
+            Metrics.increment("prefetch.skipped");
+            return Optional.empty();
+        }
+        try {
+            if (!this.callNodo(client, station, idPA, flowId)) {
+                return Optional.empty();
+            }
+            FaultBean faultBean = client.getNodoChiediFlussoRendicontazioneFault();
+            DataHandler xml = client.getXmlRendicontazione();
+            if (faultBean != null || xml == null) {
+                Metrics.increment("prefetch.faults");
+                this.logger.log(Level.WARNING, () -> "[FlowsPrefetcher] Flow " + flowId + " of " + idPA + " not fetched"
+                        + (faultBean != null ? ": faultBean CODE " + faultBean.getFaultCode() : ""));
+                return Optional.empty();
+            }
+            String blobName = blobName(idPA, flowId);
+            try (InputStream in = xml.getInputStream()) {
+                this.upload(blobName, in);
+            }
+            Metrics.increment("prefetch.flows");
+            return Optional.of(blobName);
+        } catch (ClientTransportException | URISyntaxException | InvalidKeyException | StorageException | IOException e) {
+            Metrics.increment("prefetch.errors");
+            this.logger.log(Level.WARNING, () -> "[FlowsPrefetcher] Flow " + flowId + " of " + idPA + " not prefetched: " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Calls Nodo within the limit of the calls in flight, if any, as the polling of the flows lists does.
+     *
+     * @return false if the limiter gives no permit before the deadline
+     */
+    private boolean callNodo(NodoChiediFlusso client, Station station, String idPA, String flowId) {
+        if (this.nodoLimiter == null) {
+            client.nodoChiediFlussoRendicontazione(idPA, station.getBrokerCode(), station.getStationCode(), station.getPassword(), flowId);
+            return true;
+        }
+        try {
+            if (!this.nodoLimiter.tryAcquire(this.deadline - System.currentTimeMillis())) {
+                Metrics.increment("prefetch.skipped");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Metrics.increment("prefetch.skipped");
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        AdaptiveConcurrencyLimiter.Outcome outcome = AdaptiveConcurrencyLimiter.Outcome.IGNORED;
+        try {
+            client.nodoChiediFlussoRendicontazione(idPA, station.getBrokerCode(), station.getStationCode(), station.getPassword(), flowId);
+            if (client.getNodoChiediFlussoRendicontazioneFault() == null) {
+                outcome = AdaptiveConcurrencyLimiter.Outcome.SUCCESS;
+            }
+            return true;
+        } catch (ClientTransportException e) {
+            if (RetryPolicy.classify(e) != RetryPolicy.FailureClass.UNKNOWN_HOST) {
+                outcome = AdaptiveConcurrencyLimiter.Outcome.DROPPED;
+            }
+            throw e;
+        } finally {
+            this.nodoLimiter.release(outcome, System.currentTimeMillis() - start);
+        }
+    }
+}
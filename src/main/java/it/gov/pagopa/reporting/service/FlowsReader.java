@@ -0,0 +1,79 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import it.gov.pagopa.reporting.entity.FlowEntity;
+import it.gov.pagopa.reporting.utils.FlowPartitionScheme;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Reads the flows table hiding the partition the flows are stored in: the lookups of an organization cover its
+ * partition and all its buckets, so they keep working when its bucketing is switched on or off.
+ */
+public class FlowsReader {
+
+    private final String storageConnectionString;
+    private final String flowsTable;
+    private final FlowPartitionScheme partitionScheme;
+
+    public FlowsReader(String storageConnectionString, String flowsTable, FlowPartitionScheme partitionScheme) {
+        this.storageConnectionString = storageConnectionString;
+        this.flowsTable = flowsTable;
+        this.partitionScheme = partitionScheme;
+    }
+
+    /**
+     * @param flowDate ISO-8601 flow date, null if unknown: required by a point lookup of the MONTH bucketing
+     */
+    public Optional<FlowEntity> getFlow(String idPA, String flowId, String flowDate)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        CloudTable table = this.getTable();
+
+        if (flowDate != null || !this.partitionScheme.isBucketed(idPA)
+                || this.partitionScheme.getBucketing() == FlowPartitionScheme.Bucketing.HASH) {
+            String partitionKey = this.partitionScheme.partitionKey(idPA, flowId, flowDate);
+            FlowEntity flow = table.execute(TableOperation.retrieve(partitionKey, flowId, FlowEntity.class)).getResultAsType();
+            if (flow != null) {
+                return Optional.of(flow);
+            }
+        }
+
+        // stored with a different bucketing, or the bucket is unknown
+        String filter = TableQuery.combineFilters(FlowPartitionScheme.organizationPartitionsFilter(idPA), TableQuery.Operators.AND,
+                TableQuery.generateFilterCondition("RowKey", TableQuery.QueryComparisons.EQUAL, flowId));
+        for (FlowEntity flow : table.execute(TableQuery.from(FlowEntity.class).where(filter))) {
+            return Optional.of(flow);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @param fromFlowDate ISO-8601 flow date, inclusive
+     * @param toFlowDate   ISO-8601 flow date, exclusive
+     */
+    public List<FlowEntity> getFlows(String idPA, String fromFlowDate, String toFlowDate)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        String filter = TableQuery.combineFilters(FlowPartitionScheme.organizationPartitionsFilter(idPA), TableQuery.Operators.AND,
+                TableQuery.combineFilters(
+                        TableQuery.generateFilterCondition("flowDate", TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, fromFlowDate),
+                        TableQuery.Operators.AND,
+                        TableQuery.generateFilterCondition("flowDate", TableQuery.QueryComparisons.LESS_THAN, toFlowDate)));
+
+        List<FlowEntity> flows = new ArrayList<>();
+        this.getTable().execute(TableQuery.from(FlowEntity.class).where(filter)).forEach(flows::add);
+        return flows;
+    }
+
+    private CloudTable getTable() throws URISyntaxException, InvalidKeyException, StorageException {
+        return CloudStorageAccount.parse(this.storageConnectionString).createCloudTableClient()
+                .getTableReference(this.flowsTable);
+    }
+}
@@ -2,25 +2,42 @@ package it.gov.pagopa.reporting.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Lists;
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.queue.CloudQueue;
 import com.microsoft.azure.storage.queue.CloudQueueMessage;
 import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
 import com.microsoft.azure.storage.table.TableBatchOperation;
 import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
 import com.microsoft.azure.storage.table.TableServiceException;
 import it.gov.pagopa.reporting.entity.FlowEntity;
 import it.gov.pagopa.reporting.models.FlowsMessage;
+import it.gov.pagopa.reporting.models.FlowsProcessingResult;
 import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import it.gov.pagopa.reporting.utils.AdaptiveConcurrencyLimiter;
 import it.gov.pagopa.reporting.utils.AzuriteStorageUtil;
+import it.gov.pagopa.reporting.utils.FlowPartitionScheme;
+import it.gov.pagopa.reporting.utils.Metrics;
+import it.gov.pagopa.reporting.utils.QueueMessagePacker;
 
+import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class FlowsService {
@@ -29,7 +46,32 @@ public class FlowsService {
     private String flowsTable;
     private String flowsQueue;
     private Logger logger;
-    private int batchSize = 2;
+    // max number of entities of an Azure Table Storage batch
+    private static final int MAX_BATCH_SIZE = 100;
+    // batches of flows partly stored by a previous poll, stored again without the stored flows
+    private static final int MAX_CONFLICT_ATTEMPTS = 3;
+    private final int maxMessageBytes = System.getenv("QUEUE_MESSAGE_MAX_BYTES") != null
+            ? Integer.parseInt(System.getenv("QUEUE_MESSAGE_MAX_BYTES")) : QueueMessagePacker.MAX_QUEUE_MESSAGE_BYTES;
+    // max number of batches of a PA stored at the same time
+    private final int maxInFlightBatches = System.getenv("FLOWS_MAX_INFLIGHT_BATCHES") != null
+            ? Integer.parseInt(System.getenv("FLOWS_MAX_INFLIGHT_BATCHES")) : 4;
+    // max batches stored at the same time by the worker, adapted to the storage latency and throttling; when set
+    // it replaces the window of each PA, whose size becomes the initial limit
+    private final int maxConcurrentBatches = System.getenv("FLOWS_MAX_CONCURRENCY") != null
+            ? Integer.parseInt(System.getenv("FLOWS_MAX_CONCURRENCY")) : 0;
+    // the notifications are written to the outbox in the batch of their flows, and sent off the invocation
+    private final boolean outboxEnabled = Boolean.parseBoolean(System.getenv("FLOWS_OUTBOX_ENABLED"));
+    private FlowPartitionScheme partitionScheme = FlowPartitionScheme.parse(System.getenv("FLOWS_BUCKETED_ORGANIZATIONS"),
+            System.getenv("FLOWS_BUCKETING"), System.getenv("FLOWS_BUCKETS"));
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "flows-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // null when the flows are not prefetched
+    private FlowsPrefetcher prefetcher;
 
     public FlowsService(String storageConnectionString, String flowsTable, String flowsQueue, Logger logger) {
         this.storageConnectionString = storageConnectionString;
@@ -38,65 +80,164 @@ public class FlowsService {
         this.logger = logger;
     }
 
-    public void flowsProcessing(List<TipoIdRendicontazione> flows, String idPA) {
+    /**
+     * @param prefetcher fetches the new flows before their message is sent, null to send the flow ids only
+     */
+    public FlowsService(String storageConnectionString, String flowsTable, String flowsQueue, FlowsPrefetcher prefetcher, Logger logger) {
+        this(storageConnectionString, flowsTable, flowsQueue, logger);
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * @param partitionScheme the partitioning of the flows of the organizations
+     */
+    public FlowsService(String storageConnectionString, String flowsTable, String flowsQueue, FlowPartitionScheme partitionScheme,
+                        FlowsPrefetcher prefetcher, Logger logger) {
+        this(storageConnectionString, flowsTable, flowsQueue, prefetcher, logger);
+        this.partitionScheme = partitionScheme;
+    }
+
+    public FlowsProcessingResult flowsProcessing(List<TipoIdRendicontazione> flows, String idPA) {
 
         createEnv();
 
+        FlowsProcessingResult result = new FlowsProcessingResult();
+
         this.logger.log(Level.INFO, "[FlowsService] START flows storing ");
 
         /**
-         * Flows partition due to max batch size of Azure Table Storage - 100
+         * Flows partition due to max batch size of Azure Table Storage - 100 - and max queue message size - 64 KB,
+         * a batch must also have a single partition key
          */
-        List<List<TipoIdRendicontazione>> partitionsFlows = Lists.partition(flows, batchSize);
+        List<List<TipoIdRendicontazione>> partitionsFlows = new ArrayList<>();
+        FlowPartitionScheme.Layouts layouts;
+        try {
+            layouts = this.getPartitionLayouts(idPA);
+        } catch (URISyntaxException | InvalidKeyException | StorageException e) {
+            this.logger.log(Level.SEVERE, () -> "[FlowsService] Error retrieving the partition layouts of " + idPA + " " + e.getLocalizedMessage());
+            result.addFailedFlows(flows.size());
+            return result;
+        }
+        try {
+            QueueMessagePacker<TipoIdRendicontazione> packer = new QueueMessagePacker<>(maxMessageBytes, this.getMaxBatchFlows());
+            for (List<TipoIdRendicontazione> partitionKeyFlows : this.groupByPartitionKey(flows, idPA, layouts)) {
+                partitionsFlows.addAll(packer.pack(partitionKeyFlows, partition -> this.buildSizingMessage(partition, idPA)));
+            }
+        } catch (JsonProcessingException e) {
+            this.logger.log(Level.SEVERE, () -> "[FlowsService] Error sizing flows messages " + e.getLocalizedMessage());
+            result.addFailedFlows(flows.size());
+            return result;
+        }
         this.logger.log(Level.INFO, () -> "[FlowsService] " + flows.size() + " flows in " + partitionsFlows.size()
-                + "  batch of size " + batchSize);
+                + " batch of max size " + this.getMaxBatchFlows() + " and max message bytes " + maxMessageBytes);
 
         /**
-         * Scan partitions
+         * Scan partitions: they are independent transactions, submitted with a bounded in-flight window
          */
-        IntStream.range(0, partitionsFlows.size()).forEach(partitionFlowsIndex -> {
-
+        long start = System.currentTimeMillis();
+        AdaptiveConcurrencyLimiter limiter = this.getLimiterInstance();
+        if (limiter != null) {
+            this.limitedProcessing(partitionsFlows, idPA, limiter, result);
+        } else if (partitionsFlows.size() <= 1 || this.maxInFlightBatches <= 1) {
+            IntStream.range(0, partitionsFlows.size()).forEach(partitionFlowsIndex ->
+                    this.partitionProcessing(partitionsFlows.get(partitionFlowsIndex), idPA, partitionFlowsIndex, result));
+        } else {
+            Semaphore window = new Semaphore(this.maxInFlightBatches);
+            List<CompletableFuture<Void>> futures = new ArrayList<>(partitionsFlows.size());
             try {
+                for (int i = 0; i < partitionsFlows.size(); i++) {
+                    int partitionFlowsIndex = i;
+                    window.acquire();
+                    futures.add(CompletableFuture
+                            .runAsync(() -> this.partitionProcessing(partitionsFlows.get(partitionFlowsIndex), idPA, partitionFlowsIndex, result), EXECUTOR)
+                            .whenComplete((r, e) -> window.release()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.logger.log(Level.SEVERE, () -> "[FlowsService] Interrupted submitting batches of " + idPA);
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+            // partitions never submitted
+            partitionsFlows.subList(futures.size(), partitionsFlows.size())
+                    .forEach(partition -> result.addFailedFlows(partition.size()));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Metrics.record("flows.storing.ms", elapsed);
 
-                /**
-                 * Partition Batch Processing
-                 */
-                this.flowsBatchProcessing(partitionsFlows.get(partitionFlowsIndex), idPA, partitionFlowsIndex);
-            } catch (TableServiceException e) {
+        this.logger.log(Level.INFO, () -> "[FlowsService] END flows storing: " + result.getNewFlows() + " new, "
+                + result.getDuplicateFlows() + " duplicate, " + result.getFailedFlows() + " failed in " + elapsed + " ms");
+        return result;
+    }
 
-                this.logger.log(Level.SEVERE,
-                        () -> "[FlowsService] Azure Table Storage Error:  " + e.getErrorCode() + " : "
-                                + e.getExtendedErrorInformation().getErrorMessage() + " for batch "
-                                + partitionFlowsIndex);
-
-                /**
-                 * Partition Individual Processing, scan flows
-                 */
-                partitionsFlows.get(partitionFlowsIndex).forEach(flow -> {
-                    try {
-                        this.flowProcessing(flow, idPA);
-                    } catch (TableServiceException et) {
-
-                        this.logger.log(Level.SEVERE,
-                                () -> "[FlowsService] Azure Table Storage Error:  " + et.getErrorCode() + " : "
-                                        + et.getExtendedErrorInformation().getErrorMessage() + " for flow "
-                                        + flow.getIdentificativoFlusso());
-                    } catch (StorageException | InvalidKeyException | URISyntaxException | JsonProcessingException es) {
-
-                        this.logger.log(Level.SEVERE, () -> "[FlowsService]  Error " + es.getLocalizedMessage()
-                                + " flow " + flow.getIdentificativoFlusso());
-                    }
-                });
-
-            } catch (Exception e) {
-
-                this.logger.severe(String.format("[FlowsService] Generic Error %s  in batch %s",
-                        e.getLocalizedMessage(), partitionFlowsIndex));
+    /**
+     * Submits the partitions within the limit of the batches in flight of the worker.
+     */
+    private void limitedProcessing(List<List<TipoIdRendicontazione>> partitionsFlows, String idPA,
+                                   AdaptiveConcurrencyLimiter limiter, FlowsProcessingResult result) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(partitionsFlows.size());
+        try {
+            for (int i = 0; i < partitionsFlows.size(); i++) {
+                int partitionFlowsIndex = i;
+                limiter.acquire();
+                long batchStart = System.currentTimeMillis();
+                futures.add(CompletableFuture
+                        .supplyAsync(() -> this.partitionProcessing(partitionsFlows.get(partitionFlowsIndex), idPA, partitionFlowsIndex, result), EXECUTOR)
+                        .handle((outcome, e) -> {
+                            limiter.release(outcome != null ? outcome : AdaptiveConcurrencyLimiter.Outcome.IGNORED,
+                                    System.currentTimeMillis() - batchStart);
+                            return null;
+                        }));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.logger.log(Level.SEVERE, () -> "[FlowsService] Interrupted submitting batches of " + idPA);
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        // partitions never submitted
+        partitionsFlows.subList(futures.size(), partitionsFlows.size())
+                .forEach(partition -> result.addFailedFlows(partition.size()));
+    }
 
-        });
+    /**
+     * @return the outcome of the batch for the concurrency limit: dropped when the storage is busy or timed out
+     */
+    private AdaptiveConcurrencyLimiter.Outcome partitionProcessing(List<TipoIdRendicontazione> partition, String idPA,
+                                                                   int partitionFlowsIndex, FlowsProcessingResult result) {
+        AdaptiveConcurrencyLimiter.Outcome outcome = AdaptiveConcurrencyLimiter.Outcome.IGNORED;
+        try {
+
+            /**
+             * Partition Batch Processing
+             */
+            result.addBatch();
+            this.flowsBatchProcessing(partition, idPA, partitionFlowsIndex);
+            result.addNewFlows(partition.size());
+            outcome = AdaptiveConcurrencyLimiter.Outcome.SUCCESS;
+        } catch (TableServiceException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_UNAVAILABLE || e.getHttpStatusCode() == HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                // ServerBusy or OperationTimedOut
+                outcome = AdaptiveConcurrencyLimiter.Outcome.DROPPED;
+            }
+
+            this.logger.log(Level.SEVERE,
+                    () -> "[FlowsService] Azure Table Storage Error:  " + e.getErrorCode() + " : "
+                            + e.getExtendedErrorInformation().getErrorMessage() + " for batch "
+                            + partitionFlowsIndex);
+
+            result.addFallback();
+            if (this.outboxEnabled) {
+                this.conflictProcessing(partition, idPA, partitionFlowsIndex, e, result);
+            } else {
+                this.individualProcessing(partition, idPA, result);
+            }
+
+        } catch (Exception e) {
 
-        this.logger.log(Level.INFO, "[FlowsService] END flows storing ");
+            result.addFailedFlows(partition.size());
+            this.logger.severe(String.format("[FlowsService] Generic Error %s  in batch %s",
+                    e.getLocalizedMessage(), partitionFlowsIndex));
+        }
+        return outcome;
     }
 
     public void flowsBatchProcessing(List<TipoIdRendicontazione> partition, String idPA, int partitionFlowsIndex)
@@ -109,23 +250,29 @@ public class FlowsService {
         CloudTable table = CloudStorageAccount.parse(storageConnectionString).createCloudTableClient()
                 .getTableReference(this.flowsTable);
 
+        FlowPartitionScheme.Layouts layouts = this.getPartitionLayouts(idPA);
         TableBatchOperation batchOperation = new TableBatchOperation();
 
-        partition.forEach(flow -> batchOperation.insert(
-                new FlowEntity(flow.getIdentificativoFlusso(), flow.getDataOraFlusso().toString(), idPA)
-        ));
+        partition.forEach(flow -> batchOperation.insert(this.buildFlowEntity(flow, idPA, layouts)));
+
+        String message = new ObjectMapper().writeValueAsString(this.buildFlowsMessage(partition, idPA));
+        FlowsOutbox outbox = this.getFlowsOutboxInstance();
+        DynamicTableEntity outboxEntry = null;
+        if (outbox != null) {
+            // in the partition shared by the flows of the batch, stored with them or not at all
+            outboxEntry = FlowsOutbox.entry(this.partitionKey(partition, idPA, layouts), message);
+            batchOperation.insert(outboxEntry);
+        }
 
         this.logger.log(Level.INFO, () -> "[FlowsService] Storing batch - partition index: " + partitionFlowsIndex);
         table.execute(batchOperation);
 
-        FlowsMessage flows = new FlowsMessage();
-        flows.setFlows(partition.toArray(TipoIdRendicontazione[]::new));
-        flows.setIdPA(idPA);
-        flows.setRetry(0);
-        String message = new ObjectMapper().writeValueAsString(flows);
-
         this.logger.log(Level.INFO, () -> "[FlowsService] Sending messages - partition index: " + partitionFlowsIndex);
-        queue.addMessage(new CloudQueueMessage(message));
+        if (outbox != null) {
+            this.publish(partition, idPA, outbox, outboxEntry);
+        } else {
+            queue.addMessage(new CloudQueueMessage(message));
+        }
     }
 
     public void flowProcessing(TipoIdRendicontazione flow, String idPA)
@@ -137,19 +284,196 @@ public class FlowsService {
                 .getTableReference(this.flowsTable);
 
         this.logger.log(Level.INFO, () -> "[FlowsService] Storing flow " + flow.getIdentificativoFlusso());
-        table.execute(TableOperation.insert(new FlowEntity(flow.getIdentificativoFlusso(),
-                flow.getDataOraFlusso().toString(), idPA)));
+        table.execute(TableOperation.insert(this.buildFlowEntity(flow, idPA, this.getPartitionLayouts(idPA))));
 
-        FlowsMessage flows = new FlowsMessage();
-        flows.setFlows(new TipoIdRendicontazione[] { flow });
-        flows.setIdPA(idPA);
-        flows.setRetry(Integer.valueOf(0));
-        String message = new ObjectMapper().writeValueAsString(flows);
+        String message = new ObjectMapper().writeValueAsString(this.buildFlowsMessage(List.of(flow), idPA));
 
         this.logger.log(Level.INFO, () -> "[FlowsService] Sending messages:  " + message);
         queue.addMessage(new CloudQueueMessage(message));
     }
 
+    /**
+     * Stores the flows of a rejected batch one by one, when the notifications are sent after the batch only.
+     */
+    private void individualProcessing(List<TipoIdRendicontazione> partition, String idPA, FlowsProcessingResult result) {
+        partition.forEach(flow -> {
+            try {
+                this.flowProcessing(flow, idPA);
+                result.addNewFlows(1);
+            } catch (TableServiceException et) {
+
+                if (et.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT) {
+                    // already stored by a previous poll
+                    result.addDuplicateFlow();
+                } else {
+                    result.addFailedFlows(1);
+                }
+                this.logger.log(Level.SEVERE,
+                        () -> "[FlowsService] Azure Table Storage Error:  " + et.getErrorCode() + " : "
+                                + et.getExtendedErrorInformation().getErrorMessage() + " for flow "
+                                + flow.getIdentificativoFlusso());
+            } catch (StorageException | InvalidKeyException | URISyntaxException | JsonProcessingException es) {
+
+                result.addFailedFlows(1);
+                this.logger.log(Level.SEVERE, () -> "[FlowsService]  Error " + es.getLocalizedMessage()
+                        + " flow " + flow.getIdentificativoFlusso());
+            }
+        });
+    }
+
+    /**
+     * Stores again the flows of a batch rejected because some of them were stored by a previous poll, without the
+     * stored ones and with their own outbox entry: a query and a batch per attempt, instead of a transaction per flow.
+     * A batch rejected for another reason is failed, its flows are stored by the next poll.
+     */
+    private void conflictProcessing(List<TipoIdRendicontazione> partition, String idPA, int partitionFlowsIndex,
+                                    TableServiceException rejection, FlowsProcessingResult result) {
+        List<TipoIdRendicontazione> remaining = partition;
+        TableServiceException e = rejection;
+        for (int attempt = 0; attempt < MAX_CONFLICT_ATTEMPTS && e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT; attempt++) {
+            try {
+                Set<String> stored = this.getStoredFlowIds(remaining, idPA);
+                List<TipoIdRendicontazione> notStored = remaining.stream()
+                        .filter(flow -> !stored.contains(flow.getIdentificativoFlusso()))
+                        .collect(Collectors.toList());
+                stored.forEach(flowId -> result.addDuplicateFlow());
+                remaining = notStored;
+                if (remaining.isEmpty()) {
+                    return;
+                }
+                this.flowsBatchProcessing(remaining, idPA, partitionFlowsIndex);
+                result.addNewFlows(remaining.size());
+                return;
+            } catch (TableServiceException et) {
+                e = et;
+            } catch (StorageException | InvalidKeyException | URISyntaxException | JsonProcessingException es) {
+                this.logger.log(Level.SEVERE, () -> "[FlowsService]  Error " + es.getLocalizedMessage()
+                        + " in batch " + partitionFlowsIndex);
+                break;
+            }
+        }
+        result.addFailedFlows(remaining.size());
+    }
+
+    /**
+     * @return the ids of the flows already stored, read with a range query on the row keys of their partition
+     */
+    private Set<String> getStoredFlowIds(List<TipoIdRendicontazione> flows, String idPA)
+            throws InvalidKeyException, URISyntaxException, StorageException {
+        CloudTable table = CloudStorageAccount.parse(storageConnectionString).createCloudTableClient()
+                .getTableReference(this.flowsTable);
+        Set<String> flowIds = flows.stream().map(TipoIdRendicontazione::getIdentificativoFlusso).collect(Collectors.toSet());
+        List<String> sortedFlowIds = flowIds.stream().sorted().collect(Collectors.toList());
+
+        String filter = TableQuery.combineFilters(
+                TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.EQUAL,
+                        this.partitionKey(flows, idPA, this.getPartitionLayouts(idPA))),
+                TableQuery.Operators.AND,
+                TableQuery.combineFilters(
+                        TableQuery.generateFilterCondition("RowKey", TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, sortedFlowIds.get(0)),
+                        TableQuery.Operators.AND,
+                        TableQuery.generateFilterCondition("RowKey", TableQuery.QueryComparisons.LESS_THAN_OR_EQUAL,
+                                sortedFlowIds.get(sortedFlowIds.size() - 1))));
+        Set<String> stored = new HashSet<>();
+        for (DynamicTableEntity entity : table.execute(TableQuery.from(DynamicTableEntity.class).where(filter).select(new String[]{"RowKey"}))) {
+            if (flowIds.contains(entity.getRowKey())) {
+                stored.add(entity.getRowKey());
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Hands the notification of the flows just stored to the outbox publisher, with the blobs of the flows prefetched
+     * if any: the sweeper sends the stored notification, without blobs, only if this one is not sent.
+     */
+    private void publish(List<TipoIdRendicontazione> flows, String idPA, FlowsOutbox outbox, DynamicTableEntity outboxEntry)
+            throws JsonProcessingException {
+        if (this.prefetcher != null) {
+            FlowsMessage flowsMessage = this.buildFlowsMessage(flows, idPA);
+            flowsMessage.setBlobs(this.prefetcher.prefetch(idPA, flows));
+            FlowsOutbox.setMessage(outboxEntry, new ObjectMapper().writeValueAsString(flowsMessage));
+        }
+        outbox.publish(outboxEntry);
+    }
+
+    /**
+     * @return the outbox of the notifications, null if the notifications are sent after the batch only
+     */
+    public FlowsOutbox getFlowsOutboxInstance() {
+        return this.outboxEnabled
+                ? new FlowsOutbox(this.storageConnectionString, this.flowsTable, this.flowsQueue, this.logger)
+                : null;
+    }
+
+    /**
+     * @return the max flows of a batch, one entity less when the batch holds the outbox entry
+     */
+    private int getMaxBatchFlows() {
+        return this.outboxEnabled ? MAX_BATCH_SIZE - 1 : MAX_BATCH_SIZE;
+    }
+
+    public AdaptiveConcurrencyLimiter getLimiterInstance() {
+        return this.maxConcurrentBatches > 0
+                ? AdaptiveConcurrencyLimiter.of("storage", this.maxInFlightBatches, this.maxConcurrentBatches)
+                : null;
+    }
+
+    /**
+     * @return the layouts the flows of the organization are stored with, the configured one only if never changed
+     */
+    public FlowPartitionScheme.Layouts getPartitionLayouts(String idPA) throws URISyntaxException, InvalidKeyException, StorageException {
+        if (!this.partitionScheme.isTracked()) {
+            return FlowPartitionScheme.Layouts.of(this.partitionScheme.layout(idPA));
+        }
+        return new FlowPartitionRegistry(this.storageConnectionString, this.flowsTable, this.partitionScheme, this.logger).getLayouts(idPA);
+    }
+
+    private List<List<TipoIdRendicontazione>> groupByPartitionKey(List<TipoIdRendicontazione> flows, String idPA,
+                                                                  FlowPartitionScheme.Layouts layouts) {
+        if (!layouts.isBucketed()) {
+            return List.of(flows);
+        }
+        Map<String, List<TipoIdRendicontazione>> partitionKeyFlows = flows.stream().collect(Collectors.groupingBy(
+                flow -> layouts.partitionKey(idPA, flow.getIdentificativoFlusso(), flow.getDataOraFlusso().toString()),
+                LinkedHashMap::new, Collectors.toList()));
+        Metrics.add("flows.bucketed", flows.size());
+        return new ArrayList<>(partitionKeyFlows.values());
+    }
+
+    /**
+     * @return the partition key shared by the flows of a batch
+     */
+    private String partitionKey(List<TipoIdRendicontazione> flows, String idPA, FlowPartitionScheme.Layouts layouts) {
+        TipoIdRendicontazione first = flows.get(0);
+        return layouts.partitionKey(idPA, first.getIdentificativoFlusso(), first.getDataOraFlusso().toString());
+    }
+
+    private FlowEntity buildFlowEntity(TipoIdRendicontazione flow, String idPA, FlowPartitionScheme.Layouts layouts) {
+        String flowDate = flow.getDataOraFlusso().toString();
+        return new FlowEntity(flow.getIdentificativoFlusso(), flowDate, idPA,
+                layouts.partitionKey(idPA, flow.getIdentificativoFlusso(), flowDate));
+    }
+
+    /**
+     * @return the largest message of the flows, with the blobs of all of them when they are prefetched
+     */
+    private FlowsMessage buildSizingMessage(List<TipoIdRendicontazione> partition, String idPA) {
+        FlowsMessage flows = this.buildFlowsMessage(partition, idPA);
+        if (this.prefetcher != null) {
+            flows.setBlobs(FlowsPrefetcher.blobNames(idPA, partition));
+        }
+        return flows;
+    }
+
+    private FlowsMessage buildFlowsMessage(List<TipoIdRendicontazione> partition, String idPA) {
+        FlowsMessage flows = new FlowsMessage();
+        flows.setFlows(partition.toArray(TipoIdRendicontazione[]::new));
+        flows.setIdPA(idPA);
+        flows.setRetry(0);
+        return flows;
+    }
+
     private void createEnv() {
         AzuriteStorageUtil azuriteStorageUtil = new AzuriteStorageUtil(storageConnectionString, flowsTable, flowsQueue);
         try {
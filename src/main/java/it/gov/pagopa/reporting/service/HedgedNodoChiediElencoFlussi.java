@@ -0,0 +1,256 @@
+package it.gov.pagopa.reporting.service;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.resources.ClientMessages;
+import it.gov.pagopa.reporting.servicewsdl.FaultBean;
+import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
+import it.gov.pagopa.reporting.utils.AdaptiveConcurrencyLimiter;
+import it.gov.pagopa.reporting.utils.Metrics;
+import it.gov.pagopa.reporting.utils.RetryPolicy;
+
+import javax.xml.ws.Holder;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client of nodoChiediElencoFlussiRendicontazione sending a second, identical request when the first one has not
+ * answered within a percentile of the recent latencies; the first response wins and the other one is discarded.
+ * The query is read-only, so the duplicated request is harmless, but the hedges are capped to protect Nodo: each call
+ * of the worker earns a fraction of a hedge, up to a small burst, and a hedge takes a permit of the Nodo limiter, if
+ * any, without waiting for it. The requests are sent by clients of the wrapped type, since a client holds the
+ * response of its last call: a client still waiting for a discarded response is not used again until it completes.
+ */
+public class HedgedNodoChiediElencoFlussi extends NodoChiediElencoFlussi {
+
+    // latencies required before hedging
+    public static final int MIN_SAMPLES = 20;
+    private static final int WINDOW_SIZE = 200;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "nodo-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // latencies of the last calls of the worker, in millis
+    private static final long[] LATENCIES = new long[WINDOW_SIZE];
+    private static int samples;
+    private static int next;
+    // hedges allowed to the worker, earned by its calls
+    private static double hedgeTokens;
+
+    private final Supplier<NodoChiediElencoFlussi> clientFactory;
+    private final Queue<NodoChiediElencoFlussi> idleClients = new ConcurrentLinkedQueue<>();
+    private final int percentile;
+    private final double maxHedgeRate;
+    // null when the Nodo calls are not limited
+    private AdaptiveConcurrencyLimiter nodoLimiter;
+    private final Logger logger;
+
+    /**
+     * @param clientFactory creates the clients sending the requests
+     * @param percentile    percentile of the recent latencies after which the hedge is sent, e.g. 95
+     * @param maxHedgeRate  max hedges per call of the worker, e.g. 0.05
+     */
+    public HedgedNodoChiediElencoFlussi(Supplier<NodoChiediElencoFlussi> clientFactory, int percentile, double maxHedgeRate, Logger logger) {
+        this.clientFactory = clientFactory;
+        this.percentile = percentile;
+        this.maxHedgeRate = maxHedgeRate;
+        this.logger = logger;
+    }
+
+    /**
+     * @param nodoLimiter the limiter of the Nodo calls of the worker, null if not limited
+     */
+    public HedgedNodoChiediElencoFlussi(Supplier<NodoChiediElencoFlussi> clientFactory, int percentile, double maxHedgeRate,
+                                        AdaptiveConcurrencyLimiter nodoLimiter, Logger logger) {
+        this(clientFactory, percentile, maxHedgeRate, logger);
+        this.nodoLimiter = nodoLimiter;
+    }
+
+    @Override
+    public void nodoChiediElencoFlussiRendicontazione(String idPa,
+                                                      String idIntermediarioPA,
+                                                      String idStazioneIntermediarioPA,
+                                                      String passwordStazione) throws ClientTransportException {
+        earnHedgeToken(this.maxHedgeRate);
+        long hedgeDelay = hedgeDelay(this.percentile);
+        CompletableFuture<Response> primary = this.send(idPa, idIntermediarioPA, idStazioneIntermediarioPA, passwordStazione);
+        Response response;
+        try {
+            if (hedgeDelay < 0) {
+                response = primary.get();
+            } else {
+                Metrics.gauge("nodo.hedge.delay.ms", hedgeDelay);
+                response = this.hedge(primary, hedgeDelay, idPa, idIntermediarioPA, idStazioneIntermediarioPA, passwordStazione);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ClientTransportException) {
+                throw (ClientTransportException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(e.getCause()), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(e), e);
+        }
+
+        this.setNodoChiediElencoFlussiRendicontazioneFault(new Holder<>(response.fault));
+        this.setNodoChiediElencoFlussiRendicontazione(new Holder<>(response.elenco));
+    }
+
+    private Response hedge(CompletableFuture<Response> primary, long hedgeDelay, String idPa, String idIntermediarioPA,
+                           String idStazioneIntermediarioPA, String passwordStazione) throws ExecutionException, InterruptedException {
+        try {
+            return primary.get(hedgeDelay, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (!takeHedgeToken()) {
+                Metrics.increment("nodo.hedge.capped");
+                return primary.get();
+            }
+            if (this.nodoLimiter != null && !this.nodoLimiter.tryAcquire(0)) {
+                refundHedgeToken();
+                Metrics.increment("nodo.hedge.limited");
+                return primary.get();
+            }
+        }
+
+        Metrics.increment("nodo.hedge.sent");
+        this.logger.log(Level.INFO, () -> "[HedgedNodoChiediElencoFlussi] idPa: " + idPa + ", idStazione: " + idStazioneIntermediarioPA
+                + " no response in " + hedgeDelay + " ms, request hedged");
+        long hedgeStart = System.currentTimeMillis();
+        CompletableFuture<Response> hedge = this.send(idPa, idIntermediarioPA, idStazioneIntermediarioPA, passwordStazione);
+        if (this.nodoLimiter != null) {
+            // released when the hedge completes, even if discarded
+            hedge.whenComplete((hedgeResponse, e) -> this.nodoLimiter.release(outcome(hedgeResponse, e), System.currentTimeMillis() - hedgeStart));
+        }
+        Response response = firstResponse(primary, hedge).get();
+        if (response.hedge) {
+            Metrics.increment("nodo.hedge.won");
+        }
+        return response;
+    }
+
+    private CompletableFuture<Response> send(String idPa, String idIntermediarioPA, String idStazioneIntermediarioPA,
+                                             String passwordStazione) {
+        NodoChiediElencoFlussi idle = this.idleClients.poll();
+        NodoChiediElencoFlussi client = idle != null ? idle : this.clientFactory.get();
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                client.nodoChiediElencoFlussiRendicontazione(idPa, idIntermediarioPA, idStazioneIntermediarioPA, passwordStazione);
+                recordLatency(System.currentTimeMillis() - start);
+                return new Response(client.getNodoChiediElencoFlussiRendicontazioneFault(),
+                        client.getNodoChiediElencoFlussiRendicontazione(), false);
+            } finally {
+                this.idleClients.add(client);
+            }
+        }, EXECUTOR);
+    }
+
+    /**
+     * @return the outcome of a hedge for the limiter: a fault leaves the limit unchanged, as the retryable faults
+     * are not classified here
+     */
+    private static AdaptiveConcurrencyLimiter.Outcome outcome(Response response, Throwable e) {
+        if (e == null) {
+            return response.fault == null ? AdaptiveConcurrencyLimiter.Outcome.SUCCESS : AdaptiveConcurrencyLimiter.Outcome.IGNORED;
+        }
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof ClientTransportException && RetryPolicy.classify(cause) != RetryPolicy.FailureClass.UNKNOWN_HOST
+                ? AdaptiveConcurrencyLimiter.Outcome.DROPPED
+                : AdaptiveConcurrencyLimiter.Outcome.IGNORED;
+    }
+
+    /**
+     * @return the first call answering, or the last failure if both fail
+     */
+    private static CompletableFuture<Response> firstResponse(CompletableFuture<Response> primary, CompletableFuture<Response> hedge) {
+        CompletableFuture<Response> first = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        CompletableFuture<Response> markedHedge = hedge.thenApply(response -> new Response(response.fault, response.elenco, true));
+        Arrays.asList(primary, markedHedge).forEach(call -> call.whenComplete((response, e) -> {
+            if (e == null) {
+                first.complete(response);
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+        }));
+        return first;
+    }
+
+    /**
+     * @return the percentile of the recent latencies, or -1 while they are too few
+     */
+    private static synchronized long hedgeDelay(int percentile) {
+        int size = samples;
+        if (size < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(LATENCIES, size);
+        Arrays.sort(sorted);
+        return sorted[Math.min(size - 1, (int) Math.ceil(percentile / 100.0 * size) - 1)];
+    }
+
+    /**
+     * A call earns maxHedgeRate hedges, up to the hedges earned by MIN_SAMPLES calls, at least one: a quiet period
+     * does not build up more than a small burst of hedges.
+     */
+    private static synchronized void earnHedgeToken(double maxHedgeRate) {
+        hedgeTokens = Math.min(Math.max(1, maxHedgeRate * MIN_SAMPLES), hedgeTokens + maxHedgeRate);
+    }
+
+    private static synchronized boolean takeHedgeToken() {
+        if (hedgeTokens < 1) {
+            return false;
+        }
+        hedgeTokens--;
+        return true;
+    }
+
+    private static synchronized void refundHedgeToken() {
+        hedgeTokens++;
+    }
+
+    private static synchronized void recordLatency(long latency) {
+        LATENCIES[next] = latency;
+        next = (next + 1) % WINDOW_SIZE;
+        samples = Math.min(WINDOW_SIZE, samples + 1);
+    }
+
+    /**
+     * Forgets the latencies and the hedges, for tests.
+     */
+    public static synchronized void reset() {
+        Arrays.fill(LATENCIES, 0);
+        samples = 0;
+        next = 0;
+        hedgeTokens = 0;
+    }
+
+    private static final class Response {
+        private final FaultBean fault;
+        private final TipoElencoFlussiRendicontazione elenco;
+        private final boolean hedge;
+
+        private Response(FaultBean fault, TipoElencoFlussiRendicontazione elenco, boolean hedge) {
+            this.fault = fault;
+            this.elenco = elenco;
+            this.hedge = hedge;
+        }
+    }
+}
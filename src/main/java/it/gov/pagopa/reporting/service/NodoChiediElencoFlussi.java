@@ -24,6 +24,12 @@ public class NodoChiediElencoFlussi {
         port = ss.getPagamentiTelematiciRPTPort();
     }
 
+    /**
+     * For the clients not using the JAX-WS port.
+     */
+    protected NodoChiediElencoFlussi() {
+    }
+
     public void setNodoChiediElencoFlussiRendicontazioneFault(
             Holder<FaultBean> nodoChiediElencoFlussiRendicontazioneFault) {
         this.nodoChiediElencoFlussiRendicontazioneFault = nodoChiediElencoFlussiRendicontazioneFault;
@@ -45,6 +51,9 @@ public class NodoChiediElencoFlussi {
                 : null;
     }
 
+    /**
+     * @param idPa null to list the flows of all the organizations of the station
+     */
     public void nodoChiediElencoFlussiRendicontazione(String idPa,
                                                       String idIntermediarioPA,
                                                       String idStazioneIntermediarioPA,
@@ -0,0 +1,69 @@
+package it.gov.pagopa.reporting.service;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import it.gov.pagopa.reporting.servicewsdl.FaultBean;
+import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPT;
+import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPTservice;
+
+import javax.activation.DataHandler;
+import javax.xml.ws.Holder;
+
+/**
+ * Client of nodoChiediFlussoRendicontazione, returning the XML of a flow.
+ */
+public class NodoChiediFlusso {
+
+    private PagamentiTelematiciRPT port;
+    private Holder<FaultBean> nodoChiediFlussoRendicontazioneFault;
+    private Holder<DataHandler> xmlRendicontazione;
+
+    public NodoChiediFlusso() {
+        port = new PagamentiTelematiciRPTservice(PagamentiTelematiciRPTservice.WSDL_LOCATION).getPagamentiTelematiciRPTPort();
+    }
+
+    /**
+     * For the clients not using the JAX-WS port.
+     */
+    protected NodoChiediFlusso(PagamentiTelematiciRPT port) {
+        this.port = port;
+    }
+
+    public void setNodoChiediFlussoRendicontazioneFault(Holder<FaultBean> nodoChiediFlussoRendicontazioneFault) {
+        this.nodoChiediFlussoRendicontazioneFault = nodoChiediFlussoRendicontazioneFault;
+    }
+
+    public void setXmlRendicontazione(Holder<DataHandler> xmlRendicontazione) {
+        this.xmlRendicontazione = xmlRendicontazione;
+    }
+
+    public FaultBean getNodoChiediFlussoRendicontazioneFault() {
+        return nodoChiediFlussoRendicontazioneFault != null ? nodoChiediFlussoRendicontazioneFault.value : null;
+    }
+
+    /**
+     * @return the flow XML, read from its input stream
+     */
+    public DataHandler getXmlRendicontazione() {
+        return xmlRendicontazione != null ? xmlRendicontazione.value : null;
+    }
+
+    public void nodoChiediFlussoRendicontazione(String idPa,
+                                                String idIntermediarioPA,
+                                                String idStazioneIntermediarioPA,
+                                                String passwordStazione,
+                                                String idFlusso) throws ClientTransportException {
+
+        var faultLocal = new Holder<FaultBean>();
+        var xmlRendicontazioneLocal = new Holder<DataHandler>();
+
+        port.nodoChiediFlussoRendicontazione(
+                idIntermediarioPA,
+                idStazioneIntermediarioPA,
+                passwordStazione, idPa, null, idFlusso,
+                faultLocal,
+                xmlRendicontazioneLocal);
+
+        setNodoChiediFlussoRendicontazioneFault(faultLocal);
+        setXmlRendicontazione(xmlRendicontazioneLocal);
+    }
+}
@@ -0,0 +1,73 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.TableServiceEntity;
+import it.gov.pagopa.reporting.utils.Metrics;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory roster of the entities of a partition of the organizations table, i.e. the onboarded organizations or
+ * their polling states, kept by the timer worker between its runs.
+ * A run reads only the entities changed since the last sync, by their Timestamp; a periodic full sync
+ * drops the entities deleted in the meantime. When a sync fails the roster is served as it is.
+ */
+public class OrganizationsRoster<T extends TableServiceEntity> {
+
+    // the Timestamp of an entity is set by the service, so concurrent writes may commit slightly out of order
+    private static final long SYNC_OVERLAP_MILLIS = 60_000;
+
+    @FunctionalInterface
+    public interface Query<T> {
+        /**
+         * @param modifiedSince null to read all the entities
+         */
+        List<T> query(Date modifiedSince) throws URISyntaxException, InvalidKeyException, StorageException;
+    }
+
+    // prefix of the metrics of the roster
+    private final String name;
+    private final Map<String, T> entities = new TreeMap<>();
+    private Date lastTimestamp;
+    private long lastFullSync;
+
+    public OrganizationsRoster(String name) {
+        this.name = name;
+    }
+
+    public synchronized List<T> sync(Query<T> query, long fullSyncIntervalMillis, Logger logger) {
+        long now = System.currentTimeMillis();
+        boolean full = this.lastTimestamp == null || now - this.lastFullSync >= fullSyncIntervalMillis;
+        try {
+            List<T> changed = query.query(full ? null : new Date(this.lastTimestamp.getTime() - SYNC_OVERLAP_MILLIS));
+            if (full) {
+                this.entities.clear();
+                this.lastTimestamp = null;
+                this.lastFullSync = now;
+            }
+            for (T entity : changed) {
+                this.entities.put(entity.getRowKey(), entity);
+                if (this.lastTimestamp == null || entity.getTimestamp().after(this.lastTimestamp)) {
+                    this.lastTimestamp = entity.getTimestamp();
+                }
+            }
+            Metrics.increment(this.name + (full ? ".sync.full" : ".sync.delta"));
+            Metrics.add(this.name + ".sync.read", changed.size());
+            logger.log(Level.INFO, () -> "[OrganizationsRoster] " + (full ? "full" : "delta") + " sync read " + changed.size()
+                    + " " + this.name + ", roster size " + this.entities.size());
+        } catch (Exception e) {
+            Metrics.increment(this.name + ".sync.errors");
+            logger.log(Level.SEVERE, () -> "[OrganizationsRoster] Problem to sync " + this.name + ": " + e.getLocalizedMessage());
+        }
+        Metrics.gauge(this.name + ".roster.size", this.entities.size());
+        return new ArrayList<>(this.entities.values());
+    }
+}
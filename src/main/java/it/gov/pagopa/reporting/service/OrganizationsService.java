@@ -2,20 +2,24 @@ package it.gov.pagopa.reporting.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Lists;
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.queue.CloudQueue;
 import com.microsoft.azure.storage.queue.CloudQueueMessage;
 import com.microsoft.azure.storage.table.*;
 import it.gov.pagopa.reporting.entity.OrganizationEntity;
+import it.gov.pagopa.reporting.entity.OrganizationStateEntity;
 import it.gov.pagopa.reporting.models.OrganizationsMessage;
 import it.gov.pagopa.reporting.utils.AzuriteStorageUtil;
+import it.gov.pagopa.reporting.utils.Metrics;
+import it.gov.pagopa.reporting.utils.QueueMessagePacker;
 
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.IntStream;
@@ -33,9 +37,14 @@ public class OrganizationsService {
     //      it is added to the queue, or 0 to make the message visible immediately. This value must be greater than or
     //      equal to zero and less than the time-to-live value.
     private final int initialVisibilityDelayInSeconds;
+    // time left to a message to be received and processed before it expires, after its visibility delay
+    private final int processingMarginInSeconds = getProcessingMarginInSeconds();
 
     private final Logger logger;
-    private static final int MAX_ORGANIZATIONS_FOR_EACH_QUEUE_MSG = 5;
+    private final int maxOrganizationsForEachQueueMsg = System.getenv("MAX_ORGANIZATIONS_FOR_EACH_QUEUE_MSG") != null
+            ? Integer.parseInt(System.getenv("MAX_ORGANIZATIONS_FOR_EACH_QUEUE_MSG")) : 5;
+    private final int maxMessageBytes = System.getenv("QUEUE_MESSAGE_MAX_BYTES") != null
+            ? Integer.parseInt(System.getenv("QUEUE_MESSAGE_MAX_BYTES")) : QueueMessagePacker.MAX_QUEUE_MESSAGE_BYTES;
 
     public OrganizationsService(String storageConnectionString, String organizationsTable, String organizationsQueue, int timeToLiveInSeconds, int initialVisibilityDelayInSeconds, Logger logger) {
         this.storageConnectionString = storageConnectionString;
@@ -49,81 +58,171 @@ public class OrganizationsService {
 
 
     public List<String> getOrganizations() {
+        List<String> organizationsList = new ArrayList<>();
+        this.getOrganizationEntities().forEach(organizationEntity -> organizationsList.add(organizationEntity.getRowKey()));
+        return organizationsList;
+    }
+
+    public List<OrganizationEntity> getOrganizationEntities() {
         this.logger.info("[OrganizationsService] Retrieving organizations");
-        ArrayList<String> organizationsList = new ArrayList<>();
         try {
-            // try to create Azure table and queue, then it take it
-            createEnv();
-            CloudTable table = CloudStorageAccount.parse(storageConnectionString)
-                    .createCloudTableClient()
-                    .getTableReference(this.organizationsTable);
-
-            // Iterate through the results
-            Iterable<OrganizationEntity> organizationEntities = table.execute(
-                    TableQuery.from(OrganizationEntity.class)
-                    .where(TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.EQUAL, OrganizationEntity.ORGANIZATION_KEY))
-            );
-            organizationEntities.forEach(organizationEntity -> organizationsList.add(organizationEntity.getRowKey()));
+            return this.queryOrganizationEntities(null);
         } catch (Exception e) {
             this.logger.severe(String.format("[OrganizationsService] Problem to retrieve organizations: %s", e.getLocalizedMessage()));
+            return new ArrayList<>();
         }
-        return organizationsList;
+    }
+
+    public List<OrganizationStateEntity> getOrganizationStates() {
+        this.logger.info("[OrganizationsService] Retrieving organization states");
+        try {
+            return this.queryOrganizationStates(null);
+        } catch (Exception e) {
+            this.logger.severe(String.format("[OrganizationsService] Problem to retrieve organization states: %s", e.getLocalizedMessage()));
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * @param modifiedSince if not null, only the organizations with a newer or equal Timestamp are retrieved
+     */
+    public List<OrganizationEntity> queryOrganizationEntities(Date modifiedSince) throws URISyntaxException, InvalidKeyException, StorageException {
+        return this.queryPartition(OrganizationEntity.ORGANIZATION_KEY, OrganizationEntity.class, modifiedSince);
+    }
+
+    /**
+     * @param modifiedSince if not null, only the states with a newer or equal Timestamp, i.e. of the organizations
+     *                      polled since, are retrieved
+     */
+    public List<OrganizationStateEntity> queryOrganizationStates(Date modifiedSince) throws URISyntaxException, InvalidKeyException, StorageException {
+        return this.queryPartition(OrganizationStateEntity.STATE_KEY, OrganizationStateEntity.class, modifiedSince);
+    }
+
+    private <T extends TableServiceEntity> List<T> queryPartition(String partitionKey, Class<T> entityClass, Date modifiedSince)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        // try to create Azure table and queue, then it take it
+        createEnv();
+        CloudTable table = CloudStorageAccount.parse(storageConnectionString)
+                .createCloudTableClient()
+                .getTableReference(this.organizationsTable);
+
+        String filter = TableQuery.generateFilterCondition("PartitionKey", TableQuery.QueryComparisons.EQUAL, partitionKey);
+        if (modifiedSince != null) {
+            filter = TableQuery.combineFilters(filter, TableQuery.Operators.AND,
+                    TableQuery.generateFilterCondition("Timestamp", TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, modifiedSince));
+        }
+
+        // Iterate through the results
+        ArrayList<T> entities = new ArrayList<>();
+        table.execute(TableQuery.from(entityClass).where(filter)).forEach(entities::add);
+        return entities;
     }
 
     // Organizations queue
-    public void addToOrganizationsQueue(List<String> organizations) {
+    public int addToOrganizationsQueue(List<String> organizations) {
+        return this.addToOrganizationsQueue(organizations, 0, 0, System.currentTimeMillis());
+    }
+
+    /**
+     * @param epoch enqueue time of the first message for the organizations, null if unknown
+     * @return the number of messages sent
+     */
+    public int addToOrganizationsQueue(List<String> organizations, Integer retry, int visibilityDelayInSeconds, Long epoch) {
         this.logger.info("[OrganizationsService] Adding organizations to queue");
+        int delay = this.capVisibilityDelay(visibilityDelayInSeconds);
+        AtomicInteger sent = new AtomicInteger();
         try {
             // retrieving queue object for next insertions
             final CloudQueue queue = CloudStorageAccount.parse(storageConnectionString)
                     .createCloudQueueClient()
                     .getQueueReference(this.organizationsQueue);
 
-            List<List<String>> partitionedOrganizations = Lists.partition(organizations, MAX_ORGANIZATIONS_FOR_EACH_QUEUE_MSG);
+            List<List<String>> partitionedOrganizations = new QueueMessagePacker<String>(maxMessageBytes, maxOrganizationsForEachQueueMsg)
+                    .pack(organizations, partition -> this.buildOrganizationsMessage(partition, retry, epoch));
             IntStream.range(0, partitionedOrganizations.size()).forEach(partitionMsgIndex -> {
 
                 // set single message
-                OrganizationsMessage organizationsMessage = OrganizationsMessage.builder()
-                        .idPA(partitionedOrganizations.get(partitionMsgIndex).toArray(String[]::new))
-                        .retry(0)
-                        .build();
+                OrganizationsMessage organizationsMessage = this.buildOrganizationsMessage(partitionedOrganizations.get(partitionMsgIndex), retry, epoch);
 
                 // generating message and sending it to queue
                 try {
                     String message = new ObjectMapper().writeValueAsString(organizationsMessage);
                     this.logger.info("[OrganizationsService] Sending " + partitionMsgIndex + " " + message + " to organizationsQueue");
-                    queue.addMessage(new CloudQueueMessage(message), timeToLiveInSeconds, 0, null, null);
+                    queue.addMessage(new CloudQueueMessage(message), timeToLiveInSeconds, delay, null, null);
+                    sent.incrementAndGet();
                 } catch (JsonProcessingException | StorageException e) {
                     this.logger.severe("[OrganizationsService]  Error " + e.getLocalizedMessage());
                 }
             });
 
-        } catch (URISyntaxException | StorageException | InvalidKeyException e) {
+        } catch (URISyntaxException | StorageException | InvalidKeyException | JsonProcessingException e) {
             this.logger.log(Level.SEVERE, () -> "[OrganizationsService]  Error " + e.getLocalizedMessage());
         }
+        return sent.get();
     }
 
     public void retryToOrganizationsQueue(String organization, Integer retry) {
+        this.retryToOrganizationsQueue(organization, retry, initialVisibilityDelayInSeconds, null);
+    }
+
+    /**
+     * @return false if the retry is not enqueued, e.g. because it would expire before being processed
+     */
+    public boolean retryToOrganizationsQueue(String organization, Integer retry, int visibilityDelayInSeconds, Long epoch) {
 
         this.logger.log(Level.INFO, () -> String.format("[OrganizationsService] retryToOrganizationsQueue %s with retry %s", organization, retry));
 
+        if (visibilityDelayInSeconds > this.getMaxVisibilityDelay()) {
+            Metrics.increment("retry.dropped.ttl");
+            this.logger.log(Level.WARNING, () -> String.format("[OrganizationsService] Retry %s of %s dropped: a delay of %d s leaves less than %d s before the message expires",
+                    retry, organization, visibilityDelayInSeconds, this.processingMarginInSeconds));
+            return false;
+        }
         try {
             final CloudQueue queue = CloudStorageAccount.parse(storageConnectionString).createCloudQueueClient()
                     .getQueueReference(this.organizationsQueue);
 
             // set single message
-            OrganizationsMessage organizationsMessage = new OrganizationsMessage();
-            organizationsMessage.setIdPA(new String[]{organization});
-            organizationsMessage.setRetry(retry);
+            OrganizationsMessage organizationsMessage = this.buildOrganizationsMessage(List.of(organization), retry, epoch);
 
             String message = new ObjectMapper().writeValueAsString(organizationsMessage);
-            queue.addMessage(new CloudQueueMessage(message), timeToLiveInSeconds, initialVisibilityDelayInSeconds, null, null);
+            queue.addMessage(new CloudQueueMessage(message), timeToLiveInSeconds, visibilityDelayInSeconds, null, null);
+            return true;
 
         } catch (URISyntaxException | InvalidKeyException | JsonProcessingException | StorageException e) {
             this.logger.log(Level.SEVERE, () -> "[OrganizationsService] Error " + e.getLocalizedMessage());
+            return false;
         }
     }
 
+    /**
+     * @return the time left to a message to be processed before it expires, shared with the retry backoff cap
+     */
+    public static int getProcessingMarginInSeconds() {
+        return System.getenv("QUEUE_PROCESSING_MARGIN_SEC") != null
+                ? Integer.parseInt(System.getenv("QUEUE_PROCESSING_MARGIN_SEC")) : 600;
+    }
+
+    // the visibility delay must be less than the time-to-live
+    private int capVisibilityDelay(int visibilityDelayInSeconds) {
+        return Math.min(visibilityDelayInSeconds, this.getMaxVisibilityDelay());
+    }
+
+    /**
+     * @return the longest delay leaving the processing margin before the message expires
+     */
+    private int getMaxVisibilityDelay() {
+        return timeToLiveInSeconds > 0 ? Math.max(0, timeToLiveInSeconds - processingMarginInSeconds) : Integer.MAX_VALUE;
+    }
+
+    private OrganizationsMessage buildOrganizationsMessage(List<String> organizations, Integer retry, Long epoch) {
+        return OrganizationsMessage.builder()
+                .idPA(organizations.toArray(String[]::new))
+                .retry(retry)
+                .epoch(epoch)
+                .build();
+    }
+
     private void createEnv() {
         AzuriteStorageUtil azuriteStorageUtil = new AzuriteStorageUtil(storageConnectionString, organizationsTable, organizationsQueue);
         try {
@@ -0,0 +1,147 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.QueueRequestOptions;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableRequestOptions;
+import it.gov.pagopa.reporting.models.ReadinessInfo;
+import it.gov.pagopa.reporting.utils.Metrics;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Readiness of the worker: the state of the api-config cache and of the Nodo client, published by RetrieveFlows,
+ * and the latency of a table and a queue operation. The storage is probed at most once per probe interval, the
+ * readiness requests in between are served the last sample, so that the probes never load the storage.
+ * The probe is anonymous: the storage failures are only logged, the response tells just the storage status.
+ */
+public class ReadinessProbe {
+
+    public static final String STORAGE_AVAILABLE = "AVAILABLE";
+    public static final String STORAGE_UNAVAILABLE = "UNAVAILABLE";
+    private static final int PROBE_TIMEOUT_MILLIS = 5000;
+
+    private static volatile Sample sample;
+
+    private final String storageConnectionString;
+    private final String flowsTable;
+    private final String flowsQueue;
+    private final long probeIntervalMillis;
+    private final Logger logger;
+
+    public ReadinessProbe(String storageConnectionString, String flowsTable, String flowsQueue, long probeIntervalMillis, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.flowsTable = flowsTable;
+        this.flowsQueue = flowsQueue;
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.logger = logger;
+    }
+
+    public ReadinessInfo probe(long now) {
+        Sample storage = this.getSample(now);
+        long cacheRefreshed = Metrics.getGauge("cache.refreshed.epoch.ms");
+        long nodoLastResponse = Metrics.getGauge("nodo.last.response.epoch.ms");
+        boolean nodoWarm = nodoLastResponse > 0;
+
+        return ReadinessInfo.builder()
+                .ready(storage.available)
+                .warm(cacheRefreshed > 0 && nodoWarm)
+                .cacheAgeMs(cacheRefreshed > 0 ? now - cacheRefreshed : null)
+                .cacheCreditorInstitutions(cacheRefreshed > 0 ? Metrics.getGauge("cache.creditor.institutions") : null)
+                .cacheStations(cacheRefreshed > 0 ? Metrics.getGauge("cache.stations") : null)
+                .nodoWarm(nodoWarm)
+                .nodoLastResponseAgeMs(nodoWarm ? now - nodoLastResponse : null)
+                .nodoLastLatencyMs(nodoWarm ? Metrics.getGauge("nodo.last.latency.ms") : null)
+                .tableLatencyMs(storage.tableLatency >= 0 ? storage.tableLatency : null)
+                .queueLatencyMs(storage.queueLatency >= 0 ? storage.queueLatency : null)
+                .storageStatus(storage.available ? STORAGE_AVAILABLE : STORAGE_UNAVAILABLE)
+                .probeAgeMs(now - storage.sampledAt)
+                .build();
+    }
+
+    /**
+     * @return the latency in millis of a point lookup of a missing entity of the flows table
+     */
+    public long probeTable() throws Exception {
+        CloudTable table = CloudStorageAccount.parse(this.storageConnectionString).createCloudTableClient()
+                .getTableReference(this.flowsTable);
+        TableRequestOptions options = new TableRequestOptions();
+        options.setRetryPolicyFactory(RetryNoRetry.getInstance());
+        options.setMaximumExecutionTimeInMs(PROBE_TIMEOUT_MILLIS);
+        long start = System.currentTimeMillis();
+        table.execute(TableOperation.retrieve("readiness", "probe", DynamicTableEntity.class), options, null);
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * @return the latency in millis of the attributes download of the flows queue
+     */
+    public long probeQueue() throws Exception {
+        CloudQueue queue = CloudStorageAccount.parse(this.storageConnectionString).createCloudQueueClient()
+                .getQueueReference(this.flowsQueue);
+        QueueRequestOptions options = new QueueRequestOptions();
+        options.setRetryPolicyFactory(RetryNoRetry.getInstance());
+        options.setMaximumExecutionTimeInMs(PROBE_TIMEOUT_MILLIS);
+        long start = System.currentTimeMillis();
+        queue.downloadAttributes(options, null);
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Forgets the last sample, for tests.
+     */
+    public static void reset() {
+        sample = null;
+    }
+
+    private Sample getSample(long now) {
+        Sample current = sample;
+        if (current == null || now - current.sampledAt > this.probeIntervalMillis) {
+            synchronized (ReadinessProbe.class) {
+                current = sample;
+                // sampled by a concurrent request meanwhile
+                if (current == null || now - current.sampledAt > this.probeIntervalMillis) {
+                    current = this.sampleStorage(now);
+                    sample = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private Sample sampleStorage(long now) {
+        long tableLatency = -1;
+        long queueLatency = -1;
+        boolean available = true;
+        try {
+            tableLatency = this.probeTable();
+            queueLatency = this.probeQueue();
+            Metrics.gauge("readiness.table.latency.ms", tableLatency);
+            Metrics.gauge("readiness.queue.latency.ms", queueLatency);
+        } catch (Exception e) {
+            available = false;
+            Metrics.increment("readiness.probe.errors");
+            this.logger.log(Level.WARNING, () -> "[ReadinessProbe] Storage probe failed: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+        return new Sample(tableLatency, queueLatency, available, now);
+    }
+
+    private static final class Sample {
+        private final long tableLatency;
+        private final long queueLatency;
+        private final boolean available;
+        private final long sampledAt;
+
+        private Sample(long tableLatency, long queueLatency, boolean available, long sampledAt) {
+            this.tableLatency = tableLatency;
+            this.queueLatency = queueLatency;
+            this.available = available;
+            this.sampledAt = sampledAt;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package it.gov.pagopa.reporting.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableOperation;
+import it.gov.pagopa.reporting.models.RunSummary;
+import it.gov.pagopa.reporting.utils.AzuriteStorageUtil;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the execution summary of the function invocations as a log line and, when the runs table is configured,
+ * as a row of the runs table: the partition key is the schedule epoch, so that the invocations of a schedule
+ * (the timer tick and the invocations processing its messages) can be aggregated with a single partition query.
+ */
+public class RunSummaryService {
+
+    private final String storageConnectionString;
+    private final String runsTable;
+    private final Logger logger;
+
+    public RunSummaryService(String storageConnectionString, String runsTable, Logger logger) {
+        this.storageConnectionString = storageConnectionString;
+        this.runsTable = runsTable;
+        this.logger = logger;
+    }
+
+    public void publish(RunSummary summary) {
+        summary.finish(System.currentTimeMillis());
+
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("function", summary.getFunction());
+        line.put("invocationId", summary.getInvocationId());
+        line.put("epoch", summary.getEpoch());
+        line.putAll(summary.getValues());
+        try {
+            String json = new ObjectMapper().writeValueAsString(line);
+            this.logger.log(Level.INFO, () -> "[RunSummary] " + json);
+        } catch (JsonProcessingException e) {
+            this.logger.log(Level.WARNING, () -> "[RunSummary] Error " + e.getLocalizedMessage());
+        }
+
+        if (this.runsTable != null) {
+            this.store(summary);
+        }
+    }
+
+    public static String partitionKey(long epoch) {
+        // zero padded, so that the partitions sort by time
+        return String.format("%015d", epoch);
+    }
+
+    private void store(RunSummary summary) {
+        this.createEnv();
+        try {
+            HashMap<String, EntityProperty> properties = new HashMap<>();
+            properties.put("function", new EntityProperty(summary.getFunction()));
+            summary.getValues().forEach((name, value) -> properties.put(name, new EntityProperty(value)));
+            DynamicTableEntity entity = new DynamicTableEntity(partitionKey(summary.getEpoch()),
+                    summary.getFunction() + "_" + summary.getInvocationId(), properties);
+
+            this.getTable().execute(TableOperation.insertOrReplace(entity));
+        } catch (Exception e) {
+            this.logger.log(Level.WARNING, () -> "[RunSummaryService] Error storing run summary: " + e.getLocalizedMessage());
+        }
+    }
+
+    private CloudTable getTable() throws URISyntaxException, InvalidKeyException, StorageException {
+        return CloudStorageAccount.parse(storageConnectionString).createCloudTableClient()
+                .getTableReference(this.runsTable);
+    }
+
+    private void createEnv() {
+        AzuriteStorageUtil azuriteStorageUtil = new AzuriteStorageUtil(storageConnectionString, runsTable, null);
+        try {
+            azuriteStorageUtil.createTable();
+        } catch (StorageException e) {
+            this.logger.info(String.format("[AzureStorage] Table created: %s", e.getMessage()));
+        } catch (Exception e) {
+            this.logger.severe(String.format("[AzureStorage] Problem to create table: %s", e.getMessage()));
+        }
+    }
+}
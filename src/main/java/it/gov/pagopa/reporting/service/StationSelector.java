@@ -0,0 +1,122 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.models.cache.Station;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Orders the enabled stations of an organization for the Nodo calls: the first station is called, the next ones are
+ * the failover candidates. The outcome of the calls is kept by station for the lifetime of the worker.
+ */
+public class StationSelector {
+
+    public enum Strategy {
+        // the stations in the api-config order
+        FIRST,
+        ROUND_ROBIN,
+        // the stations never failed first, then the ones failed longer ago
+        LEAST_RECENT_FAILURE,
+        // a station picked with a probability inversely proportional to its average latency, then the fastest ones
+        LATENCY_WEIGHTED
+    }
+
+    // weight of the last latency in the moving average
+    private static final double LATENCY_ALPHA = 0.3;
+
+    private static final Map<String, StationStats> STATS = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> ROUND_ROBIN_COUNTERS = new ConcurrentHashMap<>();
+
+    private final Strategy strategy;
+
+    public StationSelector(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param strategy strategy name, FIRST if null
+     */
+    public static StationSelector of(String strategy) {
+        return new StationSelector(strategy != null ? Strategy.valueOf(strategy.trim().toUpperCase(Locale.ROOT)) : Strategy.FIRST);
+    }
+
+    public List<Station> order(String idPa, List<Station> stations) {
+        List<Station> ordered = new ArrayList<>(stations);
+        if (ordered.size() < 2) {
+            return ordered;
+        }
+        switch (this.strategy) {
+            case ROUND_ROBIN:
+                int first = Math.floorMod(ROUND_ROBIN_COUNTERS.computeIfAbsent(idPa, k -> new AtomicInteger()).getAndIncrement(), ordered.size());
+                Collections.rotate(ordered, -first);
+                break;
+            case LEAST_RECENT_FAILURE:
+                ordered.sort(Comparator.comparingLong(station -> stats(station).lastFailureTime));
+                break;
+            case LATENCY_WEIGHTED:
+                double defaultLatency = ordered.stream().mapToDouble(station -> stats(station).averageLatency)
+                        .filter(latency -> latency > 0).average().orElse(1);
+                ordered.sort(Comparator.comparingDouble(station -> latency(station, defaultLatency)));
+                double[] weights = ordered.stream().mapToDouble(station -> 1 / latency(station, defaultLatency)).toArray();
+                double pick = ThreadLocalRandom.current().nextDouble() * Arrays.stream(weights).sum();
+                for (int i = 0; i < weights.length; i++) {
+                    pick -= weights[i];
+                    if (pick < 0) {
+                        ordered.add(0, ordered.remove(i));
+                        break;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return ordered;
+    }
+
+    public void recordSuccess(String stationCode, long latencyMillis) {
+        StationStats stats = STATS.computeIfAbsent(stationCode, k -> new StationStats());
+        synchronized (stats) {
+            stats.averageLatency = stats.averageLatency > 0
+                    ? LATENCY_ALPHA * latencyMillis + (1 - LATENCY_ALPHA) * stats.averageLatency
+                    : Math.max(1, latencyMillis);
+        }
+    }
+
+    public void recordFailure(String stationCode, long now) {
+        STATS.computeIfAbsent(stationCode, k -> new StationStats()).lastFailureTime = now;
+    }
+
+    /**
+     * Forgets the outcome of the calls, for tests.
+     */
+    public static void reset() {
+        STATS.clear();
+        ROUND_ROBIN_COUNTERS.clear();
+    }
+
+    private static StationStats stats(Station station) {
+        return STATS.getOrDefault(station.getStationCode(), StationStats.NONE);
+    }
+
+    private static double latency(Station station, double defaultLatency) {
+        double latency = stats(station).averageLatency;
+        return latency > 0 ? latency : defaultLatency;
+    }
+
+    private static final class StationStats {
+        private static final StationStats NONE = new StationStats();
+
+        // moving average of the latency in millis, 0 if unknown
+        private volatile double averageLatency;
+        // epoch millis of the last failure, 0 if never failed
+        private volatile long lastFailureTime;
+    }
+}
@@ -0,0 +1,238 @@
+package it.gov.pagopa.reporting.service;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.resources.ClientMessages;
+import it.gov.pagopa.reporting.servicewsdl.FaultBean;
+import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPTservice;
+import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.ws.Holder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client of nodoChiediElencoFlussiRendicontazione without the JAX-WS stack: the request is a templated envelope and
+ * the response is read with StAX while it is received, building only the flows of the list, without the SOAP
+ * message tree and the JAXB binding. The JAX-WS client stays the default, this one is selected by NODO_CLIENT=STAX.
+ */
+public class StaxNodoChiediElencoFlussi extends NodoChiediElencoFlussi {
+
+    private static final String SOAP_ACTION = "nodoChiediElencoFlussiRendicontazione";
+    private static final String ENVELOPE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+            + "xmlns:ppt=\"http://ws.pagamenti.telematici.gov/\"><soapenv:Header/><soapenv:Body>"
+            + "<ppt:nodoChiediElencoFlussiRendicontazione>"
+            + "<identificativoIntermediarioPA>%s</identificativoIntermediarioPA>"
+            + "<identificativoStazioneIntermediarioPA>%s</identificativoStazioneIntermediarioPA>"
+            + "<password>%s</password>"
+            + "%s"
+            + "</ppt:nodoChiediElencoFlussiRendicontazione></soapenv:Body></soapenv:Envelope>";
+
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();
+    private static final DatatypeFactory DATATYPE_FACTORY = DatatypeFactory.newDefaultInstance();
+    private static volatile URI wsdlEndpoint;
+
+    private final URI endpoint;
+    private final Duration timeout;
+    private final Logger logger;
+
+    /**
+     * @param endpoint Nodo SOAP endpoint, the address of the WSDL used by the JAX-WS client
+     */
+    public StaxNodoChiediElencoFlussi(URI endpoint, Duration timeout, Logger logger) {
+        this.endpoint = endpoint;
+        this.timeout = timeout;
+        this.logger = logger;
+    }
+
+    @Override
+    public void nodoChiediElencoFlussiRendicontazione(String idPa,
+                                                      String idIntermediarioPA,
+                                                      String idStazioneIntermediarioPA,
+                                                      String passwordStazione) throws ClientTransportException {
+        String envelope = String.format(ENVELOPE, escape(idIntermediarioPA), escape(idStazioneIntermediarioPA), escape(passwordStazione),
+                idPa != null ? "<identificativoDominio>" + escape(idPa) + "</identificativoDominio>" : "");
+        HttpRequest request = HttpRequest.newBuilder(this.endpoint)
+                .timeout(this.timeout)
+                .header("Content-Type", "text/xml; charset=UTF-8")
+                .header("SOAPAction", SOAP_ACTION)
+                .POST(HttpRequest.BodyPublishers.ofString(envelope, StandardCharsets.UTF_8))
+                .build();
+
+        try {
+            HttpResponse<InputStream> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream body = response.body()) {
+                if (response.statusCode() != 200) {
+                    throw new ClientTransportException(ClientMessages.localizableHTTP_STATUS_CODE(response.statusCode(), SOAP_ACTION));
+                }
+                this.readResponse(body);
+            }
+        } catch (HttpTimeoutException e) {
+            // classified as a timeout by the retry policy, as the JAX-WS one
+            SocketTimeoutException timeoutException = new SocketTimeoutException(e.getMessage());
+            timeoutException.initCause(e);
+            throw new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(e), timeoutException);
+        } catch (IOException | XMLStreamException e) {
+            throw new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(e), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(e), e);
+        }
+    }
+
+    /**
+     * Reads a nodoChiediElencoFlussiRendicontazioneRisposta, the elements are matched by local name.
+     */
+    public void readResponse(InputStream body) throws XMLStreamException {
+        Holder<FaultBean> fault = new Holder<>();
+        Holder<TipoElencoFlussiRendicontazione> elenco = new Holder<>();
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(body);
+        try {
+            TipoIdRendicontazione flow = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "fault":
+                        fault.value = readFault(reader);
+                        break;
+                    case "elencoFlussiRendicontazione":
+                        elenco.value = new TipoElencoFlussiRendicontazione();
+                        break;
+                    case "totRestituiti":
+                        if (elenco.value != null) {
+                            elenco.value.setTotRestituiti(Integer.parseInt(reader.getElementText().trim()));
+                        }
+                        break;
+                    case "idRendicontazione":
+                        flow = new TipoIdRendicontazione();
+                        break;
+                    case "identificativoFlusso":
+                        if (flow != null) {
+                            flow.setIdentificativoFlusso(reader.getElementText().trim());
+                        }
+                        break;
+                    case "dataOraFlusso":
+                        if (flow != null) {
+                            flow.setDataOraFlusso(DATATYPE_FACTORY.newXMLGregorianCalendar(reader.getElementText().trim()));
+                            if (elenco.value != null && flow.getIdentificativoFlusso() != null) {
+                                elenco.value.getIdRendicontazione().add(flow);
+                            }
+                            flow = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        this.setNodoChiediElencoFlussiRendicontazioneFault(fault);
+        this.setNodoChiediElencoFlussiRendicontazione(elenco);
+        if (elenco.value != null) {
+            this.logger.log(Level.FINE, () -> "[StaxNodoChiediElencoFlussi] " + elenco.value.getIdRendicontazione().size() + " flows read");
+        }
+    }
+
+    private static FaultBean readFault(XMLStreamReader reader) throws XMLStreamException {
+        FaultBean faultBean = new FaultBean();
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                String text = reader.getElementText().trim();
+                switch (name) {
+                    case "faultCode":
+                        faultBean.setFaultCode(text);
+                        break;
+                    case "faultString":
+                        faultBean.setFaultString(text);
+                        break;
+                    case "id":
+                        faultBean.setId(text);
+                        break;
+                    case "description":
+                        faultBean.setDescription(text);
+                        break;
+                    case "serial":
+                        faultBean.setSerial(Integer.valueOf(text));
+                        break;
+                    case "originalFaultCode":
+                        faultBean.setOriginalFaultCode(text);
+                        break;
+                    case "originalFaultString":
+                        faultBean.setOriginalFaultString(text);
+                        break;
+                    case "originalDescription":
+                        faultBean.setOriginalDescription(text);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return faultBean;
+    }
+
+    /**
+     * @return the SOAP address of the WSDL, the endpoint of the JAX-WS client
+     */
+    public static URI getWsdlEndpoint() throws IOException, XMLStreamException {
+        if (wsdlEndpoint == null) {
+            try (InputStream wsdl = PagamentiTelematiciRPTservice.WSDL_LOCATION.openStream()) {
+                XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(wsdl);
+                try {
+                    while (reader.hasNext() && wsdlEndpoint == null) {
+                        if (reader.next() == XMLStreamConstants.START_ELEMENT && "address".equals(reader.getLocalName())) {
+                            wsdlEndpoint = URI.create(reader.getAttributeValue(null, "location"));
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            if (wsdlEndpoint == null) {
+                throw new IOException("No SOAP address in " + PagamentiTelematiciRPTservice.WSDL_LOCATION);
+            }
+        }
+        return wsdlEndpoint;
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static XMLInputFactory newXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        // the response of a remote service: no DTD nor external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,136 @@
+package it.gov.pagopa.reporting.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Worker-wide limit of the calls in flight to a remote service, adapted by AIMD: the limit grows by one every
+ * {@code limit} calls completed with a latency close to the baseline, and is cut by the backoff ratio on a dropped
+ * call (a timeout, an overload response) or on a latency over the tolerance, so that the parallelism follows the
+ * capacity of the service instead of a fixed value. The current limit and in-flight calls are published as gauges.
+ * The limiter only admits or holds the calls of its callers, it does not start calls: the parallelism is the one of
+ * the callers, bounded by the limit.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    public enum Outcome {
+        // completed, its latency drives the limit
+        SUCCESS,
+        // timed out or rejected by an overloaded service
+        DROPPED,
+        // failed for reasons unrelated to the load, the limit is not changed
+        IGNORED
+    }
+
+    // weight of the last latency in the baseline moving average
+    private static final double BASELINE_ALPHA = 0.05;
+
+    private static final Map<String, AdaptiveConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    // latency over tolerance * baseline is handled as a drop
+    private final double tolerance;
+
+    private double limit;
+    private int inFlight;
+    // moving average of the latency of the successful calls in millis, 0 if unknown
+    private double baselineLatency;
+
+    public AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, double backoffRatio, double tolerance) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.tolerance = tolerance;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.publish();
+    }
+
+    /**
+     * @return the limiter of the service shared by the invocations of the worker, created with the given limits
+     * on first use
+     */
+    public static AdaptiveConcurrencyLimiter of(String name, int initialLimit, int maxLimit) {
+        return LIMITERS.computeIfAbsent(name, k -> new AdaptiveConcurrencyLimiter(name, initialLimit, 1, maxLimit, 0.9, 2.0));
+    }
+
+    /**
+     * Blocks while the calls in flight reach the limit.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (this.inFlight >= this.getLimit()) {
+            this.wait();
+        }
+        this.inFlight++;
+        this.publish();
+    }
+
+    /**
+     * Waits while the calls in flight reach the limit, at most the given time.
+     *
+     * @return false if no call could be started in time
+     */
+    public synchronized boolean tryAcquire(long timeoutMillis) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long deadline = timeoutMillis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMillis;
+        while (this.inFlight >= this.getLimit()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                Metrics.increment("limiter." + this.name + ".timeouts");
+                return false;
+            }
+            this.wait(remaining);
+        }
+        this.inFlight++;
+        this.publish();
+        return true;
+    }
+
+    public synchronized void release(Outcome outcome, long latencyMillis) {
+        this.inFlight--;
+        boolean congested = false;
+        if (outcome == Outcome.SUCCESS) {
+            congested = this.isCongested(latencyMillis);
+            // the baseline follows a lasting change of the service latency, slowly
+            this.baselineLatency = this.baselineLatency > 0
+                    ? BASELINE_ALPHA * latencyMillis + (1 - BASELINE_ALPHA) * this.baselineLatency
+                    : Math.max(1, latencyMillis);
+        }
+        if (outcome == Outcome.DROPPED || congested) {
+            this.limit = Math.max(this.minLimit, this.limit * this.backoffRatio);
+            Metrics.increment("limiter." + this.name + ".backoff");
+        } else if (outcome == Outcome.SUCCESS && this.inFlight + 1 >= this.getLimit() / 2) {
+            // the limit grows only when it is used, not while the callers are slower than the service
+            this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+        }
+        this.publish();
+        this.notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * Forgets the limiters, for tests.
+     */
+    public static void reset() {
+        LIMITERS.clear();
+    }
+
+    private boolean isCongested(long latencyMillis) {
+        return this.baselineLatency > 0 && latencyMillis > this.tolerance * this.baselineLatency;
+    }
+
+    private void publish() {
+        Metrics.gauge("limiter." + this.name + ".limit", (long) this.limit);
+        Metrics.gauge("limiter." + this.name + ".inflight", this.inFlight);
+    }
+}
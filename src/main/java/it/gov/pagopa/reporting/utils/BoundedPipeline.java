@@ -0,0 +1,127 @@
+package it.gov.pagopa.reporting.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands items produced by the calling thread over to a consumer stage running on its own thread,
+ * through a bounded queue: the producer blocks when the consumer falls behind by more than the queue capacity.
+ * An item failing with an exception is skipped; an error stops the consumer, and the producer fails fast from then on
+ * instead of waiting for room in the queue.
+ */
+public class BoundedPipeline<T> implements AutoCloseable {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "pipeline-stage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final Logger logger;
+    private final BlockingQueue<Object> queue;
+    private final Object endOfStream = new Object();
+    // how often a producer waiting for room in the queue checks that the consumer is still running
+    private static final long LIVENESS_CHECK_MILLIS = 100;
+    private final Future<?> consumer;
+    private final long start = System.currentTimeMillis();
+    private final AtomicInteger produced = new AtomicInteger();
+    private final AtomicInteger consumed = new AtomicInteger();
+    private int maxOccupancy;
+    private long blockedMillis;
+    private long consumerBusyMillis;
+    // the error that stopped the consumer, if any
+    private volatile Throwable failure;
+
+    public BoundedPipeline(String name, int capacity, Consumer<T> stage, Logger logger) {
+        this.name = name;
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.consumer = EXECUTOR.submit(() -> this.consume(stage));
+    }
+
+    /**
+     * Blocks while the queue is full.
+     *
+     * @throws IllegalStateException if the consumer has stopped
+     */
+    public void submit(T item) throws InterruptedException {
+        long putStart = System.currentTimeMillis();
+        do {
+            if (consumer.isDone()) {
+                throw new IllegalStateException("[BoundedPipeline] " + name + " consumer stopped", failure);
+            }
+        } while (!queue.offer(item, LIVENESS_CHECK_MILLIS, TimeUnit.MILLISECONDS));
+        blockedMillis += System.currentTimeMillis() - putStart;
+        produced.incrementAndGet();
+
+        int occupancy = queue.size();
+        maxOccupancy = Math.max(maxOccupancy, occupancy);
+        Metrics.record("pipeline." + name + ".queue.occupancy", occupancy);
+    }
+
+    /**
+     * @return the items submitted and not processed yet, the one in progress included
+     */
+    public int getBacklog() {
+        return produced.get() - consumed.get();
+    }
+
+    /**
+     * Waits for the consumer stage to process every submitted item.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        while (!consumer.isDone() && !queue.offer(endOfStream, LIVENESS_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            // the consumer is still draining the queue
+        }
+        try {
+            consumer.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, () -> "[BoundedPipeline] " + name + " consumer error " + e.getCause());
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Metrics.add("pipeline." + name + ".produced", produced.get());
+        Metrics.add("pipeline." + name + ".consumed", consumed.get());
+        Metrics.add("pipeline." + name + ".producer.blocked.ms", blockedMillis);
+        Metrics.add("pipeline." + name + ".consumer.busy.ms", consumerBusyMillis);
+        logger.log(Level.INFO, () -> String.format("[BoundedPipeline] %s: %d items in %d ms (%.2f items/s), producer blocked %d ms, consumer busy %d ms, max queue occupancy %d/%d",
+                name, consumed.get(), elapsed, consumed.get() * 1000.0 / elapsed, blockedMillis, consumerBusyMillis,
+                maxOccupancy, maxOccupancy + queue.remainingCapacity()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void consume(Consumer<T> stage) {
+        try {
+            Object item;
+            while ((item = queue.take()) != endOfStream) {
+                long itemStart = System.currentTimeMillis();
+                try {
+                    stage.accept((T) item);
+                } catch (Exception e) {
+                    Metrics.increment("pipeline." + name + ".errors");
+                    logger.log(Level.SEVERE, () -> "[BoundedPipeline] " + name + " item error " + e);
+                } catch (Throwable e) {
+                    Metrics.increment("pipeline." + name + ".errors");
+                    failure = e;
+                    logger.log(Level.SEVERE, () -> "[BoundedPipeline] " + name + " consumer stopped by " + e);
+                    return;
+                }
+                consumerBusyMillis += System.currentTimeMillis() - itemStart;
+                consumed.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
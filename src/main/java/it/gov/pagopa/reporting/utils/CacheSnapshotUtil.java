@@ -0,0 +1,99 @@
+package it.gov.pagopa.reporting.utils;
+
+import it.gov.pagopa.reporting.models.cache.StationCache;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Binary snapshot of the station cache, so that a new worker can resolve stations without waiting for the
+ * api-config cache download.
+ * The layout is: magic, format version, creation epoch millis, IV and the station cache content encrypted with
+ * AES-GCM, since it holds the station passwords; the header is authenticated with the content.
+ */
+public class CacheSnapshotUtil {
+
+    private static final int MAGIC = 0x47504452; // GPDR
+    private static final int FORMAT_VERSION = 3;
+    private static final int HEADER_BYTES = 16;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private CacheSnapshotUtil() {
+    }
+
+    public static byte[] encode(StationCache cache, SecretKey key, long now) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(content)) {
+            cache.writeTo(out);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                .putInt(MAGIC)
+                .putInt(FORMAT_VERSION)
+                .putLong(now);
+        byte[] iv = new byte[IV_BYTES];
+        RANDOM.nextBytes(iv);
+        byte[] encrypted;
+        try {
+            encrypted = cipher(Cipher.ENCRYPT_MODE, key, iv, header.array()).doFinal(content.toByteArray());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cache snapshot not encrypted: " + e.getMessage(), e);
+        }
+        return ByteBuffer.allocate(HEADER_BYTES + IV_BYTES + encrypted.length)
+                .put(header.array())
+                .put(iv)
+                .put(encrypted)
+                .array();
+    }
+
+    /**
+     * @return the cache stored in the snapshot, with the snapshot creation date as retrieve date,
+     * or null if the snapshot is older than the max age
+     */
+    public static StationCache decode(byte[] snapshot, SecretKey key, long maxAgeMillis, long now) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported cache snapshot");
+            }
+            long createdAt = buffer.getLong();
+            if (now - createdAt > maxAgeMillis) {
+                return null;
+            }
+            byte[] iv = Arrays.copyOfRange(snapshot, HEADER_BYTES, HEADER_BYTES + IV_BYTES);
+            byte[] content = cipher(Cipher.DECRYPT_MODE, key, iv, Arrays.copyOf(snapshot, HEADER_BYTES))
+                    .doFinal(snapshot, HEADER_BYTES + IV_BYTES, snapshot.length - HEADER_BYTES - IV_BYTES);
+
+            StationCache cache = StationCache.readFrom(ByteBuffer.wrap(content));
+            cache.setRetrieveDate(LocalDate.ofInstant(Instant.ofEpochMilli(createdAt), ZoneId.systemDefault()));
+            return cache;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // truncated or corrupted snapshot, or written with another key
+            throw new IOException("Invalid cache snapshot", e);
+        }
+    }
+
+    private static Cipher cipher(int mode, SecretKey key, byte[] iv, byte[] header) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(header);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cache snapshot cipher not available: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package it.gov.pagopa.reporting.utils;
+
+import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the flows list returned by Nodo for a whole station into the flows lists of its organizations.
+ * The flows list has no domain attribute, so the organization of a flow is read from its id by a pattern with a
+ * named group {@code domain}.
+ */
+public class ElencoDemultiplexer {
+
+    public static final String DOMAIN_GROUP = "domain";
+
+    private ElencoDemultiplexer() {
+    }
+
+    /**
+     * @param organizations organizations to split the flows to; the flows of the other organizations of the station
+     *                      are dropped, they are stored by the polls of those organizations
+     * @return the flows list of each organization, empty if it has no flows, or null if a flow cannot be attributed
+     */
+    public static Map<String, TipoElencoFlussiRendicontazione> demultiplex(TipoElencoFlussiRendicontazione elencoFlussi,
+                                                                          Set<String> organizations, Pattern flowIdDomainPattern) {
+        Map<String, TipoElencoFlussiRendicontazione> elencoByOrganization = new LinkedHashMap<>();
+        organizations.forEach(organization -> elencoByOrganization.put(organization, new TipoElencoFlussiRendicontazione()));
+
+        for (TipoIdRendicontazione flow : elencoFlussi.getIdRendicontazione()) {
+            if (flow == null || flow.getIdentificativoFlusso() == null) {
+                continue;
+            }
+            Matcher matcher = flowIdDomainPattern.matcher(flow.getIdentificativoFlusso());
+            if (!matcher.matches() || matcher.group(DOMAIN_GROUP) == null) {
+                return null;
+            }
+            TipoElencoFlussiRendicontazione organizationElenco = elencoByOrganization.get(matcher.group(DOMAIN_GROUP));
+            if (organizationElenco != null) {
+                organizationElenco.getIdRendicontazione().add(flow);
+            }
+        }
+
+        elencoByOrganization.values().forEach(organizationElenco ->
+                organizationElenco.setTotRestituiti(organizationElenco.getIdRendicontazione().size()));
+        return elencoByOrganization;
+    }
+}
@@ -0,0 +1,245 @@
+package it.gov.pagopa.reporting.utils;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Partition key of the flows table. The flows of an organization are stored in the partition named after its
+ * fiscal code, unless the organization is bucketed: its flows are then spread on the partitions
+ * {@code <idPA>_<bucket>}, by the hash of the flow id or by the month of the flow date, so that its batches are not
+ * throttled by the throughput of a single partition.
+ * The layout of an organization is the partitioning its new flows are stored with; since a flow is new only if its
+ * insert does not clash, a flow keeps the layout it was stored with when the layout is changed, see {@link Layouts}.
+ */
+public class FlowPartitionScheme {
+
+    public enum Bucketing {
+        // idPA_00 .. idPA_<buckets - 1>
+        HASH,
+        // idPA_yyyyMM
+        MONTH
+    }
+
+    public static final String SEPARATOR = "_";
+    // layout of the organizations not bucketed
+    public static final String NOT_BUCKETED = "NONE";
+    private static final String HASH_LAYOUT_PREFIX = Bucketing.HASH + "/";
+    // the character following the separator, upper bound of the bucketed partitions of an organization
+    private static final String SEPARATOR_UPPER_BOUND = String.valueOf((char) (SEPARATOR.charAt(0) + 1));
+
+    private final Set<String> bucketedOrganizations;
+    private final Bucketing bucketing;
+    private final int buckets;
+    private final boolean tracked;
+
+    /**
+     * @param tracked whether the layouts of the organizations may have changed, so that they must be looked up
+     */
+    public FlowPartitionScheme(Set<String> bucketedOrganizations, Bucketing bucketing, int buckets, boolean tracked) {
+        this.bucketedOrganizations = bucketedOrganizations;
+        this.bucketing = bucketing;
+        this.buckets = Math.max(1, buckets);
+        this.tracked = tracked;
+    }
+
+    /**
+     * @param bucketedOrganizations comma separated fiscal codes, no organization is bucketed if null; the layouts are
+     *                              tracked as soon as it is set, even if empty
+     * @param bucketing             HASH or MONTH, HASH if null
+     * @param buckets               number of HASH buckets, 16 if null
+     */
+    public static FlowPartitionScheme parse(String bucketedOrganizations, String bucketing, String buckets) {
+        Set<String> organizations = bucketedOrganizations == null ? Set.of() : Arrays.stream(bucketedOrganizations.split(","))
+                .map(String::trim)
+                .filter(organization -> !organization.isEmpty())
+                .collect(Collectors.toSet());
+        return new FlowPartitionScheme(organizations,
+                bucketing != null ? Bucketing.valueOf(bucketing.trim().toUpperCase(Locale.ROOT)) : Bucketing.HASH,
+                buckets != null ? Integer.parseInt(buckets) : 16,
+                bucketedOrganizations != null);
+    }
+
+    public boolean isBucketed(String idPA) {
+        return this.bucketedOrganizations.contains(idPA);
+    }
+
+    public Bucketing getBucketing() {
+        return bucketing;
+    }
+
+    /**
+     * @return false if no organization has ever been bucketed, their layout is then always {@link #NOT_BUCKETED}
+     */
+    public boolean isTracked() {
+        return tracked;
+    }
+
+    /**
+     * @return the configured layout of the organization: NONE, MONTH or HASH/buckets
+     */
+    public String layout(String idPA) {
+        if (!this.isBucketed(idPA)) {
+            return NOT_BUCKETED;
+        }
+        return this.bucketing == Bucketing.HASH ? HASH_LAYOUT_PREFIX + this.buckets : Bucketing.MONTH.name();
+    }
+
+    /**
+     * @param flowDate ISO-8601 flow date, e.g. 2021-04-24T11:15:00
+     * @return the partition key of the flow with the configured layout of the organization
+     */
+    public String partitionKey(String idPA, String flowId, String flowDate) {
+        return partitionKey(this.layout(idPA), idPA, flowId, flowDate);
+    }
+
+    public static String partitionKey(String layout, String idPA, String flowId, String flowDate) {
+        if (NOT_BUCKETED.equals(layout)) {
+            return idPA;
+        }
+        if (layout.startsWith(HASH_LAYOUT_PREFIX)) {
+            return idPA + SEPARATOR + hashBucket(flowId, Integer.parseInt(layout.substring(HASH_LAYOUT_PREFIX.length())));
+        }
+        return idPA + SEPARATOR + monthBucket(flowDate);
+    }
+
+    /**
+     * @return the filter of all the partitions an organization may have stored flows in, bucketed or not, since the
+     * bucketing of an organization can be switched on and off
+     */
+    public static String organizationPartitionsFilter(String idPA) {
+        return String.format("(PartitionKey eq '%1$s') or (PartitionKey ge '%1$s%2$s' and PartitionKey lt '%1$s%3$s')",
+                escape(idPA), SEPARATOR, SEPARATOR_UPPER_BOUND);
+    }
+
+    private static String hashBucket(String flowId, int buckets) {
+        // String.hashCode is specified, the bucket of a flow is the same on every worker
+        return String.format("%02d", Math.floorMod(flowId.hashCode(), buckets));
+    }
+
+    private static String monthBucket(String flowDate) {
+        return flowDate.substring(0, 4) + flowDate.substring(5, 7);
+    }
+
+    private static String escape(String value) {
+        return value.replace("'", "''");
+    }
+
+    /**
+     * Layouts an organization has stored its flows with, each one used for the flows dated from its cutover. A flow is
+     * therefore always given the partition it may already be stored in, and a change of layout does not make the
+     * flows already stored look new, e.g. flows of the idPA partition inserted again in a bucket.
+     * Formatted as {@code layout@cutover} entries separated by a semicolon, the cutover being an ISO-8601 date time.
+     */
+    public static final class Layouts {
+
+        // cutover of the first layout, before any flow date
+        public static final String EPOCH = "0000-01-01T00:00:00";
+        private static final String CUTOVER_SEPARATOR = "@";
+        private static final String ENTRIES_SEPARATOR = ";";
+
+        // layout by cutover
+        private final NavigableMap<String, String> layouts;
+
+        private Layouts(NavigableMap<String, String> layouts) {
+            this.layouts = layouts;
+        }
+
+        /**
+         * @return the layout used for all the flows
+         */
+        public static Layouts of(String layout) {
+            NavigableMap<String, String> layouts = new TreeMap<>();
+            layouts.put(EPOCH, layout);
+            return new Layouts(layouts);
+        }
+
+        public static Layouts parse(String value) {
+            NavigableMap<String, String> layouts = new TreeMap<>();
+            for (String entry : value.split(ENTRIES_SEPARATOR)) {
+                String[] layoutCutover = entry.split(CUTOVER_SEPARATOR);
+                layouts.put(layoutCutover[1], layoutCutover[0]);
+            }
+            return new Layouts(layouts);
+        }
+
+        public String format() {
+            return this.layouts.entrySet().stream()
+                    .map(layout -> layout.getValue() + CUTOVER_SEPARATOR + layout.getKey())
+                    .collect(Collectors.joining(ENTRIES_SEPARATOR));
+        }
+
+        /**
+         * @return the layout of the flows dated from the last cutover
+         */
+        public String current() {
+            return this.layouts.lastEntry().getValue();
+        }
+
+        /**
+         * @return these layouts, with the given one for the flows dated from the cutover
+         */
+        public Layouts with(String layout, String cutover) {
+            NavigableMap<String, String> layouts = new TreeMap<>(this.layouts);
+            // a later cutover than any flow stored, the layouts following it have never been used
+            layouts.tailMap(cutover, true).clear();
+            layouts.put(cutover, layout);
+            return new Layouts(layouts);
+        }
+
+        public boolean isBucketed() {
+            return this.layouts.values().stream().anyMatch(layout -> !NOT_BUCKETED.equals(layout));
+        }
+
+        /**
+         * @return the partitions the flows of the organization may be stored in with these layouts, the MONTH buckets
+         * up to the month after today; a MONTH layout from the epoch, never recorded, from a year before today
+         */
+        public List<String> partitionKeys(String idPA, LocalDate today) {
+            LinkedHashSet<String> partitionKeys = new LinkedHashSet<>();
+            YearMonth last = YearMonth.from(today).plusMonths(1);
+            for (Map.Entry<String, String> layout : this.layouts.entrySet()) {
+                String value = layout.getValue();
+                if (NOT_BUCKETED.equals(value)) {
+                    partitionKeys.add(idPA);
+                } else if (value.startsWith(HASH_LAYOUT_PREFIX)) {
+                    int buckets = Integer.parseInt(value.substring(HASH_LAYOUT_PREFIX.length()));
+                    for (int bucket = 0; bucket < buckets; bucket++) {
+                        partitionKeys.add(idPA + SEPARATOR + String.format("%02d", bucket));
+                    }
+                } else {
+                    YearMonth from = EPOCH.equals(layout.getKey()) ? YearMonth.from(today).minusYears(1) : yearMonth(layout.getKey());
+                    String nextCutover = this.layouts.higherKey(layout.getKey());
+                    // the month of the next cutover has flows dated before it
+                    YearMonth to = nextCutover != null && yearMonth(nextCutover).isBefore(last) ? yearMonth(nextCutover) : last;
+                    for (YearMonth month = from; !month.isAfter(to); month = month.plusMonths(1)) {
+                        partitionKeys.add(idPA + SEPARATOR + monthBucket(month.toString()));
+                    }
+                }
+            }
+            return new ArrayList<>(partitionKeys);
+        }
+
+        private static YearMonth yearMonth(String dateTime) {
+            return YearMonth.parse(dateTime.substring(0, 7));
+        }
+
+        /**
+         * @param flowDate ISO-8601 flow date, compared to the cutovers as a string
+         */
+        public String partitionKey(String idPA, String flowId, String flowDate) {
+            Map.Entry<String, String> layout = this.layouts.floorEntry(flowDate);
+            return FlowPartitionScheme.partitionKey(layout != null ? layout.getValue() : this.layouts.firstEntry().getValue(),
+                    idPA, flowId, flowDate);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package it.gov.pagopa.reporting.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Worker-wide counters, gauges and power-of-two histograms.
+ * Values are cumulative for the lifetime of the worker and are published as a single log line,
+ * so they can be queried from Application Insights traces.
+ */
+public class Metrics {
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicLong> GAUGES = new ConcurrentHashMap<>();
+    private static final Map<String, Map<Long, LongAdder>> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long value) {
+        COUNTERS.computeIfAbsent(name, k -> new LongAdder()).add(value);
+    }
+
+    public static void gauge(String name, long value) {
+        GAUGES.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+    }
+
+    /**
+     * Records the value in the bucket of the smallest power of two greater than or equal to it
+     */
+    public static void record(String name, long value) {
+        long bucket = value <= 1 ? 1 : Long.highestOneBit(value - 1) << 1;
+        HISTOGRAMS.computeIfAbsent(name, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(bucket, k -> new LongAdder())
+                .increment();
+    }
+
+    public static long getCounter(String name) {
+        LongAdder counter = COUNTERS.get(name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    public static long getGauge(String name) {
+        AtomicLong gauge = GAUGES.get(name);
+        return gauge != null ? gauge.get() : 0;
+    }
+
+    public static Map<Long, Long> getHistogram(String name) {
+        Map<Long, Long> histogram = new TreeMap<>();
+        HISTOGRAMS.getOrDefault(name, Map.of()).forEach((bucket, count) -> histogram.put(bucket, count.sum()));
+        return histogram;
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        GAUGES.forEach((name, gauge) -> snapshot.put(name, gauge.get()));
+        HISTOGRAMS.keySet().forEach(name -> snapshot.put(name, getHistogram(name)));
+        return snapshot;
+    }
+
+    public static void log(Logger logger) {
+        try {
+            String metrics = new ObjectMapper().writeValueAsString(snapshot());
+            logger.log(Level.INFO, () -> "[Metrics] " + metrics);
+        } catch (JsonProcessingException e) {
+            logger.log(Level.WARNING, () -> "[Metrics] Error " + e.getLocalizedMessage());
+        }
+    }
+
+    public static void reset() {
+        COUNTERS.clear();
+        GAUGES.clear();
+        HISTOGRAMS.clear();
+    }
+}
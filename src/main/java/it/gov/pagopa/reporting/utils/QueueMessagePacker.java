@@ -0,0 +1,77 @@
+package it.gov.pagopa.reporting.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Splits a list of elements into the minimal number of queue messages whose serialized size,
+ * once Base64 encoded by the queue client, stays within the configured byte budget.
+ */
+public class QueueMessagePacker<T> {
+
+    // Azure Queue Storage accepts messages up to 64 KB, Base64 encoding included
+    public static final int MAX_QUEUE_MESSAGE_BYTES = 64 * 1024;
+    public static final String MESSAGE_BYTES_METRIC = "queue.message.bytes";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final int maxMessageBytes;
+    private final int maxElements;
+
+    public QueueMessagePacker(int maxMessageBytes, int maxElements) {
+        this.maxMessageBytes = Math.min(maxMessageBytes, MAX_QUEUE_MESSAGE_BYTES);
+        this.maxElements = maxElements;
+    }
+
+    /**
+     * @param elements the elements to distribute among messages
+     * @param envelope builds the message carrying the given elements, it is invoked with an empty list to size the
+     *                 envelope and with each element alone to size the element, including anything the envelope
+     *                 carries for it besides the element itself
+     * @return the elements of each message, in the original order
+     */
+    public List<List<T>> pack(List<T> elements, Function<List<T>, Object> envelope) throws JsonProcessingException {
+        List<List<T>> messages = new ArrayList<>();
+        int envelopeBytes = mapper.writeValueAsBytes(envelope.apply(Collections.emptyList())).length;
+
+        List<T> current = new ArrayList<>();
+        int currentBytes = envelopeBytes;
+        for (T element : elements) {
+            // the fields the envelope omits when empty, e.g. a map by element, are counted with every element:
+            // their own bytes exceed the separators of the following elements
+            int elementBytes = mapper.writeValueAsBytes(envelope.apply(List.of(element))).length - envelopeBytes;
+            // a comma separates the element from the previous one in the JSON array
+            int candidateBytes = currentBytes + elementBytes + (current.isEmpty() ? 0 : 1);
+
+            if (!current.isEmpty() && (current.size() >= maxElements || base64Size(candidateBytes) > maxMessageBytes)) {
+                this.close(messages, current, currentBytes);
+                current = new ArrayList<>();
+                candidateBytes = envelopeBytes + elementBytes;
+            }
+            current.add(element);
+            currentBytes = candidateBytes;
+        }
+        if (!current.isEmpty()) {
+            this.close(messages, current, currentBytes);
+        }
+        return messages;
+    }
+
+    public static int base64Size(int rawBytes) {
+        return 4 * ((rawBytes + 2) / 3);
+    }
+
+    private void close(List<List<T>> messages, List<T> elements, int rawBytes) {
+        int encodedBytes = base64Size(rawBytes);
+        Metrics.record(MESSAGE_BYTES_METRIC, encodedBytes);
+        if (encodedBytes > maxMessageBytes) {
+            // a single element exceeding the budget is still sent alone, the queue service will reject it if too large
+            Metrics.increment("queue.message.oversize");
+        }
+        messages.add(elements);
+    }
+}
@@ -0,0 +1,103 @@
+package it.gov.pagopa.reporting.utils;
+
+import it.gov.pagopa.reporting.servicewsdl.FaultBean;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * Decides whether a failed Nodo call must be retried through the organizations queue, and after how long.
+ * The delay grows exponentially with the retry count, with a random jitter so that the organizations failed by the
+ * same outage are not retried all together, and is capped by the queue time-to-live less the processing margin, the
+ * longest delay the organizations queue accepts.
+ */
+public class RetryPolicy {
+
+    public enum FailureClass {
+        TRANSPORT_TIMEOUT(true),
+        CONNECTION_REFUSED(true),
+        UNKNOWN_HOST(true),
+        TRANSPORT(true),
+        // FaultBean with a code listed as retryable, e.g. PPT_SYSTEM_ERROR
+        RETRYABLE_FAULT(true),
+        // no Nodo call could be started within the time budget, the Nodo limiter being saturated
+        SATURATED(true),
+        FAULT(false);
+
+        private final boolean retryable;
+
+        FailureClass(boolean retryable) {
+            this.retryable = retryable;
+        }
+
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    public static final String DEFAULT_RETRYABLE_FAULT_CODES = "PPT_SYSTEM_ERROR";
+
+    private final int maxRetry;
+    private final int baseDelayInSeconds;
+    private final int maxDelayInSeconds;
+
+    /**
+     * @param timeToLiveInSeconds        queue time-to-live; zero or negative when unbounded
+     * @param processingMarginInSeconds time left to a retry to be processed before it expires, after its delay
+     */
+    public RetryPolicy(int maxRetry, int baseDelayInSeconds, int timeToLiveInSeconds, int processingMarginInSeconds) {
+        this.maxRetry = maxRetry;
+        this.baseDelayInSeconds = baseDelayInSeconds;
+        this.maxDelayInSeconds = timeToLiveInSeconds > 0 ? Math.max(0, timeToLiveInSeconds - processingMarginInSeconds) : Integer.MAX_VALUE;
+    }
+
+    public static FailureClass classify(Throwable transportException) {
+        for (Throwable cause = transportException; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return FailureClass.TRANSPORT_TIMEOUT;
+            }
+            if (cause instanceof ConnectException) {
+                return FailureClass.CONNECTION_REFUSED;
+            }
+            if (cause instanceof UnknownHostException) {
+                return FailureClass.UNKNOWN_HOST;
+            }
+        }
+        return FailureClass.TRANSPORT;
+    }
+
+    /**
+     * @param retryableFaultCodes comma separated FaultBean codes to retry
+     */
+    public static FailureClass classify(FaultBean faultBean, String retryableFaultCodes) {
+        Set<String> codes = Arrays.stream(retryableFaultCodes.split(","))
+                .map(String::trim)
+                .filter(code -> !code.isEmpty())
+                .collect(Collectors.toSet());
+        return faultBean.getFaultCode() != null && codes.contains(faultBean.getFaultCode())
+                ? FailureClass.RETRYABLE_FAULT
+                : FailureClass.FAULT;
+    }
+
+    /**
+     * @param retry retries already done
+     */
+    public boolean shouldRetry(FailureClass failureClass, int retry) {
+        return failureClass.isRetryable() && retry < this.maxRetry;
+    }
+
+    /**
+     * @param retry retries already done
+     * @return a delay between half and the whole of base * 2^retry, capped by the time-to-live less the processing margin
+     */
+    public int backoff(int retry) {
+        long delay = Math.min(this.maxDelayInSeconds, (long) this.baseDelayInSeconds << Math.min(retry, 30));
+        long half = delay / 2;
+        return (int) (half + ThreadLocalRandom.current().nextLong(delay - half + 1));
+    }
+}
@@ -0,0 +1,81 @@
+package it.gov.pagopa.reporting.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the work in flight by key: the first caller of a key leads the work, the concurrent callers of the
+ * same key join it instead of doing it again, without waiting for it. The joiners are handed back to the leader when
+ * it lands, so that it can reschedule them if the work failed. A flight not landed within the max age is considered
+ * lost, e.g. by a stage that died, and is taken over by the next caller.
+ *
+ * @param <T> the work of a joiner, to reschedule if the flight fails
+ */
+public class SingleFlight<T> {
+
+    private final Map<String, Flight<T>> flights = new ConcurrentHashMap<>();
+    private final long maxAgeMillis;
+
+    public SingleFlight(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param joiner work of the caller, added to the flight in progress if any
+     * @return the flight to land when the work is done, or null if the key is already in flight and has been joined
+     */
+    public Flight<T> tryLead(String key, long now, T joiner) {
+        Flight<T> flight = new Flight<>(key, now);
+        Flight<T> leader = this.flights.compute(key, (k, inFlight) -> {
+            if (inFlight == null || now - inFlight.startedAt > this.maxAgeMillis) {
+                return flight;
+            }
+            // joined under the lock of the key, before any landing of the flight
+            synchronized (inFlight.joiners) {
+                inFlight.joiners.add(joiner);
+            }
+            return inFlight;
+        });
+        return leader == flight ? flight : null;
+    }
+
+    /**
+     * @return the work of the callers that joined the flight
+     */
+    public List<T> land(Flight<T> flight) {
+        // no caller can join the flight once removed
+        this.flights.compute(flight.key, (k, inFlight) -> inFlight == flight ? null : inFlight);
+        synchronized (flight.joiners) {
+            return new ArrayList<>(flight.joiners);
+        }
+    }
+
+    public int size() {
+        return this.flights.size();
+    }
+
+    public static final class Flight<T> {
+        private final String key;
+        private final long startedAt;
+        private final List<T> joiners = new ArrayList<>();
+        private volatile boolean failed;
+
+        private Flight(String key, long startedAt) {
+            this.key = key;
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Records that the work was neither done nor rescheduled, so that the joiners must be.
+         */
+        public void fail() {
+            this.failed = true;
+        }
+
+        public boolean isFailed() {
+            return this.failed;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package it.gov.pagopa.reporting.utils;
+
+/**
+ * Execution time budget of a function invocation, used to stop starting new work before the host timeout.
+ * The next unit of work is expected to last as long as the slowest one seen so far, and so is the storing of each
+ * item of the storing backlog, which the storing of the next unit follows.
+ */
+public class TimeBudget {
+
+    private final long start;
+    private final long budgetMillis;
+    private final long marginMillis;
+    private long slowestMillis;
+    // the items are stored on the pipeline thread
+    private long slowestStoringMillis;
+
+    /**
+     * @param budgetMillis zero or negative for an unlimited budget
+     * @param marginMillis time kept for the work still in progress when the last unit is started
+     */
+    public TimeBudget(long start, long budgetMillis, long marginMillis) {
+        this.start = start;
+        this.budgetMillis = budgetMillis;
+        this.marginMillis = marginMillis;
+    }
+
+    public boolean isUnlimited() {
+        return this.budgetMillis <= 0;
+    }
+
+    public boolean canStart(long now) {
+        return this.canStart(now, 0);
+    }
+
+    /**
+     * @param backlog items submitted to the storing stage and not stored yet, the one in progress included
+     */
+    public synchronized boolean canStart(long now, int backlog) {
+        // the next unit is stored once both polled and the backlog drained
+        long next = Math.max(this.slowestMillis, backlog * this.slowestStoringMillis) + this.slowestStoringMillis;
+        return this.isUnlimited() || now - this.start + next + this.marginMillis < this.budgetMillis;
+    }
+
+    public synchronized void recordUnit(long unitMillis) {
+        this.slowestMillis = Math.max(this.slowestMillis, unitMillis);
+    }
+
+    public synchronized void recordStoring(long storingMillis) {
+        this.slowestStoringMillis = Math.max(this.slowestStoringMillis, storingMillis);
+    }
+
+    /**
+     * @return the time by which the work in progress must end, Long.MAX_VALUE for an unlimited budget
+     */
+    public long getDeadline() {
+        return this.isUnlimited() ? Long.MAX_VALUE : this.start + this.budgetMillis - this.marginMillis;
+    }
+
+    public long getRemainingMillis(long now) {
+        return this.isUnlimited() ? Long.MAX_VALUE : this.budgetMillis - (now - this.start);
+    }
+}
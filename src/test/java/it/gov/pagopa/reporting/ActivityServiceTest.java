@@ -0,0 +1,47 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.entity.OrganizationStateEntity;
+import it.gov.pagopa.reporting.service.ActivityService;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ActivityServiceTest {
+
+    private static final long HOUR = 3600_000L;
+
+    private static OrganizationStateEntity buildState(Double activityScore, Long lastPolledTime) {
+        OrganizationStateEntity state = new OrganizationStateEntity("90000000001");
+        state.setActivityScore(activityScore);
+        state.setLastPolledTime(lastPolledTime);
+        return state;
+    }
+
+    @Test
+    void updateScoreTest() {
+        assertEquals(0.5, ActivityService.updateScore(null, true, 0.5), 1e-9);
+        assertEquals(0.75, ActivityService.updateScore(0.5, true, 0.5), 1e-9);
+        assertEquals(0.25, ActivityService.updateScore(0.5, false, 0.5), 1e-9);
+    }
+
+    @Test
+    void isDueTest() {
+        long now = 100 * HOUR;
+        long maxStaleness = 24 * HOUR;
+
+        // never polled
+        assertTrue(ActivityService.isDue(buildState(null, null), now, maxStaleness, 0.5, 0));
+        assertTrue(ActivityService.isDue(null, now, maxStaleness, 0.5, 0));
+        // hot PA, polled every tick
+        assertTrue(ActivityService.isDue(buildState(0.8, now - 1000), now, maxStaleness, 0.5, 0));
+        // cold PA polled recently
+        assertFalse(ActivityService.isDue(buildState(0.0, now - HOUR), now, maxStaleness, 0.5, 0));
+        // cold PA at the max staleness
+        assertTrue(ActivityService.isDue(buildState(0.0, now - maxStaleness), now, maxStaleness, 0.5, 0));
+        // the last tick before the max staleness
+        assertTrue(ActivityService.isDue(buildState(0.0, now - maxStaleness + HOUR), now, maxStaleness, 0.5, HOUR));
+        // lukewarm PA, polled every 12 hours
+        assertFalse(ActivityService.isDue(buildState(0.5 - 1e-9, now - 11 * HOUR), now, maxStaleness, 0.6, 0));
+        assertTrue(ActivityService.isDue(buildState(0.5 - 1e-9, now - 12 * HOUR), now, maxStaleness, 0.6, 0));
+    }
+}
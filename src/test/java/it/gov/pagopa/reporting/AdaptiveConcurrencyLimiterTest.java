@@ -0,0 +1,112 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.utils.AdaptiveConcurrencyLimiter;
+import it.gov.pagopa.reporting.utils.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    @AfterEach
+    void reset() {
+        AdaptiveConcurrencyLimiter.reset();
+        Metrics.reset();
+    }
+
+    @Test
+    void growsWhileLatencyIsFlatTest() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 2, 1, 4, 0.5, 2.0);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire();
+            limiter.acquire();
+            limiter.release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS, 100);
+            limiter.release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS, 100);
+        }
+
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(4, Metrics.getGauge("limiter.test.limit"));
+    }
+
+    @Test
+    void backsOffOnDropAndLatencyTest() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 8, 1, 8, 0.5, 2.0);
+
+        limiter.acquire();
+        limiter.release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS, 100);
+        limiter.acquire();
+        limiter.release(AdaptiveConcurrencyLimiter.Outcome.DROPPED, 60000);
+        assertEquals(4, limiter.getLimit());
+
+        // latency over twice the baseline
+        limiter.acquire();
+        limiter.release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS, 1000);
+        assertEquals(2, limiter.getLimit());
+
+        // a failure unrelated to the load
+        limiter.acquire();
+        limiter.release(AdaptiveConcurrencyLimiter.Outcome.IGNORED, 10);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(2, Metrics.getCounter("limiter.test.backoff"));
+    }
+
+    @Test
+    void neverBelowMinTest() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 2, 1, 8, 0.5, 2.0);
+
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire();
+            limiter.release(AdaptiveConcurrencyLimiter.Outcome.DROPPED, 100);
+        }
+
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    void acquireBlocksAtLimitTest() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 1, 1, 0.5, 2.0);
+        limiter.acquire();
+
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertThrows(TimeoutException.class, () -> second.get(200, TimeUnit.MILLISECONDS));
+
+        limiter.release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS, 10);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    void tryAcquireTimesOutTest() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 1, 1, 0.5, 2.0);
+        assertTrue(limiter.tryAcquire(0));
+
+        assertFalse(limiter.tryAcquire(50));
+        assertFalse(limiter.tryAcquire(-1));
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(2, Metrics.getCounter("limiter.test.timeouts"));
+
+        limiter.release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS, 10);
+        assertTrue(limiter.tryAcquire(Long.MAX_VALUE));
+    }
+
+    @Test
+    void sharedInstanceTest() {
+        AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.of("nodo", 2, 8);
+
+        assertSame(limiter, AdaptiveConcurrencyLimiter.of("nodo", 4, 16));
+        assertEquals(2, limiter.getLimit());
+    }
+}
@@ -0,0 +1,73 @@
+package it.gov.pagopa.reporting;
+
+import com.sun.net.httpserver.HttpServer;
+import it.gov.pagopa.reporting.client.ApiConfigClient;
+import it.gov.pagopa.reporting.models.cache.CacheResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ApiConfigClientTest {
+
+    private static final String CACHE = "{\"creditorInstitutionStations\":{\"1\":{\"creditor_institution_code\":\"9000000001\",\"station_code\":\"12345_00\"}},"
+            + "\"stations\":{\"12345_00\":{\"station_code\":\"12345_00\",\"enabled\":true,\"broker_code\":\"12345\",\"password\":\"***\"}}}";
+
+    @Test
+    void conditionalGzipTest() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/cache", exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(304, -1);
+                exchange.getResponseBody().close();
+                return;
+            }
+            assertTrue(exchange.getRequestHeaders().getFirst("Accept-Encoding").contains("gzip"));
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+                gzip.write(CACHE.getBytes(StandardCharsets.UTF_8));
+            }
+            downloads.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            exchange.sendResponseHeaders(200, gzipped.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(gzipped.toByteArray());
+            }
+        });
+        server.start();
+        try {
+            ApiConfigClient client = new ApiConfigClient();
+            Field hostField = ApiConfigClient.class.getDeclaredField("apiConfigCacheHost");
+            hostField.setAccessible(true);
+            hostField.set(client, "http://localhost:" + server.getAddress().getPort());
+
+            CacheResponse cache = client.getCacheIfModified();
+            assertEquals(1, cache.getStations().size());
+            assertEquals(1, cache.getCreditorInstitutionStations().size());
+
+            // unchanged
+            assertNull(client.getCacheIfModified());
+            // unconditional
+            assertNotNull(client.getCache());
+            assertEquals(2, downloads.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void getInstanceTest() {
+        assertSame(ApiConfigClient.getInstance(), ApiConfigClient.getInstance());
+    }
+}
@@ -0,0 +1,59 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.service.BackpressureController;
+import it.gov.pagopa.reporting.utils.Metrics;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class BackpressureControllerTest {
+
+    private final Logger logger = Logger.getLogger("testlogging");
+
+    private BackpressureController buildController(long flowsBacklog, long organizationsBacklog) {
+        BackpressureController controller = Mockito.spy(
+                new BackpressureController("connectionStringMock", "flowsQueue", "organizationsQueue", 100, 1000, 500, logger));
+        doReturn(flowsBacklog).when(controller).getBacklog("flowsQueue");
+        lenient().doReturn(organizationsBacklog).when(controller).getBacklog("organizationsQueue");
+        return controller;
+    }
+
+    @Test
+    void evaluateTest() {
+        Metrics.reset();
+
+        assertEquals(BackpressureController.Decision.PROCEED, buildController(10, 10).evaluate());
+        assertEquals(BackpressureController.Decision.DELAY, buildController(100, 10).evaluate());
+        assertEquals(BackpressureController.Decision.SKIP, buildController(1000, 10).evaluate());
+        assertEquals(BackpressureController.Decision.SKIP, buildController(10, 500).evaluate());
+        // unknown backlog
+        assertEquals(BackpressureController.Decision.PROCEED, buildController(-1, -1).evaluate());
+
+        assertEquals(2, Metrics.getCounter("backpressure.decision.proceed"));
+        assertEquals(1, Metrics.getCounter("backpressure.decision.delay"));
+        assertEquals(2, Metrics.getCounter("backpressure.decision.skip"));
+    }
+
+    @Test
+    void stretchDelayTest() {
+        assertEquals(60, buildController(10, 0).stretchDelay(60));
+        assertEquals(660, buildController(250, 0).stretchDelay(60));
+        // capped by the max delay
+        assertEquals(3600, buildController(100_000, 0).stretchDelay(60));
+    }
+
+    @Test
+    void disabledTest() {
+        BackpressureController controller = Mockito.spy(
+                new BackpressureController("connectionStringMock", "flowsQueue", "organizationsQueue", 0, 0, 0, logger));
+
+        assertFalse(controller.isEnabled());
+        assertEquals(BackpressureController.Decision.PROCEED, controller.evaluate());
+        assertEquals(60, controller.stretchDelay(60));
+        verify(controller, never()).getBacklog(anyString());
+    }
+}
@@ -0,0 +1,62 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.utils.BoundedPipeline;
+import it.gov.pagopa.reporting.utils.Metrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedPipelineTest {
+
+    private final Logger logger = Logger.getLogger("testlogging");
+
+    @Test
+    void consumeInOrderTest() throws Exception {
+        Metrics.reset();
+        List<Integer> consumed = new CopyOnWriteArrayList<>();
+
+        try (BoundedPipeline<Integer> pipeline = new BoundedPipeline<>("test", 1, item -> {
+            if (item == 3) {
+                throw new IllegalStateException("item error");
+            }
+            consumed.add(item);
+        }, logger)) {
+            for (int i = 0; i < 10; i++) {
+                pipeline.submit(i);
+            }
+        }
+
+        // a failing item does not stop the consumer
+        assertEquals(IntStream.range(0, 10).filter(i -> i != 3).boxed().collect(Collectors.toList()), consumed);
+        assertEquals(1, Metrics.getCounter("pipeline.test.errors"));
+        assertEquals(10, Metrics.getCounter("pipeline.test.produced"));
+        assertEquals(10, Metrics.getCounter("pipeline.test.consumed"));
+    }
+
+    @Test
+    void consumerStoppedTest() throws Exception {
+        Metrics.reset();
+
+        try (BoundedPipeline<Integer> pipeline = new BoundedPipeline<>("test", 1, item -> {
+            if (item == 0) {
+                throw new StackOverflowError("item error");
+            }
+        }, logger)) {
+            // the producer fails fast instead of blocking on the full queue
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> {
+                for (int i = 0; i < 10; i++) {
+                    pipeline.submit(i);
+                }
+            });
+            assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+
+        assertEquals(1, Metrics.getCounter("pipeline.test.errors"));
+    }
+}
@@ -0,0 +1,86 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.models.cache.CacheResponse;
+import it.gov.pagopa.reporting.models.cache.CreditorInstitutionStation;
+import it.gov.pagopa.reporting.models.cache.Station;
+import it.gov.pagopa.reporting.models.cache.StationCache;
+import it.gov.pagopa.reporting.utils.CacheSnapshotUtil;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheSnapshotUtilTest {
+
+    private static SecretKey newKey() throws GeneralSecurityException {
+        return KeyGenerator.getInstance("AES").generateKey();
+    }
+
+    @Test
+    void encodeAndDecodeTest() throws IOException, GeneralSecurityException {
+
+        CacheResponse cache = CacheResponse.builder()
+                .stations(List.of(
+                        Station.builder().stationCode("12345_00").brokerCode("12345").enabled(true).password("secret-password").build(),
+                        Station.builder().stationCode("12345_01").brokerCode("12345").enabled(false).password("***").build()))
+                .creditorInstitutionStations(List.of(
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build(),
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000002").stationCode("12345_01").build()))
+                .build();
+        SecretKey key = newKey();
+        long now = System.currentTimeMillis();
+
+        byte[] snapshot = CacheSnapshotUtil.encode(StationCache.from(cache), key, now);
+        StationCache loaded = CacheSnapshotUtil.decode(snapshot, key, 60_000, now);
+
+        // disabled stations are not stored
+        assertEquals(1, loaded.getStationsSize());
+        assertEquals(1, loaded.getCreditorInstitutionsSize());
+        List<Station> stations = loaded.getStations("9000000001");
+        assertEquals(1, stations.size());
+        assertEquals("12345_00", stations.get(0).getStationCode());
+        assertEquals("12345", stations.get(0).getBrokerCode());
+        assertEquals("secret-password", stations.get(0).getPassword());
+        assertTrue(loaded.getStations("9000000002").isEmpty());
+        assertEquals(LocalDate.now(), loaded.getRetrieveDate());
+        // the passwords are not stored in clear
+        assertFalse(new String(snapshot, StandardCharsets.ISO_8859_1).contains("secret-password"));
+    }
+
+    @Test
+    void decodeWithAnotherKeyTest() throws IOException, GeneralSecurityException {
+
+        CacheResponse cache = CacheResponse.builder().stations(List.of()).creditorInstitutionStations(List.of()).build();
+        long now = System.currentTimeMillis();
+
+        byte[] snapshot = CacheSnapshotUtil.encode(StationCache.from(cache), newKey(), now);
+
+        SecretKey anotherKey = newKey();
+        assertThrows(IOException.class, () -> CacheSnapshotUtil.decode(snapshot, anotherKey, 60_000, now));
+    }
+
+    @Test
+    void decodeExpiredTest() throws IOException, GeneralSecurityException {
+
+        CacheResponse cache = CacheResponse.builder().stations(List.of()).creditorInstitutionStations(List.of()).build();
+        SecretKey key = newKey();
+
+        byte[] snapshot = CacheSnapshotUtil.encode(StationCache.from(cache), key, 1000);
+
+        assertNull(CacheSnapshotUtil.decode(snapshot, key, 60_000, 70_000));
+    }
+
+    @Test
+    void decodeCorruptedTest() throws GeneralSecurityException {
+
+        SecretKey key = newKey();
+        assertThrows(IOException.class, () -> CacheSnapshotUtil.decode(new byte[]{1, 2, 3}, key, 60_000, System.currentTimeMillis()));
+    }
+}
@@ -0,0 +1,51 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import it.gov.pagopa.reporting.utils.ElencoDemultiplexer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ElencoDemultiplexerTest {
+
+    private static final Pattern PATTERN = Pattern.compile("(?<domain>\\d{11})_.+");
+
+    @Test
+    void demultiplexTest() {
+        TipoElencoFlussiRendicontazione elencoFlussi = elenco("90000000001_1", "90000000002_1", "90000000001_2", "90000000009_1");
+
+        Map<String, TipoElencoFlussiRendicontazione> result = ElencoDemultiplexer.demultiplex(elencoFlussi,
+                Set.of("90000000001", "90000000002", "90000000003"), PATTERN);
+
+        assertNotNull(result);
+        assertEquals(2, result.get("90000000001").getTotRestituiti());
+        assertEquals(1, result.get("90000000002").getTotRestituiti());
+        // polled, without flows
+        assertEquals(0, result.get("90000000003").getTotRestituiti());
+        // another organization of the station
+        assertFalse(result.containsKey("90000000009"));
+    }
+
+    @Test
+    void notAttributableTest() {
+        TipoElencoFlussiRendicontazione elencoFlussi = elenco("90000000001_1", "2021-04-24ABI03069-1");
+
+        assertNull(ElencoDemultiplexer.demultiplex(elencoFlussi, Set.of("90000000001"), PATTERN));
+    }
+
+    private static TipoElencoFlussiRendicontazione elenco(String... flowIds) {
+        TipoElencoFlussiRendicontazione elencoFlussi = new TipoElencoFlussiRendicontazione();
+        for (String flowId : flowIds) {
+            TipoIdRendicontazione flow = new TipoIdRendicontazione();
+            flow.setIdentificativoFlusso(flowId);
+            elencoFlussi.getIdRendicontazione().add(flow);
+        }
+        elencoFlussi.setTotRestituiti(flowIds.length);
+        return elencoFlussi;
+    }
+}
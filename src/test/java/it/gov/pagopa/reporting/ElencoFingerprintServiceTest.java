@@ -0,0 +1,36 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.service.ElencoFingerprintService;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.datatype.DatatypeFactory;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ElencoFingerprintServiceTest {
+
+    private static TipoIdRendicontazione flow(String id, int year) throws Exception {
+        TipoIdRendicontazione flow = new TipoIdRendicontazione();
+        flow.setIdentificativoFlusso(id);
+        flow.setDataOraFlusso(DatatypeFactory.newInstance().newXMLGregorianCalendar(new GregorianCalendar(year, 3, 24, 11, 15)));
+        return flow;
+    }
+
+    @Test
+    void fingerprintTest() throws Exception {
+
+        String fingerprint = ElencoFingerprintService.fingerprint(List.of(flow("flow1", 2014), flow("flow2", 2015)));
+
+        // the order of the flows does not matter
+        assertEquals(fingerprint, ElencoFingerprintService.fingerprint(List.of(flow("flow2", 2015), flow("flow1", 2014))));
+        assertTrue(fingerprint.startsWith("2:"));
+
+        assertNotEquals(fingerprint, ElencoFingerprintService.fingerprint(List.of(flow("flow1", 2014))));
+        assertNotEquals(fingerprint, ElencoFingerprintService.fingerprint(List.of(flow("flow1", 2014), flow("flow3", 2015))));
+        assertNotEquals(fingerprint, ElencoFingerprintService.fingerprint(List.of(flow("flow1", 2014), flow("flow2", 2016))));
+        assertEquals("0:", ElencoFingerprintService.fingerprint(List.of()).substring(0, 2));
+    }
+}
@@ -0,0 +1,85 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.service.FlowPartitionRegistry;
+import it.gov.pagopa.reporting.utils.FlowPartitionScheme;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FlowPartitionSchemeTest {
+
+    @Test
+    void partitionKeyTest() {
+        FlowPartitionScheme hash = FlowPartitionScheme.parse("90000000001, 90000000002", null, "8");
+        assertEquals("90000000000", hash.partitionKey("90000000000", "flow-1", "2021-04-24T11:15:00"));
+        String bucket = hash.partitionKey("90000000001", "flow-1", "2021-04-24T11:15:00");
+        assertTrue(bucket.matches("90000000001_0[0-7]"));
+        // stable
+        assertEquals(bucket, hash.partitionKey("90000000001", "flow-1", "2022-01-01T00:00:00"));
+
+        FlowPartitionScheme month = FlowPartitionScheme.parse("90000000001", "month", null);
+        assertEquals("90000000001_202104", month.partitionKey("90000000001", "flow-1", "2021-04-24T11:15:00"));
+        assertFalse(FlowPartitionScheme.parse(null, null, null).isBucketed("90000000001"));
+        assertFalse(FlowPartitionScheme.parse(null, null, null).isTracked());
+        assertTrue(FlowPartitionScheme.parse("", null, null).isTracked());
+    }
+
+    @Test
+    void layoutsTest() {
+        FlowPartitionScheme.Layouts layouts = FlowPartitionScheme.Layouts.of(FlowPartitionScheme.NOT_BUCKETED)
+                .with("HASH/8", "2021-05-01T00:00:00")
+                .with("MONTH", "2021-07-01T00:00:00");
+
+        assertEquals("90000000001", layouts.partitionKey("90000000001", "flow-1", "2021-04-24T11:15:00.000+02:00"));
+        assertTrue(layouts.partitionKey("90000000001", "flow-1", "2021-05-01T00:00:00").matches("90000000001_0[0-7]"));
+        assertEquals("90000000001_202107", layouts.partitionKey("90000000001", "flow-1", "2021-07-24T11:15:00"));
+        assertEquals("MONTH", layouts.current());
+        assertTrue(layouts.isBucketed());
+        assertEquals(layouts.format(), FlowPartitionScheme.Layouts.parse(layouts.format()).format());
+    }
+
+    @Test
+    void partitionKeysTest() {
+        FlowPartitionScheme.Layouts layouts = FlowPartitionScheme.Layouts.of(FlowPartitionScheme.NOT_BUCKETED)
+                .with("HASH/2", "2021-05-01T00:00:00")
+                .with("MONTH", "2021-07-01T00:00:00");
+
+        assertEquals(List.of("90000000001", "90000000001_00", "90000000001_01", "90000000001_202107",
+                        "90000000001_202108", "90000000001_202109"),
+                layouts.partitionKeys("90000000001", LocalDate.of(2021, 8, 24)));
+
+        // the month buckets of the flows dated before a cutover
+        FlowPartitionScheme.Layouts changed = FlowPartitionScheme.Layouts.of("MONTH")
+                .with(FlowPartitionScheme.NOT_BUCKETED, "2021-04-26T00:00:00");
+        assertEquals(List.of("90000000001_202004", "90000000001_202005"),
+                changed.partitionKeys("90000000001", LocalDate.of(2021, 4, 24)).subList(0, 2));
+        assertTrue(changed.partitionKeys("90000000001", LocalDate.of(2021, 4, 24)).contains("90000000001_202104"));
+        assertTrue(changed.partitionKeys("90000000001", LocalDate.of(2021, 4, 24)).contains("90000000001"));
+        assertEquals(List.of("90000000001"), FlowPartitionScheme.Layouts.of(FlowPartitionScheme.NOT_BUCKETED)
+                .partitionKeys("90000000001", LocalDate.of(2021, 4, 24)));
+    }
+
+    @Test
+    void changeTest() {
+        FlowPartitionScheme scheme = FlowPartitionScheme.parse("90000000001", null, "8");
+        FlowPartitionScheme.Layouts stored = FlowPartitionScheme.Layouts.of(FlowPartitionScheme.NOT_BUCKETED);
+
+        // never bucketed
+        assertSame(stored, FlowPartitionRegistry.change(stored, scheme.layout("90000000000"), LocalDate.of(2021, 4, 24)));
+
+        // the flows dated before the cutover keep the previous layout
+        FlowPartitionScheme.Layouts changed = FlowPartitionRegistry.change(stored, scheme.layout("90000000001"), LocalDate.of(2021, 4, 24));
+        assertEquals("NONE@0000-01-01T00:00:00;HASH/8@2021-04-26T00:00:00", changed.format());
+        assertEquals("90000000001", changed.partitionKey("90000000001", "flow-1", "2021-04-25T23:59:59.000+02:00"));
+        assertSame(changed, FlowPartitionRegistry.change(changed, scheme.layout("90000000001"), LocalDate.of(2021, 4, 25)));
+    }
+
+    @Test
+    void organizationPartitionsFilterTest() {
+        assertEquals("(PartitionKey eq '90000000001') or (PartitionKey ge '90000000001_' and PartitionKey lt '90000000001`')",
+                FlowPartitionScheme.organizationPartitionsFilter("90000000001"));
+    }
+}
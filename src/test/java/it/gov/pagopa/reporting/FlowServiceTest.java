@@ -2,9 +2,11 @@ package it.gov.pagopa.reporting;
 
 import com.microsoft.azure.storage.StorageExtendedErrorInformation;
 import com.microsoft.azure.storage.table.TableServiceException;
+import it.gov.pagopa.reporting.models.FlowsProcessingResult;
 import it.gov.pagopa.reporting.service.FlowsService;
 import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
 import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import it.gov.pagopa.reporting.utils.FlowPartitionScheme;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mockito;
@@ -13,10 +15,14 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import javax.xml.datatype.DatatypeFactory;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.UUID;
 import java.util.logging.Logger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -60,13 +66,90 @@ class FlowServiceTest {
         /**
          * Test
          */
-        flowsService.flowsProcessing(elencoFlussi.getIdRendicontazione(), "idPaMock");
+        FlowsProcessingResult result = flowsService.flowsProcessing(elencoFlussi.getIdRendicontazione(), "idPaMock");
 
         /**
          * Asserts
          */
         verify(flowsService, times(1)).flowsBatchProcessing(any(), anyString(), anyInt());
         verify(flowsService, times(2)).flowProcessing(any(), anyString());
+        assertEquals(1, result.getFallbacks());
+        assertEquals(2, result.getNewFlows());
+        assertTrue(result.isComplete());
+    }
+
+    @Test
+    void flowsProcessingParallelBatchesTest() throws Exception {
+
+        /**
+         * Mock input - more flows than a single batch
+         */
+        List<TipoIdRendicontazione> flows = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            TipoIdRendicontazione flow = new TipoIdRendicontazione();
+            flow.setIdentificativoFlusso(UUID.randomUUID().toString());
+            flow.setDataOraFlusso(DatatypeFactory.newInstance().newXMLGregorianCalendar(new GregorianCalendar()));
+            flows.add(flow);
+        }
+
+        FlowsService flowsService = Mockito.spy(
+                new FlowsService("connectionStringMock", "tableMock", "queueMock", Logger.getLogger("testlogging")));
+
+        /**
+         * Precondition
+         */
+        doNothing().when(flowsService).flowsBatchProcessing(any(), anyString(), anyInt());
+
+        /**
+         * Test
+         */
+        FlowsProcessingResult result = flowsService.flowsProcessing(flows, "idPaMock");
+
+        /**
+         * Asserts
+         */
+        verify(flowsService, times(3)).flowsBatchProcessing(any(), anyString(), anyInt());
+        verify(flowsService, never()).flowProcessing(any(), anyString());
+        assertEquals(3, result.getBatches());
+        assertEquals(250, result.getNewFlows());
+        assertTrue(result.isComplete());
+    }
+
+    @Test
+    void flowsProcessingBucketedTest() throws Exception {
+
+        /**
+         * Mock input - flows of three months of a PA bucketed from the second one
+         */
+        List<TipoIdRendicontazione> flows = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            TipoIdRendicontazione flow = new TipoIdRendicontazione();
+            flow.setIdentificativoFlusso(UUID.randomUUID().toString());
+            flow.setDataOraFlusso(DatatypeFactory.newInstance().newXMLGregorianCalendar(new GregorianCalendar(2021, i % 3, 24, 11, 15)));
+            flows.add(flow);
+        }
+
+        FlowsService flowsService = Mockito.spy(new FlowsService("connectionStringMock", "tableMock", "queueMock",
+                FlowPartitionScheme.parse("idPaMock", "MONTH", null), null, Logger.getLogger("testlogging")));
+
+        /**
+         * Precondition
+         */
+        doReturn(FlowPartitionScheme.Layouts.of(FlowPartitionScheme.NOT_BUCKETED).with("MONTH", "2021-02-01T00:00:00"))
+                .when(flowsService).getPartitionLayouts("idPaMock");
+        doNothing().when(flowsService).flowsBatchProcessing(any(), anyString(), anyInt());
+
+        /**
+         * Test
+         */
+        FlowsProcessingResult result = flowsService.flowsProcessing(flows, "idPaMock");
+
+        /**
+         * Asserts - a batch for the idPA partition and for each month bucket
+         */
+        verify(flowsService, times(3)).flowsBatchProcessing(any(), anyString(), anyInt());
+        assertEquals(3, result.getBatches());
+        assertEquals(12, result.getNewFlows());
     }
 
 }
@@ -0,0 +1,44 @@
+package it.gov.pagopa.reporting;
+
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import it.gov.pagopa.reporting.service.FlowsOutbox;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FlowsOutboxTest {
+
+    @Test
+    void entryTest() {
+        String message = "{\"idPA\":\"9000000001\",\"flows\":[],\"retry\":0}";
+
+        DynamicTableEntity entry = FlowsOutbox.entry("9000000001_03", message);
+
+        // in the partition of the flows, after them
+        assertEquals("9000000001_03", entry.getPartitionKey());
+        assertTrue(entry.getRowKey().startsWith(FlowsOutbox.ROW_KEY_PREFIX));
+        assertTrue(entry.getRowKey().compareTo("2021-04-24PSP01-S0001") > 0);
+        assertEquals(message, FlowsOutbox.message(entry));
+    }
+
+    @Test
+    void longEntryTest() {
+        // longer than a table string property
+        String message = "x".repeat(65_000);
+
+        DynamicTableEntity entry = FlowsOutbox.entry("9000000001", message);
+
+        assertEquals(3, entry.getProperties().size());
+        assertEquals(message, FlowsOutbox.message(entry));
+
+        FlowsOutbox.setMessage(entry, "{}");
+        assertEquals(1, entry.getProperties().size());
+        assertEquals("{}", FlowsOutbox.message(entry));
+    }
+
+    @Test
+    void partitionFilterTest() {
+        assertEquals("(PartitionKey eq '9000000001') and ((RowKey ge '~outbox_') and (RowKey lt '~outbox`'))",
+                FlowsOutbox.partitionFilter("9000000001"));
+    }
+}
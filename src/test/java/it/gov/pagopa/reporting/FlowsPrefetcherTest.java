@@ -0,0 +1,157 @@
+package it.gov.pagopa.reporting;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.resources.ClientMessages;
+import it.gov.pagopa.reporting.models.cache.Station;
+import it.gov.pagopa.reporting.service.FlowsPrefetcher;
+import it.gov.pagopa.reporting.service.NodoChiediFlusso;
+import it.gov.pagopa.reporting.servicewsdl.FaultBean;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import it.gov.pagopa.reporting.utils.AdaptiveConcurrencyLimiter;
+import it.gov.pagopa.reporting.utils.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.xml.ws.Holder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FlowsPrefetcherTest {
+
+    private final Logger logger = Logger.getLogger("testlogging");
+    private final Station station = Station.builder().stationCode("12345_00").brokerCode("12345").password("***").build();
+    private final Map<String, String> uploads = new ConcurrentHashMap<>();
+
+    @AfterEach
+    void reset() {
+        Metrics.reset();
+        AdaptiveConcurrencyLimiter.reset();
+    }
+
+    @Test
+    void prefetchTest() {
+        FlowsPrefetcher prefetcher = this.prefetcher(idPa -> Optional.of(station));
+
+        Map<String, String> blobs = prefetcher.prefetch("9000000001", List.of(flow("flow-1"), flow("flow-2"), flow("fault"), flow("down")));
+
+        assertEquals(Map.of("flow-1", "9000000001/flow-1.xml", "flow-2", "9000000001/flow-2.xml"), blobs);
+        assertEquals("<flow>flow-1</flow>", uploads.get("9000000001/flow-1.xml"));
+        assertEquals(2, uploads.size());
+        assertEquals(2, Metrics.getCounter("prefetch.flows"));
+        assertEquals(1, Metrics.getCounter("prefetch.faults"));
+        assertEquals(1, Metrics.getCounter("prefetch.errors"));
+    }
+
+    @Test
+    void prefetchNoStationTest() {
+        FlowsPrefetcher prefetcher = this.prefetcher(idPa -> Optional.empty());
+
+        assertTrue(prefetcher.prefetch("9000000001", List.of(flow("flow-1"))).isEmpty());
+        assertTrue(uploads.isEmpty());
+    }
+
+    @Test
+    void prefetchLimitedTest() {
+        AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.of("prefetch-test", 2, 2);
+        FlowsPrefetcher prefetcher = this.prefetcher(idPa -> Optional.of(station), Long.MAX_VALUE, limiter);
+
+        Map<String, String> blobs = prefetcher.prefetch("9000000001", List.of(flow("flow-1"), flow("down")));
+
+        assertEquals(Map.of("flow-1", "9000000001/flow-1.xml"), blobs);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void prefetchDeadlineTest() {
+        FlowsPrefetcher prefetcher = this.prefetcher(idPa -> Optional.of(station), System.currentTimeMillis() - 1, null);
+
+        assertTrue(prefetcher.prefetch("9000000001", List.of(flow("flow-1"), flow("flow-2"))).isEmpty());
+        assertEquals(2, Metrics.getCounter("prefetch.skipped"));
+        assertTrue(uploads.isEmpty());
+    }
+
+    @Test
+    void blobNamesTest() {
+        assertEquals(Map.of("flow-1", "9000000001/flow-1.xml"), FlowsPrefetcher.blobNames("9000000001", List.of(flow("flow-1"))));
+    }
+
+    private FlowsPrefetcher prefetcher(java.util.function.Function<String, Optional<Station>> stations) {
+        return this.prefetcher(stations, Long.MAX_VALUE, null);
+    }
+
+    private FlowsPrefetcher prefetcher(java.util.function.Function<String, Optional<Station>> stations, long deadline,
+                                       AdaptiveConcurrencyLimiter limiter) {
+        return new FlowsPrefetcher("conn", "flows", 2, stations, FakeNodo::new, deadline, limiter, logger) {
+            @Override
+            public void upload(String blobName, InputStream xml) throws IOException {
+                uploads.put(blobName, new String(xml.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    private static TipoIdRendicontazione flow(String flowId) {
+        TipoIdRendicontazione flow = new TipoIdRendicontazione();
+        flow.setIdentificativoFlusso(flowId);
+        return flow;
+    }
+
+    /**
+     * Returns a fault for the flow "fault", fails for the flow "down", else the XML of the flow.
+     */
+    private static final class FakeNodo extends NodoChiediFlusso {
+
+        private FakeNodo() {
+            super(null);
+        }
+
+        @Override
+        public void nodoChiediFlussoRendicontazione(String idPa, String idIntermediarioPA, String idStazioneIntermediarioPA,
+                                                    String passwordStazione, String idFlusso) {
+            if ("down".equals(idFlusso)) {
+                throw new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(new IOException("down")));
+            }
+            if ("fault".equals(idFlusso)) {
+                FaultBean faultBean = new FaultBean();
+                faultBean.setFaultCode("PPT_ID_FLUSSO_SCONOSCIUTO");
+                this.setNodoChiediFlussoRendicontazioneFault(new Holder<>(faultBean));
+                this.setXmlRendicontazione(new Holder<>());
+                return;
+            }
+            byte[] xml = ("<flow>" + idFlusso + "</flow>").getBytes(StandardCharsets.UTF_8);
+            this.setNodoChiediFlussoRendicontazioneFault(new Holder<>());
+            this.setXmlRendicontazione(new Holder<>(new DataHandler(new DataSource() {
+                @Override
+                public InputStream getInputStream() {
+                    return new ByteArrayInputStream(xml);
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    throw new IOException("read only");
+                }
+
+                @Override
+                public String getContentType() {
+                    return "application/xml";
+                }
+
+                @Override
+                public String getName() {
+                    return idFlusso;
+                }
+            })));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package it.gov.pagopa.reporting;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.resources.ClientMessages;
+import it.gov.pagopa.reporting.service.HedgedNodoChiediElencoFlussi;
+import it.gov.pagopa.reporting.service.NodoChiediElencoFlussi;
+import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
+import it.gov.pagopa.reporting.utils.AdaptiveConcurrencyLimiter;
+import it.gov.pagopa.reporting.utils.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.ws.Holder;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HedgedNodoChiediElencoFlussiTest {
+
+    private final Logger logger = Logger.getLogger("testlogging");
+
+    @AfterEach
+    void reset() {
+        HedgedNodoChiediElencoFlussi.reset();
+        Metrics.reset();
+    }
+
+    @Test
+    void hedgeWinsTest() throws Exception {
+        // warm-up calls, then a slow primary and a fast hedge
+        Deque<Long> latencies = new ArrayDeque<>();
+        for (int i = 0; i < HedgedNodoChiediElencoFlussi.MIN_SAMPLES; i++) {
+            latencies.add(10L);
+        }
+        latencies.add(5000L);
+        latencies.add(10L);
+        HedgedNodoChiediElencoFlussi client = new HedgedNodoChiediElencoFlussi(() -> new FakeNodo(latencies), 95, 0.5, logger);
+
+        for (int i = 0; i < HedgedNodoChiediElencoFlussi.MIN_SAMPLES; i++) {
+            client.nodoChiediElencoFlussiRendicontazione("12345", "1", "2", "3");
+        }
+        assertEquals(0, Metrics.getCounter("nodo.hedge.sent"));
+
+        long start = System.currentTimeMillis();
+        client.nodoChiediElencoFlussiRendicontazione("12345", "1", "2", "3");
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(10, client.getNodoChiediElencoFlussiRendicontazione().getTotRestituiti());
+        assertEquals(1, Metrics.getCounter("nodo.hedge.sent"));
+        assertEquals(1, Metrics.getCounter("nodo.hedge.won"));
+    }
+
+    @Test
+    void hedgeCappedTest() throws Exception {
+        Deque<Long> latencies = new ArrayDeque<>();
+        for (int i = 0; i < HedgedNodoChiediElencoFlussi.MIN_SAMPLES; i++) {
+            latencies.add(10L);
+        }
+        latencies.add(300L);
+        HedgedNodoChiediElencoFlussi client = new HedgedNodoChiediElencoFlussi(() -> new FakeNodo(latencies), 95, 0, logger);
+
+        for (int i = 0; i <= HedgedNodoChiediElencoFlussi.MIN_SAMPLES; i++) {
+            client.nodoChiediElencoFlussiRendicontazione("12345", "1", "2", "3");
+        }
+
+        assertEquals(300, client.getNodoChiediElencoFlussiRendicontazione().getTotRestituiti());
+        assertEquals(0, Metrics.getCounter("nodo.hedge.sent"));
+        assertEquals(1, Metrics.getCounter("nodo.hedge.capped"));
+    }
+
+    @Test
+    void hedgeBurstCappedTest() throws Exception {
+        // many calls within the hedge delay, then three slow ones: the first calls earn a single hedge
+        Deque<Long> latencies = new ArrayDeque<>();
+        for (int i = 0; i < 100; i++) {
+            // the slowest ones first, before any hedge, so that the others stay well within the 95th percentile
+            latencies.add(i < 10 ? 100L : 10L);
+        }
+        latencies.addAll(List.of(300L, 10L, 300L, 300L));
+        HedgedNodoChiediElencoFlussi client = new HedgedNodoChiediElencoFlussi(() -> new FakeNodo(latencies), 95, 0.05, logger);
+
+        for (int i = 0; i < 103; i++) {
+            client.nodoChiediElencoFlussiRendicontazione("12345", "1", "2", "3");
+        }
+
+        assertEquals(1, Metrics.getCounter("nodo.hedge.sent"));
+        assertEquals(2, Metrics.getCounter("nodo.hedge.capped"));
+    }
+
+    @Test
+    void hedgeLimitedTest() throws Exception {
+        Deque<Long> latencies = new ArrayDeque<>();
+        for (int i = 0; i < HedgedNodoChiediElencoFlussi.MIN_SAMPLES; i++) {
+            latencies.add(10L);
+        }
+        latencies.add(300L);
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 1, 1, 0.5, 2.0);
+        HedgedNodoChiediElencoFlussi client = new HedgedNodoChiediElencoFlussi(() -> new FakeNodo(latencies), 95, 0.5, limiter, logger);
+
+        // the permit of the primary requests, taken by the caller
+        assertTrue(limiter.tryAcquire(0));
+        for (int i = 0; i <= HedgedNodoChiediElencoFlussi.MIN_SAMPLES; i++) {
+            client.nodoChiediElencoFlussiRendicontazione("12345", "1", "2", "3");
+        }
+
+        assertEquals(300, client.getNodoChiediElencoFlussiRendicontazione().getTotRestituiti());
+        assertEquals(0, Metrics.getCounter("nodo.hedge.sent"));
+        assertEquals(1, Metrics.getCounter("nodo.hedge.limited"));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    void transportErrorTest() {
+        HedgedNodoChiediElencoFlussi client = new HedgedNodoChiediElencoFlussi(() -> new FakeNodo(new ArrayDeque<>(List.of(-1L))), 95, 0.5, logger);
+
+        assertThrows(ClientTransportException.class, () -> client.nodoChiediElencoFlussiRendicontazione("12345", "1", "2", "3"));
+    }
+
+    /**
+     * Answers after the next latency of the list, with its value as the number of flows; fails on a negative latency.
+     */
+    private static final class FakeNodo extends NodoChiediElencoFlussi {
+        private final Deque<Long> latencies;
+
+        private FakeNodo(Deque<Long> latencies) {
+            this.latencies = latencies;
+        }
+
+        @Override
+        public void nodoChiediElencoFlussiRendicontazione(String idPa, String idIntermediarioPA, String idStazioneIntermediarioPA,
+                                                          String passwordStazione) {
+            long latency;
+            synchronized (latencies) {
+                latency = latencies.poll();
+            }
+            if (latency < 0) {
+                throw new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(new IOException("down")));
+            }
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            TipoElencoFlussiRendicontazione elenco = new TipoElencoFlussiRendicontazione();
+            elenco.setTotRestituiti((int) latency);
+            this.setNodoChiediElencoFlussiRendicontazioneFault(new Holder<>());
+            this.setNodoChiediElencoFlussiRendicontazione(new Holder<>(elenco));
+        }
+    }
+}
@@ -72,6 +72,21 @@ class InfoTest {
         assertNotNull(response.getEnvironment());
     }
 
+    @SneakyThrows
+    @Test
+    void getInfoCached() {
+
+        // Mocking service creation
+        Logger logger = Logger.getLogger("example-test-logger");
+        String path = "/META-INF/maven/it.gov.pagopa.reporting/reporting-batch/pom.properties";
+
+        // Execute function
+        AppInfo response = infoFunction.getInfo(logger, path);
+
+        // Checking assertions
+        assertSame(response, new Info().getInfo(logger, path));
+    }
+
     @SneakyThrows
     @Test
     void getInfoKo() {
@@ -0,0 +1,62 @@
+package it.gov.pagopa.reporting;
+
+import com.microsoft.azure.storage.StorageException;
+import it.gov.pagopa.reporting.entity.OrganizationEntity;
+import it.gov.pagopa.reporting.service.OrganizationsRoster;
+import it.gov.pagopa.reporting.service.OrganizationsService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class OrganizationsRosterTest {
+
+    @Mock
+    OrganizationsService organizationsService;
+
+    private final Logger logger = Logger.getLogger("testlogging");
+
+    private static OrganizationEntity buildOrganization(String organizationId, long timestamp) {
+        OrganizationEntity organization = new OrganizationEntity(organizationId, "2022-01-01");
+        organization.setTimestamp(new Date(timestamp));
+        return organization;
+    }
+
+    private static List<String> ids(List<OrganizationEntity> organizations) {
+        return organizations.stream().map(OrganizationEntity::getRowKey).collect(Collectors.toList());
+    }
+
+    @Test
+    void syncTest() throws Exception {
+        OrganizationsRoster<OrganizationEntity> roster = new OrganizationsRoster<>("organizations");
+        long hour = 3600_000L;
+
+        // full sync
+        when(organizationsService.queryOrganizationEntities(isNull())).thenReturn(List.of(
+                buildOrganization("90000000002", 2 * hour), buildOrganization("90000000001", hour)));
+        assertEquals(List.of("90000000001", "90000000002"), ids(roster.sync(organizationsService::queryOrganizationEntities, hour, logger)));
+
+        // delta sync, from the last timestamp read minus the overlap
+        when(organizationsService.queryOrganizationEntities(notNull())).thenReturn(List.of(buildOrganization("90000000003", 3 * hour)));
+        assertEquals(List.of("90000000001", "90000000002", "90000000003"), ids(roster.sync(organizationsService::queryOrganizationEntities, hour, logger)));
+        verify(organizationsService).queryOrganizationEntities(new Date(2 * hour - 60_000));
+
+        // the roster is served when the sync fails
+        when(organizationsService.queryOrganizationEntities(notNull())).thenThrow(new StorageException("code", "message", null));
+        assertEquals(3, roster.sync(organizationsService::queryOrganizationEntities, hour, logger).size());
+
+        // the full sync drops the deleted organizations
+        when(organizationsService.queryOrganizationEntities(isNull())).thenReturn(List.of(buildOrganization("90000000001", hour)));
+        assertEquals(List.of("90000000001"), ids(roster.sync(organizationsService::queryOrganizationEntities, 0, logger)));
+    }
+}
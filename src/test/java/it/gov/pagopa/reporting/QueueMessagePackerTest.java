@@ -0,0 +1,115 @@
+package it.gov.pagopa.reporting;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.gov.pagopa.reporting.models.FlowsMessage;
+import it.gov.pagopa.reporting.models.OrganizationsMessage;
+import it.gov.pagopa.reporting.service.FlowsPrefetcher;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import it.gov.pagopa.reporting.utils.QueueMessagePacker;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueueMessagePackerTest {
+
+    private static OrganizationsMessage buildMessage(List<String> organizations) {
+        return OrganizationsMessage.builder().idPA(organizations.toArray(String[]::new)).retry(0).build();
+    }
+
+    private static FlowsMessage buildFlowsMessage(List<TipoIdRendicontazione> flows) {
+        FlowsMessage message = new FlowsMessage();
+        message.setIdPA("90000000001");
+        message.setFlows(flows.toArray(TipoIdRendicontazione[]::new));
+        message.setRetry(0);
+        message.setBlobs(FlowsPrefetcher.blobNames("90000000001", flows));
+        return message;
+    }
+
+    @Test
+    void packWithinByteBudgetTest() throws Exception {
+
+        List<String> organizations = IntStream.range(0, 1000)
+                .mapToObj(i -> String.format("%011d", i))
+                .collect(Collectors.toList());
+        int maxMessageBytes = 1024;
+
+        List<List<String>> messages = new QueueMessagePacker<String>(maxMessageBytes, Integer.MAX_VALUE)
+                .pack(organizations, QueueMessagePackerTest::buildMessage);
+
+        List<String> packed = new ArrayList<>();
+        ObjectMapper mapper = new ObjectMapper();
+        for (List<String> message : messages) {
+            int rawBytes = mapper.writeValueAsBytes(buildMessage(message)).length;
+            assertTrue(QueueMessagePacker.base64Size(rawBytes) <= maxMessageBytes);
+            packed.addAll(message);
+        }
+        assertEquals(organizations, packed);
+
+        // every message but the last one is full: one more element would exceed the budget
+        for (int i = 0; i < messages.size() - 1; i++) {
+            List<String> extended = new ArrayList<>(messages.get(i));
+            extended.add(messages.get(i + 1).get(0));
+            int rawBytes = mapper.writeValueAsBytes(buildMessage(extended)).length;
+            assertTrue(QueueMessagePacker.base64Size(rawBytes) > maxMessageBytes);
+        }
+    }
+
+    @Test
+    void packWithElementEntriesTest() throws Exception {
+
+        List<TipoIdRendicontazione> flows = IntStream.range(0, 200)
+                .mapToObj(i -> {
+                    TipoIdRendicontazione flow = new TipoIdRendicontazione();
+                    flow.setIdentificativoFlusso(String.format("2022-01-01%011d-%05d", 90000000001L, i));
+                    return flow;
+                })
+                .collect(Collectors.toList());
+        int maxMessageBytes = 4096;
+
+        List<List<TipoIdRendicontazione>> messages = new QueueMessagePacker<TipoIdRendicontazione>(maxMessageBytes, Integer.MAX_VALUE)
+                .pack(flows, QueueMessagePackerTest::buildFlowsMessage);
+
+        // the blobs of the flows, omitted from the envelope sized with no flows, are counted
+        ObjectMapper mapper = new ObjectMapper();
+        assertTrue(messages.size() > 1);
+        for (List<TipoIdRendicontazione> message : messages) {
+            int rawBytes = mapper.writeValueAsBytes(buildFlowsMessage(message)).length;
+            assertTrue(QueueMessagePacker.base64Size(rawBytes) <= maxMessageBytes);
+        }
+    }
+
+    @Test
+    void packWithMaxElementsTest() throws Exception {
+
+        List<String> organizations = List.of("90000000001", "90000000002", "90000000003");
+
+        List<List<String>> messages = new QueueMessagePacker<String>(QueueMessagePacker.MAX_QUEUE_MESSAGE_BYTES, 2)
+                .pack(organizations, QueueMessagePackerTest::buildMessage);
+
+        assertEquals(2, messages.size());
+        assertEquals(List.of("90000000001", "90000000002"), messages.get(0));
+        assertEquals(List.of("90000000003"), messages.get(1));
+    }
+
+    @Test
+    void packEmptyTest() throws Exception {
+
+        List<List<String>> messages = new QueueMessagePacker<String>(QueueMessagePacker.MAX_QUEUE_MESSAGE_BYTES, 5)
+                .pack(List.of(), QueueMessagePackerTest::buildMessage);
+
+        assertTrue(messages.isEmpty());
+    }
+
+    @Test
+    void base64SizeTest() {
+        assertEquals(0, QueueMessagePacker.base64Size(0));
+        assertEquals(4, QueueMessagePacker.base64Size(1));
+        assertEquals(4, QueueMessagePacker.base64Size(3));
+        assertEquals(8, QueueMessagePacker.base64Size(4));
+    }
+}
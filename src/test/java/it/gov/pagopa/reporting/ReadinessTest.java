@@ -0,0 +1,108 @@
+package it.gov.pagopa.reporting;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.storage.StorageException;
+import it.gov.pagopa.reporting.models.ReadinessInfo;
+import it.gov.pagopa.reporting.service.ReadinessProbe;
+import it.gov.pagopa.reporting.utils.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Optional;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ReadinessTest {
+
+    @Mock
+    ExecutionContext context;
+
+    @Spy
+    Readiness readinessFunction;
+
+    private final Logger logger = Logger.getLogger("example-test-logger");
+
+    @AfterEach
+    void reset() {
+        ReadinessProbe.reset();
+        Metrics.reset();
+    }
+
+    @Test
+    void runNotReady() throws Exception {
+
+        when(context.getLogger()).thenReturn(logger);
+        ReadinessProbe probe = spy(new ReadinessProbe("conn", "flows", "flows", 60_000, logger));
+        doThrow(new StorageException("AuthenticationFailed", "denied", null)).when(probe).probeTable();
+        doReturn(probe).when(readinessFunction).getReadinessProbeInstance(logger);
+
+        // test precondition
+        final HttpResponseMessage.Builder builder = mock(HttpResponseMessage.Builder.class);
+        @SuppressWarnings("unchecked")
+        HttpRequestMessage<Optional<String>> request = mock(HttpRequestMessage.class);
+
+        HttpResponseMessage responseMock = mock(HttpResponseMessage.class);
+        doReturn(HttpStatus.SERVICE_UNAVAILABLE).when(responseMock).getStatus();
+        doReturn(builder).when(builder).body(any());
+        doReturn(responseMock).when(builder).build();
+        doReturn(builder).when(request).createResponseBuilder(HttpStatus.SERVICE_UNAVAILABLE);
+        doReturn(builder).when(builder).header(anyString(), anyString());
+
+        // test execution
+        HttpResponseMessage response = readinessFunction.run(request, context);
+
+        // test assertion
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatus());
+        assertEquals(1, Metrics.getCounter("readiness.probe.errors"));
+        // the storage failure is not disclosed
+        ArgumentCaptor<ReadinessInfo> body = ArgumentCaptor.forClass(ReadinessInfo.class);
+        verify(builder).body(body.capture());
+        assertEquals(ReadinessProbe.STORAGE_UNAVAILABLE, body.getValue().getStorageStatus());
+    }
+
+    @Test
+    void probeWarmCachedTest() throws Exception {
+        ReadinessProbe probe = spy(new ReadinessProbe("conn", "flows", "flows", 60_000, logger));
+        doReturn(12L).when(probe).probeTable();
+        doReturn(8L).when(probe).probeQueue();
+
+        ReadinessInfo cold = probe.probe(1_000_000);
+        assertTrue(cold.isReady());
+        assertFalse(cold.isWarm());
+        assertNull(cold.getCacheAgeMs());
+        assertEquals(12, cold.getTableLatencyMs());
+        assertEquals(8, cold.getQueueLatencyMs());
+        assertEquals(ReadinessProbe.STORAGE_AVAILABLE, cold.getStorageStatus());
+
+        // published by RetrieveFlows
+        Metrics.gauge("cache.refreshed.epoch.ms", 990_000);
+        Metrics.gauge("cache.stations", 3);
+        Metrics.gauge("nodo.last.response.epoch.ms", 1_005_000);
+        Metrics.gauge("nodo.last.latency.ms", 250);
+
+        ReadinessInfo warm = probe.probe(1_010_000);
+        assertTrue(warm.isWarm());
+        assertEquals(20_000, warm.getCacheAgeMs());
+        assertEquals(3, warm.getCacheStations());
+        assertEquals(250, warm.getNodoLastLatencyMs());
+        assertEquals(10_000, warm.getProbeAgeMs());
+
+        // the storage is probed once per interval
+        verify(probe, times(1)).probeTable();
+        probe.probe(1_070_000);
+        verify(probe, times(2)).probeTable();
+    }
+}
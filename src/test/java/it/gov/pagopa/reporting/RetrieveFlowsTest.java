@@ -1,15 +1,26 @@
 package it.gov.pagopa.reporting;
 
 import com.microsoft.azure.functions.ExecutionContext;
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.resources.ClientMessages;
 import it.gov.pagopa.reporting.client.ApiConfigClient;
+import it.gov.pagopa.reporting.models.FlowsProcessingResult;
 import it.gov.pagopa.reporting.models.cache.CacheResponse;
 import it.gov.pagopa.reporting.models.cache.CreditorInstitutionStation;
 import it.gov.pagopa.reporting.models.cache.Station;
+import it.gov.pagopa.reporting.models.cache.StationCache;
+import it.gov.pagopa.reporting.service.ActivityService;
+import it.gov.pagopa.reporting.service.CacheSnapshotService;
+import it.gov.pagopa.reporting.service.CheckpointService;
 import it.gov.pagopa.reporting.service.FlowsService;
 import it.gov.pagopa.reporting.service.NodoChiediElencoFlussi;
+import it.gov.pagopa.reporting.service.OrganizationsService;
+import it.gov.pagopa.reporting.service.StationSelector;
 import it.gov.pagopa.reporting.servicewsdl.ObjectFactory;
 import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
 import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import it.gov.pagopa.reporting.utils.Metrics;
+import it.gov.pagopa.reporting.utils.TimeBudget;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
@@ -17,17 +28,27 @@ import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import javax.xml.datatype.DatatypeFactory;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -48,6 +69,15 @@ class RetrieveFlowsTest {
     @Mock
     FlowsService flowsService;
 
+    @Mock
+    CheckpointService checkpointService;
+
+    @Mock
+    ActivityService activityService;
+
+    @Mock
+    OrganizationsService organizationsService;
+
     ObjectFactory objectFactory = new ObjectFactory();
 
     @Test
@@ -75,14 +105,16 @@ class RetrieveFlowsTest {
         when(context.getLogger()).thenReturn(logger);
 
         doReturn(nodeClient).when(function).getNodeClientInstance(logger);
-        doReturn(flowsService).when(function).getFlowsServiceInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
         doReturn(cacheClient).when(function).getCacheClientInstance();
 
         doNothing().when(nodeClient).nodoChiediElencoFlussiRendicontazione(anyString(), anyString(), anyString(), anyString());
         when(nodeClient.getNodoChiediElencoFlussiRendicontazioneFault()).thenReturn(null);
-        when(nodeClient.getNodoChiediElencoFlussiRendicontazione()).thenReturn(elencoFlussi);// test
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazione()).thenReturn(elencoFlussi);
+        when(flowsService.flowsProcessing(anyList(), anyString())).thenReturn(new FlowsProcessingResult());
+        // test
         String message = "{\"idPA\":[\"9000000001\",\"9000000002\",\"9000000003\"]}";
-        function.run(message, context);
+        function.run(message, UUID.randomUUID().toString(), context);
 
         // Asserts
         verify(context, times(1)).getLogger();
@@ -125,7 +157,7 @@ class RetrieveFlowsTest {
         when(context.getLogger()).thenReturn(logger);
 
         doReturn(nodeClient).when(function).getNodeClientInstance(logger);
-        doReturn(flowsService).when(function).getFlowsServiceInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
         doReturn(cacheClient).when(function).getCacheClientInstance();
 
         // doNothing().when(nodeClient).setSslContext();
@@ -136,20 +168,464 @@ class RetrieveFlowsTest {
         when(cacheClient.getCache()).thenReturn(cacheResponse);
         // test
         String message = "{\"idPA\":[\"9000000001\",\"9000000002\",\"9000000003\"]}";
-        function.run(message, context);
+        function.run(message, UUID.randomUUID().toString(), context);
 
         // Asserts
         verify(context, times(1)).getLogger();
         verify(nodeClient, times(3)).nodoChiediElencoFlussiRendicontazione(anyString(), anyString(), anyString(), anyString());
     }
 
+    @Test
+    void runCheckpointTest() throws Exception {
+
+        List<Station> stations = List.of(Station.builder()
+                .stationCode("12345_00")
+                .brokerCode("12345")
+                .enabled(true)
+                .password("***")
+                .build());
+        List<CreditorInstitutionStation> creditorInstitutionStations = List.of(
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build(),
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000002").stationCode("12345_00").build(),
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000003").stationCode("12345_00").build()
+        );
+        CacheResponse cacheResponse = CacheResponse.builder()
+                .retrieveDate(LocalDate.now())
+                .creditorInstitutionStations(creditorInstitutionStations)
+                .stations(stations)
+                .build();
+
+        // general var
+        Logger logger = Logger.getLogger("testlogging");
+        String messageId = UUID.randomUUID().toString();
+
+        // precondition
+        when(context.getLogger()).thenReturn(logger);
+
+        doReturn(nodeClient).when(function).getNodeClientInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
+        doReturn(cacheClient).when(function).getCacheClientInstance();
+        doReturn(checkpointService).when(function).getCheckpointServiceInstance(logger);
+
+        lenient().when(cacheClient.getCache()).thenReturn(cacheResponse);
+        // 9000000001 completed by a previous delivery, 9000000002 processed in the tick by another message
+        when(checkpointService.getCompletedOrganizations(messageId)).thenReturn(Set.of("9000000001"));
+        doReturn(false).when(checkpointService).claim("9000000002", messageId, 1700000000000L);
+        doReturn(true).when(checkpointService).claim("9000000003", messageId, 1700000000000L);
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazioneFault()).thenReturn(objectFactory.createFaultBean());
+
+        // test
+        String message = "{\"idPA\":[\"9000000001\",\"9000000002\",\"9000000003\"],\"epoch\":1700000000000}";
+        try {
+            function.run(message, messageId, context);
+        } finally {
+            // the other tests rely on the static cache being loaded by runKoTest
+            Field cacheField = RetrieveFlows.class.getDeclaredField("cacheContent");
+            cacheField.setAccessible(true);
+            cacheField.set(null, null);
+        }
+
+        // Asserts
+        verify(nodeClient, times(1)).nodoChiediElencoFlussiRendicontazione(eq("9000000003"), anyString(), anyString(), anyString());
+        verify(checkpointService, times(1)).complete("9000000003", messageId);
+        verify(checkpointService, never()).complete("9000000002", messageId);
+        verify(checkpointService, times(1)).clear(messageId);
+    }
+
+    @Test
+    void runCoalescingTest() throws Exception {
+
+        List<Station> stations = List.of(Station.builder()
+                .stationCode("12345_00")
+                .brokerCode("12345")
+                .enabled(true)
+                .password("***")
+                .build());
+        List<CreditorInstitutionStation> creditorInstitutionStations = List.of(
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build(),
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000002").stationCode("12345_00").build()
+        );
+        CacheResponse cacheResponse = CacheResponse.builder()
+                .retrieveDate(LocalDate.now())
+                .creditorInstitutionStations(creditorInstitutionStations)
+                .stations(stations)
+                .build();
+
+        // general var
+        Logger logger = Logger.getLogger("testlogging");
+        long epoch = System.currentTimeMillis() - 3600_000L;
+
+        // precondition
+        when(context.getLogger()).thenReturn(logger);
+
+        Field coalescingField = RetrieveFlows.class.getDeclaredField("coalescingEnabled");
+        coalescingField.setAccessible(true);
+        coalescingField.setBoolean(function, true);
+
+        doReturn(nodeClient).when(function).getNodeClientInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
+        doReturn(cacheClient).when(function).getCacheClientInstance();
+        doReturn(activityService).when(function).getActivityServiceInstance(logger);
+
+        lenient().when(cacheClient.getCache()).thenReturn(cacheResponse);
+        // 9000000001 polled by a message of a later schedule
+        doReturn(true).when(activityService).isPolledSince("9000000001", epoch);
+        doReturn(false).when(activityService).isPolledSince("9000000002", epoch);
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazioneFault()).thenReturn(objectFactory.createFaultBean());
+
+        // test
+        String message = "{\"idPA\":[\"9000000001\",\"9000000002\"],\"retry\":0,\"epoch\":" + epoch + "}";
+        try {
+            function.run(message, UUID.randomUUID().toString(), context);
+        } finally {
+            Field cacheField = RetrieveFlows.class.getDeclaredField("cacheContent");
+            cacheField.setAccessible(true);
+            cacheField.set(null, null);
+        }
+
+        // Asserts
+        verify(nodeClient, never()).nodoChiediElencoFlussiRendicontazione(eq("9000000001"), anyString(), anyString(), anyString());
+        verify(nodeClient, times(1)).nodoChiediElencoFlussiRendicontazione(eq("9000000002"), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    void runTimeBudgetTest() throws Exception {
+
+        List<Station> stations = List.of(Station.builder()
+                .stationCode("12345_00")
+                .brokerCode("12345")
+                .enabled(true)
+                .password("***")
+                .build());
+        List<CreditorInstitutionStation> creditorInstitutionStations = List.of(
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build(),
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000002").stationCode("12345_00").build(),
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000003").stationCode("12345_00").build()
+        );
+        CacheResponse cacheResponse = CacheResponse.builder()
+                .retrieveDate(LocalDate.now())
+                .creditorInstitutionStations(creditorInstitutionStations)
+                .stations(stations)
+                .build();
+
+        // general var
+        Logger logger = Logger.getLogger("testlogging");
+
+        // precondition: 1 second of budget, the first call lasts 600 ms
+        when(context.getLogger()).thenReturn(logger);
+
+        Field budgetField = RetrieveFlows.class.getDeclaredField("timeBudgetInSeconds");
+        budgetField.setAccessible(true);
+        budgetField.setLong(function, 1);
+        Field marginField = RetrieveFlows.class.getDeclaredField("timeBudgetMarginInSeconds");
+        marginField.setAccessible(true);
+        marginField.setLong(function, 0);
+
+        doReturn(nodeClient).when(function).getNodeClientInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
+        doReturn(cacheClient).when(function).getCacheClientInstance();
+        doReturn(organizationsService).when(function).getOrganizationsServiceInstance(logger);
+
+        lenient().when(cacheClient.getCache()).thenReturn(cacheResponse);
+        doAnswer(invocation -> {
+            Thread.sleep(600);
+            return null;
+        }).when(nodeClient).nodoChiediElencoFlussiRendicontazione(anyString(), anyString(), anyString(), anyString());
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazioneFault()).thenReturn(objectFactory.createFaultBean());
+
+        // test
+        String message = "{\"idPA\":[\"9000000001\",\"9000000002\",\"9000000003\"],\"retry\":1,\"epoch\":1000}";
+        try {
+            function.run(message, UUID.randomUUID().toString(), context);
+        } finally {
+            Field cacheField = RetrieveFlows.class.getDeclaredField("cacheContent");
+            cacheField.setAccessible(true);
+            cacheField.set(null, null);
+        }
+
+        // Asserts
+        verify(nodeClient, times(1)).nodoChiediElencoFlussiRendicontazione(eq("9000000001"), anyString(), anyString(), anyString());
+        verify(organizationsService, times(1)).addToOrganizationsQueue(List.of("9000000002", "9000000003"), 1, 0, 1000L);
+    }
+
+    @Test
+    void runStationPollingTest() throws Exception {
+
+        List<Station> stations = List.of(Station.builder()
+                .stationCode("12345_00")
+                .brokerCode("12345")
+                .enabled(true)
+                .password("***")
+                .build());
+        List<CreditorInstitutionStation> creditorInstitutionStations = List.of(
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build(),
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000002").stationCode("12345_00").build()
+        );
+        CacheResponse cacheResponse = CacheResponse.builder()
+                .retrieveDate(LocalDate.now())
+                .creditorInstitutionStations(creditorInstitutionStations)
+                .stations(stations)
+                .build();
+
+        TipoElencoFlussiRendicontazione elencoFlussi = new TipoElencoFlussiRendicontazione();
+        for (String id : List.of("9000000001_1", "9000000001_2", "9000000002_1")) {
+            TipoIdRendicontazione flow = new TipoIdRendicontazione();
+            flow.setIdentificativoFlusso(id);
+            flow.setDataOraFlusso(DatatypeFactory.newInstance().newXMLGregorianCalendar(new GregorianCalendar()));
+            elencoFlussi.getIdRendicontazione().add(flow);
+        }
+        elencoFlussi.setTotRestituiti(3);
+
+        // general var
+        Logger logger = Logger.getLogger("testlogging");
+
+        // precondition: a station call for both the organizations
+        when(context.getLogger()).thenReturn(logger);
+
+        Field modeField = RetrieveFlows.class.getDeclaredField("stationPollingEnabled");
+        modeField.setAccessible(true);
+        modeField.setBoolean(function, true);
+        Field patternField = RetrieveFlows.class.getDeclaredField("flowIdDomainPattern");
+        patternField.setAccessible(true);
+        patternField.set(function, Pattern.compile("(?<domain>\\d{10})_.+"));
+
+        doReturn(nodeClient).when(function).getNodeClientInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
+        doReturn(cacheClient).when(function).getCacheClientInstance();
+
+        lenient().when(cacheClient.getCache()).thenReturn(cacheResponse);
+        doNothing().when(nodeClient).nodoChiediElencoFlussiRendicontazione(isNull(), anyString(), anyString(), anyString());
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazioneFault()).thenReturn(null);
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazione()).thenReturn(elencoFlussi);
+        when(flowsService.flowsProcessing(anyList(), anyString())).thenReturn(new FlowsProcessingResult());
+
+        // test
+        String message = "{\"idPA\":[\"9000000001\",\"9000000002\"]}";
+        try {
+            function.run(message, UUID.randomUUID().toString(), context);
+        } finally {
+            Field cacheField = RetrieveFlows.class.getDeclaredField("cacheContent");
+            cacheField.setAccessible(true);
+            cacheField.set(null, null);
+        }
+
+        // Asserts
+        verify(nodeClient, times(1)).nodoChiediElencoFlussiRendicontazione(isNull(), anyString(), anyString(), anyString());
+        verify(nodeClient, never()).nodoChiediElencoFlussiRendicontazione(anyString(), anyString(), anyString(), anyString());
+        verify(flowsService, times(1)).flowsProcessing(argThat(flows -> flows.size() == 2), eq("9000000001"));
+        verify(flowsService, times(1)).flowsProcessing(argThat(flows -> flows.size() == 1), eq("9000000002"));
+    }
+
+    @Test
+    void runStationFailoverTest() throws Exception {
+
+        List<Station> stations = List.of(
+                Station.builder().stationCode("12345_00").brokerCode("12345").enabled(true).password("***").build(),
+                Station.builder().stationCode("12345_01").brokerCode("12345").enabled(true).password("***").build());
+        List<CreditorInstitutionStation> creditorInstitutionStations = List.of(
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build(),
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_01").build()
+        );
+        CacheResponse cacheResponse = CacheResponse.builder()
+                .retrieveDate(LocalDate.now())
+                .creditorInstitutionStations(creditorInstitutionStations)
+                .stations(stations)
+                .build();
+
+        TipoElencoFlussiRendicontazione elencoFlussi = new TipoElencoFlussiRendicontazione();
+        elencoFlussi.setTotRestituiti(0);
+
+        // general var
+        Logger logger = Logger.getLogger("testlogging");
+
+        // precondition: the first station is down
+        when(context.getLogger()).thenReturn(logger);
+
+        doReturn(nodeClient).when(function).getNodeClientInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
+        doReturn(cacheClient).when(function).getCacheClientInstance();
+
+        lenient().when(cacheClient.getCache()).thenReturn(cacheResponse);
+        doThrow(new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(new ConnectException()), new ConnectException()))
+                .when(nodeClient).nodoChiediElencoFlussiRendicontazione(anyString(), anyString(), eq("12345_00"), anyString());
+        doNothing().when(nodeClient).nodoChiediElencoFlussiRendicontazione(anyString(), anyString(), eq("12345_01"), anyString());
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazioneFault()).thenReturn(null);
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazione()).thenReturn(elencoFlussi);
+        when(flowsService.flowsProcessing(anyList(), anyString())).thenReturn(new FlowsProcessingResult());
+
+        // test
+        String message = "{\"idPA\":[\"9000000001\"]}";
+        try {
+            function.run(message, UUID.randomUUID().toString(), context);
+        } finally {
+            StationSelector.reset();
+            Field cacheField = RetrieveFlows.class.getDeclaredField("cacheContent");
+            cacheField.setAccessible(true);
+            cacheField.set(null, null);
+        }
+
+        // Asserts
+        verify(nodeClient, times(2)).nodoChiediElencoFlussiRendicontazione(eq("9000000001"), anyString(), anyString(), anyString());
+        verify(flowsService, times(1)).flowsProcessing(anyList(), eq("9000000001"));
+    }
+
+    @Test
+    void runSingleFlightTest() throws Exception {
+
+        List<Station> stations = List.of(
+                Station.builder().stationCode("12345_00").brokerCode("12345").enabled(true).password("***").build());
+        List<CreditorInstitutionStation> creditorInstitutionStations = List.of(
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build()
+        );
+        CacheResponse cacheResponse = CacheResponse.builder()
+                .retrieveDate(LocalDate.now())
+                .creditorInstitutionStations(creditorInstitutionStations)
+                .stations(stations)
+                .build();
+
+        TipoElencoFlussiRendicontazione elencoFlussi = new TipoElencoFlussiRendicontazione();
+        elencoFlussi.setTotRestituiti(0);
+
+        // general var
+        Logger logger = Logger.getLogger("testlogging");
+
+        // precondition
+        when(context.getLogger()).thenReturn(logger);
+
+        doReturn(nodeClient).when(function).getNodeClientInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
+        doReturn(cacheClient).when(function).getCacheClientInstance();
+        doReturn(checkpointService).when(function).getCheckpointServiceInstance(logger);
+        lenient().doReturn(organizationsService).when(function).getOrganizationsServiceInstance(logger);
+
+        lenient().when(cacheClient.getCache()).thenReturn(cacheResponse);
+        doReturn(true).when(checkpointService).claim(anyString(), anyString(), any());
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazioneFault()).thenReturn(null);
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazione()).thenReturn(elencoFlussi);
+        // the first poll is still being stored when the second one joins it, without waiting for it
+        long joinedBefore = Metrics.getCounter("organizations.joined");
+        AtomicBoolean storedAfterJoin = new AtomicBoolean();
+        when(flowsService.flowsProcessing(anyList(), anyString())).thenAnswer(invocation -> {
+            storedAfterJoin.set(awaitJoined(joinedBefore));
+            return new FlowsProcessingResult();
+        });
+
+        // test: the organization is listed twice, the second poll joins the first one
+        String message = "{\"idPA\":[\"9000000001\",\"9000000001\"]}";
+        String messageId = UUID.randomUUID().toString();
+        try {
+            function.run(message, messageId, context);
+        } finally {
+            Field cacheField = RetrieveFlows.class.getDeclaredField("cacheContent");
+            cacheField.setAccessible(true);
+            cacheField.set(null, null);
+        }
+
+        // Asserts
+        verify(nodeClient, times(1)).nodoChiediElencoFlussiRendicontazione(eq("9000000001"), anyString(), anyString(), anyString());
+        verify(flowsService, times(1)).flowsProcessing(anyList(), eq("9000000001"));
+        assertTrue(storedAfterJoin.get());
+        // completed by the stored poll only, the joined one relies on it
+        verify(checkpointService, times(1)).complete("9000000001", messageId);
+        verify(organizationsService, never()).addToOrganizationsQueue(anyList(), any(), anyInt(), any());
+    }
+
+    @Test
+    void runSingleFlightFailedTest() throws Exception {
+
+        List<Station> stations = List.of(
+                Station.builder().stationCode("12345_00").brokerCode("12345").enabled(true).password("***").build());
+        List<CreditorInstitutionStation> creditorInstitutionStations = List.of(
+                CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build()
+        );
+        CacheResponse cacheResponse = CacheResponse.builder()
+                .retrieveDate(LocalDate.now())
+                .creditorInstitutionStations(creditorInstitutionStations)
+                .stations(stations)
+                .build();
+
+        TipoElencoFlussiRendicontazione elencoFlussi = new TipoElencoFlussiRendicontazione();
+        elencoFlussi.setTotRestituiti(0);
+
+        // general var
+        Logger logger = Logger.getLogger("testlogging");
+
+        // precondition
+        when(context.getLogger()).thenReturn(logger);
+
+        doReturn(nodeClient).when(function).getNodeClientInstance(logger);
+        doReturn(flowsService).when(function).getFlowsServiceInstance(any(), any(), eq(logger));
+        doReturn(cacheClient).when(function).getCacheClientInstance();
+        doReturn(organizationsService).when(function).getOrganizationsServiceInstance(logger);
+
+        lenient().when(cacheClient.getCache()).thenReturn(cacheResponse);
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazioneFault()).thenReturn(null);
+        when(nodeClient.getNodoChiediElencoFlussiRendicontazione()).thenReturn(elencoFlussi);
+        // the first poll fails to be stored after the second one joined it
+        long joinedBefore = Metrics.getCounter("organizations.joined");
+        when(flowsService.flowsProcessing(anyList(), anyString())).thenAnswer(invocation -> {
+            awaitJoined(joinedBefore);
+            throw new IllegalStateException("storage down");
+        });
+
+        // test
+        String message = "{\"idPA\":[\"9000000001\",\"9000000001\"],\"retry\":1,\"epoch\":1000}";
+        try {
+            function.run(message, UUID.randomUUID().toString(), context);
+        } finally {
+            Field cacheField = RetrieveFlows.class.getDeclaredField("cacheContent");
+            cacheField.setAccessible(true);
+            cacheField.set(null, null);
+        }
+
+        // Asserts: the joined poll is enqueued again
+        verify(nodeClient, times(1)).nodoChiediElencoFlussiRendicontazione(eq("9000000001"), anyString(), anyString(), anyString());
+        verify(organizationsService, times(1)).addToOrganizationsQueue(List.of("9000000001"), 1, 0, 1000L);
+    }
+
+    private static boolean awaitJoined(long joinedBefore) throws InterruptedException {
+        for (int i = 0; i < 500 && Metrics.getCounter("organizations.joined") <= joinedBefore; i++) {
+            Thread.sleep(10);
+        }
+        return Metrics.getCounter("organizations.joined") > joinedBefore;
+    }
+
+    @Test
+    void setCacheFromSnapshotTest() throws Exception {
+
+        CacheResponse cacheResponse = CacheResponse.builder()
+                .stations(List.of(Station.builder().stationCode("12345_00").brokerCode("12345").enabled(true).password("***").build()))
+                .creditorInstitutionStations(List.of(
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_00").build()))
+                .build();
+        Logger logger = Logger.getLogger("testlogging");
+        CacheSnapshotService snapshotService = mock(CacheSnapshotService.class);
+        doReturn(snapshotService).when(function).getCacheSnapshotServiceInstance(logger);
+        when(snapshotService.read(anyLong())).thenReturn(StationCache.from(cacheResponse));
+        long hits = Metrics.getCounter("cache.snapshot.hits");
+
+        // test: a cold worker is served the snapshot written by another worker
+        try {
+            function.setCache(cacheClient, logger);
+            assertEquals("12345_00", function.getPAStations("9000000001").get(0).getStationCode());
+        } finally {
+            Field cacheField = RetrieveFlows.class.getDeclaredField("cacheContent");
+            cacheField.setAccessible(true);
+            cacheField.set(null, null);
+        }
+
+        // Asserts
+        verify(cacheClient, never()).getCache();
+        assertEquals(hits + 1, Metrics.getCounter("cache.snapshot.hits"));
+    }
+
     @Test
     void getFlowServiceIstanceTest() throws Exception {
 
         Logger logger = Logger.getLogger("testlogging");
 
         // test
-        FlowsService istance = function.getFlowsServiceInstance(logger);
+        FlowsService istance = function.getFlowsServiceInstance(new TimeBudget(System.currentTimeMillis(), 0, 0), null, logger);
 
         assertNotNull(istance);
     }
@@ -42,7 +42,7 @@ class RetrieveOrganizationsTest {
         // Asserts
         verify(context, times(1)).getLogger();
         verify(organizationsService, times(1)).getOrganizations();
-        verify(organizationsService, times(1)).addToOrganizationsQueue(any());
+        verify(organizationsService, times(1)).addToOrganizationsQueue(any(), eq(0), eq(0), anyLong());
     }
 
 }
@@ -0,0 +1,56 @@
+package it.gov.pagopa.reporting;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.resources.ClientMessages;
+import it.gov.pagopa.reporting.servicewsdl.FaultBean;
+import it.gov.pagopa.reporting.utils.RetryPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+
+    @Test
+    void classifyTest() {
+        assertEquals(RetryPolicy.FailureClass.TRANSPORT_TIMEOUT,
+                RetryPolicy.classify(new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(new SocketTimeoutException()), new SocketTimeoutException())));
+        assertEquals(RetryPolicy.FailureClass.CONNECTION_REFUSED,
+                RetryPolicy.classify(new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED(new ConnectException()), new ConnectException())));
+        assertEquals(RetryPolicy.FailureClass.TRANSPORT, RetryPolicy.classify(new RuntimeException()));
+
+        FaultBean faultBean = new FaultBean();
+        faultBean.setFaultCode("PPT_SYSTEM_ERROR");
+        assertEquals(RetryPolicy.FailureClass.RETRYABLE_FAULT, RetryPolicy.classify(faultBean, "PPT_SYSTEM_ERROR, PPT_STAZIONE_INT_PA_TIMEOUT"));
+        faultBean.setFaultCode("PPT_AUTENTICAZIONE");
+        assertEquals(RetryPolicy.FailureClass.FAULT, RetryPolicy.classify(faultBean, "PPT_SYSTEM_ERROR"));
+        assertEquals(RetryPolicy.FailureClass.FAULT, RetryPolicy.classify(new FaultBean(), "PPT_SYSTEM_ERROR"));
+    }
+
+    @Test
+    void shouldRetryTest() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 60, 86400, 600);
+
+        assertTrue(retryPolicy.shouldRetry(RetryPolicy.FailureClass.TRANSPORT_TIMEOUT, 0));
+        assertTrue(retryPolicy.shouldRetry(RetryPolicy.FailureClass.RETRYABLE_FAULT, 2));
+        assertFalse(retryPolicy.shouldRetry(RetryPolicy.FailureClass.TRANSPORT, 3));
+        assertFalse(retryPolicy.shouldRetry(RetryPolicy.FailureClass.FAULT, 0));
+    }
+
+    @Test
+    void backoffTest() {
+        RetryPolicy retryPolicy = new RetryPolicy(30, 60, 3600, 600);
+
+        for (int i = 0; i < 100; i++) {
+            int first = retryPolicy.backoff(0);
+            assertTrue(first >= 30 && first <= 60);
+            int third = retryPolicy.backoff(2);
+            assertTrue(third >= 120 && third <= 240);
+            // capped by the time-to-live less the processing margin
+            int capped = retryPolicy.backoff(20);
+            assertTrue(capped >= 1500 && capped <= 3000);
+        }
+    }
+}
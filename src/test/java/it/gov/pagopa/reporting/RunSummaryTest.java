@@ -0,0 +1,54 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.models.FlowsProcessingResult;
+import it.gov.pagopa.reporting.models.RunSummary;
+import it.gov.pagopa.reporting.service.RunSummaryService;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RunSummaryTest {
+
+    @Test
+    void valuesTest() {
+        RunSummary summary = new RunSummary("RetrieveFlows", "invocation", 1000L, 2000L);
+        for (long latency = 1; latency <= 100; latency++) {
+            summary.recordNodoCall(latency);
+        }
+        FlowsProcessingResult result = new FlowsProcessingResult();
+        result.addNewFlows(3);
+        result.addDuplicateFlow();
+        result.addBatch();
+        summary.addFlowsProcessingResult(result);
+        summary.increment(RunSummary.Counter.RETRIES);
+        summary.finish(2500L);
+
+        Map<String, Long> values = summary.getValues();
+        assertEquals(2000L, values.get("startTime"));
+        assertEquals(500L, values.get("durationMillis"));
+        assertEquals(100L, values.get("nodoCalls"));
+        assertEquals(3L, values.get("newFlows"));
+        assertEquals(1L, values.get("duplicateFlows"));
+        assertEquals(1L, values.get("batches"));
+        assertEquals(1L, values.get("retries"));
+        assertEquals(0L, values.get("handedOff"));
+        assertEquals(50L, values.get("nodoLatencyP50"));
+        assertEquals(95L, values.get("nodoLatencyP95"));
+        assertEquals(99L, values.get("nodoLatencyP99"));
+        assertEquals(100L, values.get("nodoLatencyMax"));
+    }
+
+    @Test
+    void noNodoCallsTest() {
+        RunSummary summary = new RunSummary("ReportingBatchFunction", "invocation", 1000L, 1000L);
+        assertEquals(0L, summary.getNodoLatencyPercentile(95));
+    }
+
+    @Test
+    void partitionKeyTest() {
+        assertEquals("000001700000000", RunSummaryService.partitionKey(1700000000L));
+        assertTrue(RunSummaryService.partitionKey(999L).compareTo(RunSummaryService.partitionKey(1000L)) < 0);
+    }
+}
@@ -0,0 +1,44 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.utils.SingleFlight;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void leadAndLandTest() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>(60_000);
+
+        SingleFlight.Flight<String> flight = singleFlight.tryLead("9000000001", 1000, "first");
+        assertNotNull(flight);
+        assertNull(singleFlight.tryLead("9000000001", 2000, "second"));
+        assertNotNull(singleFlight.tryLead("9000000002", 2000, "third"));
+
+        // the joiners are handed back to the leader
+        assertEquals(List.of("second"), singleFlight.land(flight));
+        assertFalse(flight.isFailed());
+        assertEquals(1, singleFlight.size());
+        assertNotNull(singleFlight.tryLead("9000000001", 3000, "fourth"));
+    }
+
+    @Test
+    void lostFlightTest() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>(100);
+
+        SingleFlight.Flight<String> lost = singleFlight.tryLead("9000000001", 1000, "first");
+        assertNull(singleFlight.tryLead("9000000001", 1050, "second"));
+
+        // taken over after the max age, the lost flight landing late does not remove the new one
+        SingleFlight.Flight<String> flight = singleFlight.tryLead("9000000001", 1200, "third");
+        assertNotNull(flight);
+        lost.fail();
+        assertEquals(List.of("second"), singleFlight.land(lost));
+        assertTrue(lost.isFailed());
+        assertNull(singleFlight.tryLead("9000000001", 1250, "fourth"));
+        assertEquals(List.of("fourth"), singleFlight.land(flight));
+    }
+}
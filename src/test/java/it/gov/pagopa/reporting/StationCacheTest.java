@@ -0,0 +1,52 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.models.cache.CacheResponse;
+import it.gov.pagopa.reporting.models.cache.CreditorInstitutionStation;
+import it.gov.pagopa.reporting.models.cache.Station;
+import it.gov.pagopa.reporting.models.cache.StationCache;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationCacheTest {
+
+    @Test
+    void getStationsTest() {
+
+        CacheResponse cache = CacheResponse.builder()
+                .stations(List.of(
+                        Station.builder().stationCode("12345_02").brokerCode("12345").enabled(true).password("pwd2").build(),
+                        Station.builder().stationCode("12345_01").brokerCode("12345").enabled(false).password("pwd1").build(),
+                        Station.builder().stationCode("67890_01").brokerCode("67890").enabled(true).password("pwd3").build()))
+                .creditorInstitutionStations(List.of(
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000002").stationCode("67890_01").build(),
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("67890_01").build(),
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_01").build(),
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000001").stationCode("12345_02").build(),
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000003").stationCode("12345_01").build(),
+                        CreditorInstitutionStation.builder().creditorInstitutionCode("9000000004").stationCode("unknown").build()))
+                .build();
+
+        StationCache stationCache = StationCache.from(cache);
+
+        assertEquals(2, stationCache.getStationsSize());
+        // PAs with disabled or unknown stations only are not kept
+        assertEquals(2, stationCache.getCreditorInstitutionsSize());
+
+        // enabled stations only, in api-config order
+        List<Station> stations = stationCache.getStations("9000000001");
+        assertEquals(List.of("12345_02", "67890_01"), stations.stream().map(Station::getStationCode).collect(Collectors.toList()));
+        assertEquals("12345", stations.get(0).getBrokerCode());
+        assertEquals("pwd2", stations.get(0).getPassword());
+        assertEquals("67890", stations.get(1).getBrokerCode());
+        assertEquals("pwd3", stations.get(1).getPassword());
+
+        assertEquals(1, stationCache.getStations("9000000002").size());
+        assertTrue(stationCache.getStations("9000000003").isEmpty());
+        assertTrue(stationCache.getStations("9000000004").isEmpty());
+        assertTrue(stationCache.getStations("9000000005").isEmpty());
+    }
+}
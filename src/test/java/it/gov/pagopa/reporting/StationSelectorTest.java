@@ -0,0 +1,71 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.models.cache.Station;
+import it.gov.pagopa.reporting.service.StationSelector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationSelectorTest {
+
+    private final List<Station> stations = List.of(
+            Station.builder().stationCode("12345_01").build(),
+            Station.builder().stationCode("12345_02").build(),
+            Station.builder().stationCode("12345_03").build());
+
+    @AfterEach
+    void reset() {
+        StationSelector.reset();
+    }
+
+    @Test
+    void firstTest() {
+        assertEquals(stations, StationSelector.of(null).order("9000000001", stations));
+    }
+
+    @Test
+    void roundRobinTest() {
+        StationSelector selector = StationSelector.of("round_robin");
+
+        assertEquals("12345_01", selector.order("9000000001", stations).get(0).getStationCode());
+        List<Station> second = selector.order("9000000001", stations);
+        assertEquals("12345_02", second.get(0).getStationCode());
+        // all the stations are failover candidates
+        assertEquals(3, second.size());
+        assertEquals("12345_03", selector.order("9000000001", stations).get(0).getStationCode());
+        assertEquals("12345_01", selector.order("9000000001", stations).get(0).getStationCode());
+    }
+
+    @Test
+    void leastRecentFailureTest() {
+        StationSelector selector = StationSelector.of("LEAST_RECENT_FAILURE");
+        selector.recordFailure("12345_01", 2000);
+        selector.recordFailure("12345_02", 1000);
+
+        List<Station> ordered = selector.order("9000000001", stations);
+
+        assertEquals(List.of("12345_03", "12345_02", "12345_01"), ordered.stream().map(Station::getStationCode).toList());
+    }
+
+    @Test
+    void latencyWeightedTest() {
+        StationSelector selector = StationSelector.of("LATENCY_WEIGHTED");
+        selector.recordSuccess("12345_01", 1000);
+        selector.recordSuccess("12345_02", 10);
+        selector.recordSuccess("12345_03", 1000);
+
+        int fastest = 0;
+        for (int i = 0; i < 1000; i++) {
+            List<Station> ordered = selector.order("9000000001", stations);
+            assertEquals(3, ordered.size());
+            if (ordered.get(0).getStationCode().equals("12345_02")) {
+                fastest++;
+            }
+        }
+        // picked with probability 100 / 102
+        assertTrue(fastest > 900);
+    }
+}
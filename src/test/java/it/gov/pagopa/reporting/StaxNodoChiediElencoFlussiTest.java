@@ -0,0 +1,126 @@
+package it.gov.pagopa.reporting;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.xml.ws.client.ClientTransportException;
+import it.gov.pagopa.reporting.service.StaxNodoChiediElencoFlussi;
+import it.gov.pagopa.reporting.servicewsdl.TipoElencoFlussiRendicontazione;
+import it.gov.pagopa.reporting.utils.RetryPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StaxNodoChiediElencoFlussiTest {
+
+    private static final String ELENCO_RESPONSE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:ppt=\"http://ws.pagamenti.telematici.gov/\">"
+            + "<soapenv:Body><ppt:nodoChiediElencoFlussiRendicontazioneRisposta><elencoFlussiRendicontazione>"
+            + "<totRestituiti>2</totRestituiti>"
+            + "<idRendicontazione><identificativoFlusso>2021-04-24ABI03069-1</identificativoFlusso><dataOraFlusso>2021-04-24T11:15:00</dataOraFlusso></idRendicontazione>"
+            + "<idRendicontazione><identificativoFlusso>2021-04-25ABI03069-2</identificativoFlusso><dataOraFlusso>2021-04-25T11:15:00</dataOraFlusso></idRendicontazione>"
+            + "</elencoFlussiRendicontazione></ppt:nodoChiediElencoFlussiRendicontazioneRisposta></soapenv:Body></soapenv:Envelope>";
+
+    private static final String FAULT_RESPONSE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:ppt=\"http://ws.pagamenti.telematici.gov/\">"
+            + "<soapenv:Body><ppt:nodoChiediElencoFlussiRendicontazioneRisposta><fault>"
+            + "<faultCode>PPT_SYSTEM_ERROR</faultCode><faultString>Errore generico</faultString><id>NodoDeiPagamentiSPC</id><serial>1</serial>"
+            + "</fault></ppt:nodoChiediElencoFlussiRendicontazioneRisposta></soapenv:Body></soapenv:Envelope>";
+
+    private final Logger logger = Logger.getLogger("testlogging");
+
+    @Test
+    void readResponseTest() throws Exception {
+        StaxNodoChiediElencoFlussi client = new StaxNodoChiediElencoFlussi(URI.create("http://localhost"), Duration.ofSeconds(1), logger);
+
+        client.readResponse(new ByteArrayInputStream(ELENCO_RESPONSE.getBytes(StandardCharsets.UTF_8)));
+
+        assertNull(client.getNodoChiediElencoFlussiRendicontazioneFault());
+        TipoElencoFlussiRendicontazione elencoFlussi = client.getNodoChiediElencoFlussiRendicontazione();
+        assertEquals(2, elencoFlussi.getTotRestituiti());
+        assertEquals(2, elencoFlussi.getIdRendicontazione().size());
+        assertEquals("2021-04-24ABI03069-1", elencoFlussi.getIdRendicontazione().get(0).getIdentificativoFlusso());
+        assertEquals("2021-04-25T11:15:00", elencoFlussi.getIdRendicontazione().get(1).getDataOraFlusso().toString());
+    }
+
+    @Test
+    void readFaultTest() throws Exception {
+        StaxNodoChiediElencoFlussi client = new StaxNodoChiediElencoFlussi(URI.create("http://localhost"), Duration.ofSeconds(1), logger);
+
+        client.readResponse(new ByteArrayInputStream(FAULT_RESPONSE.getBytes(StandardCharsets.UTF_8)));
+
+        assertNull(client.getNodoChiediElencoFlussiRendicontazione());
+        assertEquals("PPT_SYSTEM_ERROR", client.getNodoChiediElencoFlussiRendicontazioneFault().getFaultCode());
+        assertEquals(1, client.getNodoChiediElencoFlussiRendicontazioneFault().getSerial());
+    }
+
+    @Test
+    void callTest() throws Exception {
+        AtomicReference<String> request = new AtomicReference<>();
+        AtomicReference<String> soapAction = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/nodo-per-pa/v1", exchange -> {
+            request.set(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            soapAction.set(exchange.getRequestHeaders().getFirst("SOAPAction"));
+            byte[] body = ELENCO_RESPONSE.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            StaxNodoChiediElencoFlussi client = new StaxNodoChiediElencoFlussi(
+                    URI.create("http://localhost:" + server.getAddress().getPort() + "/nodo-per-pa/v1"), Duration.ofSeconds(5), logger);
+
+            client.nodoChiediElencoFlussiRendicontazione("90000000001", "12345", "12345_00", "p&ss");
+
+            assertEquals(2, client.getNodoChiediElencoFlussiRendicontazione().getIdRendicontazione().size());
+            assertEquals("nodoChiediElencoFlussiRendicontazione", soapAction.get());
+            assertTrue(request.get().contains("<identificativoDominio>90000000001</identificativoDominio>"));
+            assertTrue(request.get().contains("<password>p&amp;ss</password>"));
+
+            // station call, without the domain
+            client.nodoChiediElencoFlussiRendicontazione(null, "12345", "12345_00", "***");
+            assertFalse(request.get().contains("identificativoDominio"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void timeoutTest() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/nodo-per-pa/v1", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            StaxNodoChiediElencoFlussi client = new StaxNodoChiediElencoFlussi(
+                    URI.create("http://localhost:" + server.getAddress().getPort() + "/nodo-per-pa/v1"), Duration.ofMillis(200), logger);
+
+            ClientTransportException e = assertThrows(ClientTransportException.class,
+                    () -> client.nodoChiediElencoFlussiRendicontazione("90000000001", "12345", "12345_00", "***"));
+            // retried as a JAX-WS read timeout
+            assertEquals(RetryPolicy.FailureClass.TRANSPORT_TIMEOUT, RetryPolicy.classify(e));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void wsdlEndpointTest() throws Exception {
+        assertNotNull(StaxNodoChiediElencoFlussi.getWsdlEndpoint().getHost());
+    }
+}
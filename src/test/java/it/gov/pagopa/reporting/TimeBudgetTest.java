@@ -0,0 +1,44 @@
+package it.gov.pagopa.reporting;
+
+import it.gov.pagopa.reporting.utils.TimeBudget;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimeBudgetTest {
+
+    @Test
+    void canStartTest() {
+        TimeBudget timeBudget = new TimeBudget(0, 10_000, 1_000);
+
+        assertTrue(timeBudget.canStart(0));
+        timeBudget.recordUnit(2_000);
+        // 6s elapsed + 2s for the next unit + 1s of margin
+        assertTrue(timeBudget.canStart(6_000));
+        assertFalse(timeBudget.canStart(7_000));
+        assertEquals(3_000, timeBudget.getRemainingMillis(7_000));
+    }
+
+    @Test
+    void canStartWithBacklogTest() {
+        TimeBudget timeBudget = new TimeBudget(0, 10_000, 1_000);
+        timeBudget.recordUnit(2_000);
+        timeBudget.recordStoring(1_000);
+
+        // 2s to poll the next unit while the backlog is stored, then 1s to store it, + 1s of margin
+        assertTrue(timeBudget.canStart(5_000, 1));
+        // 3 items to store before the next unit
+        assertTrue(timeBudget.canStart(4_000, 3));
+        assertFalse(timeBudget.canStart(5_000, 3));
+        assertFalse(timeBudget.canStart(6_000));
+    }
+
+    @Test
+    void unlimitedTest() {
+        TimeBudget timeBudget = new TimeBudget(0, 0, 1_000);
+        timeBudget.recordUnit(2_000);
+
+        assertTrue(timeBudget.isUnlimited());
+        assertTrue(timeBudget.canStart(Long.MAX_VALUE / 2));
+    }
+}